@@ -17,10 +17,16 @@
 
 package nl.eduvpn.app;
 
+import nl.eduvpn.app.entity.TranslatableStringTest;
+import nl.eduvpn.app.service.ConnectionPrewarmServiceTest;
+import nl.eduvpn.app.service.DirectoryServiceTest;
 import nl.eduvpn.app.service.HistoryServiceTest;
 import nl.eduvpn.app.service.PreferencesServiceTest;
+import nl.eduvpn.app.service.ProfileListServiceTest;
+import nl.eduvpn.app.service.RetryServiceTest;
 import nl.eduvpn.app.service.SecurityServiceTest;
 import nl.eduvpn.app.service.SerializerServiceTest;
+import nl.eduvpn.app.service.ServerDiscoveryServiceTest;
 import nl.eduvpn.app.utils.FormattingUtilsTest;
 
 import org.junit.runner.RunWith;
@@ -32,7 +38,9 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({SerializerServiceTest.class, PreferencesServiceTest.class, HistoryServiceTest.class,
-        SecurityServiceTest.class, FormattingUtilsTest.class})
+        SecurityServiceTest.class, RetryServiceTest.class, ConnectionPrewarmServiceTest.class, FormattingUtilsTest.class,
+        TranslatableStringTest.class, ServerDiscoveryServiceTest.class,
+        ProfileListServiceTest.class, DirectoryServiceTest.class})
 public class UnitTestSuite {
     // Test suite used to run all unit tests at once.
     // To run the tests, right click on the class name, and select "Run 'UnitTestSuite'".
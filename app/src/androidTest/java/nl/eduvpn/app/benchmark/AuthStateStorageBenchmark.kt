@@ -0,0 +1,105 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.benchmark
+
+import android.util.Log
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.filters.LargeTest
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.jsonArray
+import kotlinx.serialization.json.jsonObject
+import nl.eduvpn.app.service.SerializerService
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+
+/**
+ * Compares loading the saved auth states with the auth states stored as nested objects,
+ * against the escaped JSON strings used before. This is the parsing done by the history service on a cold start.
+ * Logs the size of the stored list for both formats.
+ *
+ * Run with: ./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=nl.eduvpn.app.benchmark.AuthStateStorageBenchmark
+ */
+@RunWith(Parameterized::class)
+@LargeTest
+class AuthStateStorageBenchmark(private val savedServerCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val serializerService = SerializerService()
+
+    private val structuredJson = serializerService.serializeSavedAuthStateList(DiscoFixtures.savedAuthStates(savedServerCount))
+
+    @Test
+    fun loadStructured() {
+        Log.i(TAG, "Structured, $savedServerCount servers: ${structuredJson.toByteArray().size} bytes")
+        load(structuredJson)
+    }
+
+    @Test
+    fun loadEscapedStrings() {
+        val legacyJson = toEscapedStrings(structuredJson)
+        Log.i(TAG, "Escaped strings, $savedServerCount servers: ${legacyJson.toByteArray().size} bytes")
+        load(legacyJson)
+    }
+
+    private fun load(json: String) {
+        benchmarkRule.measureRepeated {
+            val savedAuthStates = serializerService.deserializeSavedAuthStateList(json)
+            runWithTimingDisabled {
+                Assert.assertEquals(savedServerCount, savedAuthStates.size)
+            }
+        }
+    }
+
+    /**
+     * Converts the nested auth states to the escaped strings which were stored before.
+     */
+    private fun toEscapedStrings(json: String): String {
+        val root = Json.parseToJsonElement(json).jsonObject
+        val entries = root.getValue("data").jsonArray.map { entry ->
+            JsonObject(entry.jsonObject.mapValues { (key, value) -> if (key == "auth_state") escaped(value) else value })
+        }
+        return JsonObject(root.mapValues { (key, value) ->
+            when (key) {
+                "data" -> JsonArray(entries)
+                "distributed_auth_state" -> escaped(value)
+                else -> value
+            }
+        }).toString()
+    }
+
+    private fun escaped(authState: JsonElement) = JsonPrimitive(authState.toString())
+
+    companion object {
+        private val TAG = AuthStateStorageBenchmark::class.java.simpleName
+
+        @JvmStatic
+        @Parameterized.Parameters(name = "savedServers={0}")
+        fun savedServerCounts(): List<Int> = listOf(10, 100, 1_000)
+    }
+}
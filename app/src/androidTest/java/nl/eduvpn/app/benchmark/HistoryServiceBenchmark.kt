@@ -0,0 +1,113 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.benchmark
+
+import android.content.Context
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.filters.LargeTest
+import nl.eduvpn.app.entity.SavedAuthState
+import nl.eduvpn.app.service.HistoryService
+import nl.eduvpn.app.service.PreferencesService
+import nl.eduvpn.app.service.SerializerService
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+
+/**
+ * Benchmarks the lookups of the history service with 10 to 1000 saved servers.
+ * The lookups are done for the last saved server, which is the worst case for a linear scan.
+ * [linearScanBaseline] shows the cost of the scan the service used before it had indexes.
+ *
+ * Run with: ./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=nl.eduvpn.app.benchmark.HistoryServiceBenchmark
+ */
+@RunWith(Parameterized::class)
+@LargeTest
+class HistoryServiceBenchmark(private val savedServerCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private lateinit var preferencesService: PreferencesService
+    private lateinit var historyService: HistoryService
+    private lateinit var savedAuthStates: List<SavedAuthState>
+
+    @Before
+    fun before() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        preferencesService = PreferencesService(context, SerializerService())
+        preferencesService.clearPreferences()
+        savedAuthStates = DiscoFixtures.savedAuthStates(savedServerCount)
+        preferencesService.storeSavedAuthStateList(savedAuthStates)
+        preferencesService.storeSavedKeyPairList(DiscoFixtures.savedKeyPairs(savedServerCount))
+        historyService = HistoryService(preferencesService)
+    }
+
+    @After
+    fun after() {
+        preferencesService.clearPreferences()
+    }
+
+    @Test
+    fun getSavedToken() {
+        val instance = savedAuthStates.last().instance
+        benchmarkRule.measureRepeated {
+            Assert.assertNotNull(historyService.getSavedToken(instance))
+        }
+    }
+
+    @Test
+    fun getCachedAuthState() {
+        val instance = savedAuthStates.last().instance
+        benchmarkRule.measureRepeated {
+            Assert.assertNotNull(historyService.getCachedAuthState(instance))
+        }
+    }
+
+    @Test
+    fun getSavedKeyPairForInstance() {
+        val instance = savedAuthStates.last().instance
+        benchmarkRule.measureRepeated {
+            Assert.assertNotNull(historyService.getSavedKeyPairForInstance(instance))
+        }
+    }
+
+    @Test
+    fun linearScanBaseline() {
+        val instance = savedAuthStates.last().instance
+        benchmarkRule.measureRepeated {
+            // The sanitized base URI used to be computed on every access
+            val found = savedAuthStates.firstOrNull {
+                it.instance.baseURI.removeSuffix("/") == instance.baseURI.removeSuffix("/")
+            }
+            Assert.assertNotNull(found)
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "savedServers={0}")
+        fun savedServerCounts(): List<Int> = listOf(10, 100, 1_000)
+    }
+}
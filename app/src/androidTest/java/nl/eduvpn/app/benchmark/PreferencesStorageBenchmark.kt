@@ -0,0 +1,122 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.benchmark
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.filters.LargeTest
+import nl.eduvpn.app.service.PreferencesService
+import nl.eduvpn.app.service.SerializerService
+import nl.eduvpn.app.utils.FileSharedPreferences
+import org.junit.After
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import java.io.File
+
+/**
+ * Compares the single SharedPreferences file with the per-key file store, for a small change
+ * (the preferred country) while a number of servers is saved.
+ * Reports the time per operation, and logs the number of bytes written to the disk per operation.
+ *
+ * Run with: ./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=nl.eduvpn.app.benchmark.PreferencesStorageBenchmark
+ */
+@RunWith(Parameterized::class)
+@LargeTest
+class PreferencesStorageBenchmark(private val savedServerCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+    private val serializerService = SerializerService()
+    private val fileStoreDirectory = File(context.cacheDir, "benchmark_preferences_$savedServerCount")
+
+    @After
+    fun after() {
+        context.getSharedPreferences(LEGACY_PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit()
+        fileStoreDirectory.deleteRecursively()
+    }
+
+    @SuppressLint("ApplySharedPref")
+    private fun populate(preferences: SharedPreferences) {
+        preferences.edit()
+            .putString(
+                PreferencesService.KEY_SAVED_AUTH_STATES,
+                serializerService.serializeSavedAuthStateList(DiscoFixtures.savedAuthStates(savedServerCount))
+            )
+            .putString(
+                PreferencesService.KEY_SAVED_KEY_PAIRS,
+                serializerService.serializeSavedKeyPairList(DiscoFixtures.savedKeyPairs(savedServerCount))
+            )
+            .commit()
+    }
+
+    @SuppressLint("ApplySharedPref")
+    @Test
+    fun legacyPreferencesSmallWrite() {
+        val preferences = context.getSharedPreferences(LEGACY_PREFERENCES_NAME, Context.MODE_PRIVATE)
+        populate(preferences)
+        var operations = 0
+        benchmarkRule.measureRepeated {
+            preferences.edit()
+                .putString(PreferencesService.KEY_PREFERRED_COUNTRY, COUNTRIES[operations % COUNTRIES.size])
+                .commit()
+            operations++
+        }
+        // Every commit rewrites the whole file.
+        val preferencesFile = File(context.filesDir.parentFile, "shared_prefs/$LEGACY_PREFERENCES_NAME.xml")
+        Log.i(TAG, "SharedPreferences, $savedServerCount servers: ${preferencesFile.length()} bytes written per operation")
+    }
+
+    @SuppressLint("ApplySharedPref")
+    @Test
+    fun fileStoreSmallWrite() {
+        val preferences = FileSharedPreferences.open(fileStoreDirectory)
+        populate(preferences)
+        val bytesWrittenBefore = preferences.bytesWritten
+        var operations = 0
+        benchmarkRule.measureRepeated {
+            preferences.edit()
+                .putString(PreferencesService.KEY_PREFERRED_COUNTRY, COUNTRIES[operations % COUNTRIES.size])
+                .commit()
+            operations++
+        }
+        val bytesPerOperation = (preferences.bytesWritten - bytesWrittenBefore) / operations
+        Log.i(TAG, "FileSharedPreferences, $savedServerCount servers: $bytesPerOperation bytes written per operation")
+    }
+
+    companion object {
+        private val TAG = PreferencesStorageBenchmark::class.java.simpleName
+        private const val LEGACY_PREFERENCES_NAME = "benchmark_legacy_preferences"
+
+        // Alternate between values, so every commit actually changes the stored data.
+        private val COUNTRIES = listOf("NL", "DE")
+
+        @JvmStatic
+        @Parameterized.Parameters(name = "savedServers={0}")
+        fun savedServerCounts(): List<Int> = listOf(10, 100, 1_000)
+    }
+}
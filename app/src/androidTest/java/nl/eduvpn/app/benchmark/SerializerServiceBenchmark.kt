@@ -0,0 +1,119 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.filters.LargeTest
+import nl.eduvpn.app.entity.OrganizationList
+import nl.eduvpn.app.entity.ServerList
+import nl.eduvpn.app.service.SerializerService
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import java.io.ByteArrayInputStream
+
+/**
+ * Benchmarks for parsing the lists and the persisted data with the serializer service.
+ * Reports the time and the allocation count per operation, for lists with 1k, 10k and 50k entries.
+ *
+ * Run with: ./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=nl.eduvpn.app.benchmark.SerializerServiceBenchmark
+ * The results are written to the instrumentation output and to the benchmark JSON report.
+ */
+@RunWith(Parameterized::class)
+@LargeTest
+class SerializerServiceBenchmark(private val entryCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val serializerService = SerializerService()
+
+    @Test
+    fun deserializeServerList() {
+        val json = serializerService.serializeServerList(
+            ServerList(1L, DiscoFixtures.instances(entryCount))
+        )
+        benchmarkRule.measureRepeated {
+            val serverList = serializerService.deserializeServerList(json)
+            runWithTimingDisabled {
+                Assert.assertEquals(entryCount, serverList.serverList.size)
+            }
+        }
+    }
+
+    @Test
+    fun deserializeOrganizationList() {
+        val bytes = serializerService.serializeOrganizationList(
+            OrganizationList(1L, DiscoFixtures.organizations(entryCount))
+        ).toByteArray(Charsets.UTF_8)
+        benchmarkRule.measureRepeated {
+            val organizationList = serializerService.deserializeOrganizationList(
+                ByteArrayInputStream(bytes),
+                Charsets.UTF_8
+            )
+            runWithTimingDisabled {
+                Assert.assertEquals(entryCount, organizationList.organizationList.size)
+            }
+        }
+    }
+
+    @Test
+    fun deserializeSavedAuthStateList() {
+        val json = serializerService.serializeSavedAuthStateList(
+            DiscoFixtures.savedAuthStates(entryCount)
+        )
+        benchmarkRule.measureRepeated {
+            val savedAuthStates = serializerService.deserializeSavedAuthStateList(json)
+            runWithTimingDisabled {
+                Assert.assertEquals(entryCount, savedAuthStates.size)
+            }
+        }
+    }
+
+    @Test
+    fun deserializeSavedKeyPairList() {
+        val json = serializerService.serializeSavedKeyPairList(
+            DiscoFixtures.savedKeyPairs(entryCount)
+        )
+        benchmarkRule.measureRepeated {
+            val savedKeyPairs = serializerService.deserializeSavedKeyPairList(json)
+            runWithTimingDisabled {
+                Assert.assertEquals(entryCount, savedKeyPairs.size)
+            }
+        }
+    }
+
+    @Test
+    fun deserializeInfo() {
+        val json = DiscoFixtures.infoJson(entryCount)
+        benchmarkRule.measureRepeated {
+            val info = serializerService.deserializeInfo(json)
+            runWithTimingDisabled {
+                Assert.assertEquals(entryCount, info.info.profileList.size)
+            }
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "entries={0}")
+        fun entryCounts(): List<Int> = listOf(1_000, 10_000, 50_000)
+    }
+}
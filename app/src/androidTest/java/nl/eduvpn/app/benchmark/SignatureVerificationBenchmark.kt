@@ -0,0 +1,90 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.filters.LargeTest
+import nl.eduvpn.app.utils.crypto.Blake2b
+import nl.eduvpn.app.utils.crypto.Ed25519
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import org.libsodium.jni.NaCl
+import org.libsodium.jni.Sodium
+
+/**
+ * Compares hashing and verifying a prehashed minisign signature with libsodium and with the plain Kotlin implementation,
+ * for payloads from 1 KB to 1 MB. Use the results to tune SecurityService.JVM_BACKEND_MAX_PAYLOAD_SIZE.
+ * Loading libsodium is a one-time cost of the native backend, which is not included here.
+ *
+ * Run with: ./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=nl.eduvpn.app.benchmark.SignatureVerificationBenchmark
+ */
+@RunWith(Parameterized::class)
+@LargeTest
+class SignatureVerificationBenchmark(private val payloadSize: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val payload = ByteArray(payloadSize) { (it * 31).toByte() }
+    private val publicKey = ByteArray(Ed25519.PUBLIC_KEY_LENGTH)
+    private val signature = ByteArray(Ed25519.SIGNATURE_LENGTH)
+
+    @Before
+    fun before() {
+        NaCl.sodium()
+        val secretKey = ByteArray(Sodium.crypto_sign_secretkeybytes())
+        Sodium.crypto_sign_keypair(publicKey, secretKey)
+        val hash = Blake2b.hash(payload)
+        Sodium.crypto_sign_detached(signature, IntArray(1), hash, hash.size, secretKey)
+    }
+
+    @Test
+    fun sodium() {
+        val key = ByteArray(0)
+        val hash = ByteArray(Blake2b.MAX_DIGEST_LENGTH)
+        benchmarkRule.measureRepeated {
+            Sodium.crypto_generichash(hash, hash.size, payload, payload.size, key, key.size)
+            val result = Sodium.crypto_sign_verify_detached(signature, hash, hash.size, publicKey)
+            runWithTimingDisabled {
+                Assert.assertEquals(0, result)
+            }
+        }
+    }
+
+    @Test
+    fun jvm() {
+        benchmarkRule.measureRepeated {
+            val isValid = Ed25519.verify(signature, Blake2b.hash(payload), publicKey)
+            runWithTimingDisabled {
+                Assert.assertTrue(isValid)
+            }
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "payloadBytes={0}")
+        fun payloadSizes(): List<Int> = listOf(1_024, 64 * 1_024, 1_024 * 1_024)
+    }
+}
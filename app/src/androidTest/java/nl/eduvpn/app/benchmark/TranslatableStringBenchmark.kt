@@ -0,0 +1,104 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.filters.LargeTest
+import nl.eduvpn.app.entity.Organization
+import nl.eduvpn.app.entity.TranslatableString
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+import java.text.Collator
+import java.util.Locale
+import kotlin.random.Random
+
+/**
+ * Benchmarks for sorting the organization list by display name and binding the sorted rows,
+ * as the organization selection screen does, with and without the cached best translation.
+ * Each iteration starts from organizations which did not resolve their translation yet.
+ * Reports the time and the allocation count per operation, for lists with 1k and 5k organizations.
+ *
+ * Run with: ./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=nl.eduvpn.app.benchmark.TranslatableStringBenchmark
+ * The results are written to the instrumentation output and to the benchmark JSON report.
+ */
+@RunWith(Parameterized::class)
+@LargeTest
+class TranslatableStringBenchmark(private val organizationCount: Int) {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private lateinit var originalLocale: Locale
+
+    @Before
+    fun before() {
+        originalLocale = Locale.getDefault()
+        // Not English, so most names are resolved past their first translation
+        Locale.setDefault(Locale("nl", "NL"))
+    }
+
+    @After
+    fun after() {
+        Locale.setDefault(originalLocale)
+    }
+
+    @Test
+    fun sortAndBindCached() {
+        sortAndBind { it.bestTranslation }
+    }
+
+    @Test
+    fun sortAndBindUncached() {
+        sortAndBind { it.findBestTranslation(Locale.getDefault()) }
+    }
+
+    private fun sortAndBind(resolve: (TranslatableString) -> String?) {
+        benchmarkRule.measureRepeated {
+            val organizations = runWithTimingDisabled { shuffledOrganizations() }
+            val sortedOrganizations = organizations.sortedWith(
+                Comparator.comparing(
+                    { o: Organization -> resolve(o.displayName) },
+                    Collator.getInstance(Locale.getDefault())
+                )
+            )
+            // Binding reads the display name of every row again
+            val boundNames = sortedOrganizations.map { resolve(it.displayName) }
+            runWithTimingDisabled {
+                Assert.assertEquals(organizationCount, boundNames.size)
+            }
+        }
+    }
+
+    // New instances, so the translations cached by the previous iteration are not reused
+    private fun shuffledOrganizations(): List<Organization> {
+        return DiscoFixtures.organizations(organizationCount).shuffled(Random(SHUFFLE_SEED))
+    }
+
+    companion object {
+        private const val SHUFFLE_SEED = 42
+
+        @JvmStatic
+        @Parameterized.Parameters(name = "organizations={0}")
+        fun organizationCounts(): List<Int> = listOf(1_000, 5_000)
+    }
+}
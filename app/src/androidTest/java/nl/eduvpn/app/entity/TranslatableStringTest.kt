@@ -0,0 +1,138 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.text.Collator
+import java.util.Locale
+
+/**
+ * Tests for the translation resolution of translatable strings.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class TranslatableStringTest {
+
+    private lateinit var _originalLocale: Locale
+
+    @Before
+    fun before() {
+        _originalLocale = Locale.getDefault()
+    }
+
+    @After
+    fun after() {
+        Locale.setDefault(_originalLocale)
+    }
+
+    @Test
+    fun testBestTranslation() {
+        val translatableString = TranslatableString(
+            mapOf(
+                "fr" to "Bonjour",
+                "en" to "Hello",
+                "nl-NL" to "Hallo",
+                "nl-BE" to "Dag"
+            )
+        )
+        Locale.setDefault(Locale("nl", "BE"))
+        Assert.assertEquals("Dag", translatableString.bestTranslation)
+        Locale.setDefault(Locale("nl", "NL"))
+        Assert.assertEquals("Hallo", translatableString.bestTranslation)
+        Locale.setDefault(Locale("de", "DE"))
+        Assert.assertEquals("Hello", translatableString.bestTranslation)
+        Locale.setDefault(Locale("fr"))
+        Assert.assertEquals("Bonjour", translatableString.bestTranslation)
+        Assert.assertNull(TranslatableString().bestTranslation)
+    }
+
+    @Test
+    fun testBestTranslationIsCached() {
+        val translations = CopyingMap(mapOf("en" to "Hello", "nl" to "Hallo"))
+        val translatableString = TranslatableString(translations)
+        Locale.setDefault(Locale("nl", "NL"))
+        val resolved = translatableString.bestTranslation
+        Assert.assertEquals("Hallo", resolved)
+        // Resolving it again would return a new copy of the translation
+        Assert.assertSame(resolved, translatableString.bestTranslation)
+        Assert.assertSame(resolved, translatableString.bestTranslation)
+        Assert.assertEquals(1, translations.entryReads)
+        // An equal, but different locale instance still uses the cached translation
+        Locale.setDefault(Locale("nl", "NL"))
+        Assert.assertSame(resolved, translatableString.bestTranslation)
+        // A different locale resolves the translation again
+        Locale.setDefault(Locale("en", "US"))
+        val resolvedAgain = translatableString.bestTranslation
+        Assert.assertEquals("Hello", resolvedAgain)
+        Assert.assertNotSame(resolved, resolvedAgain)
+        Assert.assertSame(resolvedAgain, translatableString.bestTranslation)
+        Assert.assertEquals(2, translations.entryReads)
+    }
+
+    @Test
+    fun testSortAndBind() {
+        Locale.setDefault(Locale("nl", "NL"))
+        val organizations = (0 until 5000).map { i ->
+            Organization(
+                "org-$i",
+                TranslatableString(
+                    mapOf(
+                        "en" to "Organization ${5000 - i}",
+                        "nl" to "Organisatie ${5000 - i}",
+                        "de-DE" to "Organisation ${5000 - i}",
+                        "da-DK" to "Organisation ${5000 - i}"
+                    )
+                ),
+                TranslatableString(),
+                null
+            )
+        }
+        val sortedOrganizations = organizations.sortedWith(
+            Comparator.comparing(
+                { o: Organization -> o.displayName.bestTranslation },
+                Collator.getInstance(Locale.getDefault())
+            )
+        )
+        // Binding reads the display name of every row again
+        val boundNames = sortedOrganizations.map { it.displayName.bestTranslation }
+        Assert.assertEquals("Organisatie 1", boundNames.first())
+        Assert.assertTrue(boundNames.all { it!!.startsWith("Organisatie") })
+    }
+
+    /**
+     * Returns a new copy of each translation every time the entries are read, so a cached translation
+     * can be told apart from a newly resolved one by its identity.
+     */
+    private class CopyingMap(private val translations: Map<String, String>) : AbstractMap<String, String>() {
+
+        var entryReads = 0
+
+        override val entries: Set<Map.Entry<String, String>>
+            get() {
+                entryReads++
+                return translations.entries.mapTo(LinkedHashSet()) { (key, value) ->
+                    java.util.AbstractMap.SimpleImmutableEntry(key, String(value.toCharArray()))
+                }
+            }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package nl.eduvpn.app.service
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import dagger.Lazy
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Connection
+import okhttp3.Handshake
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.Route
+import okio.Timeout
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.Socket
+
+/**
+ * Tests the accounting of prewarmed connections, by reporting the events OkHttp would report for a few calls.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class ConnectionPrewarmServiceTest {
+
+    companion object {
+        private const val HOST = "vpn.example.com"
+        private val ADDRESS = InetSocketAddress.createUnresolved(HOST, 443)
+    }
+
+    private lateinit var connectionPrewarmService: ConnectionPrewarmService
+
+    @Before
+    fun before() {
+        connectionPrewarmService = ConnectionPrewarmService(Lazy { OkHttpClient() })
+    }
+
+    @Test
+    fun testReusedConnectionIsCounted() {
+        val connection = FakeConnection()
+        openConnection(prewarmCall(), connection, setupTimeMs = 20)
+        Assert.assertEquals(ConnectionPrewarmService.Metrics(1, 0, 0), connectionPrewarmService.getMetrics())
+        acquireConnection(apiCall(), connection)
+        val metrics = connectionPrewarmService.getMetrics()
+        Assert.assertEquals(1, metrics.prewarmedConnections)
+        Assert.assertEquals(1, metrics.reusedConnections)
+        Assert.assertTrue(metrics.savedTimeMs >= 20)
+        // The setup time is only saved by the first call which uses the connection
+        acquireConnection(apiCall(), connection)
+        Assert.assertEquals(metrics, connectionPrewarmService.getMetrics())
+    }
+
+    @Test
+    fun testOtherConnectionIsNotCounted() {
+        openConnection(prewarmCall(), FakeConnection(), setupTimeMs = 0)
+        acquireConnection(apiCall(), FakeConnection())
+        Assert.assertEquals(0, connectionPrewarmService.getMetrics().reusedConnections)
+        Assert.assertEquals(0L, connectionPrewarmService.getMetrics().savedTimeMs)
+    }
+
+    @Test
+    fun testPooledConnectionIsNotCountedAsPrewarmed() {
+        // The connection was already in the pool, so the prewarm call did not open it
+        val connection = FakeConnection()
+        acquireConnection(prewarmCall(), connection)
+        acquireConnection(apiCall(), connection)
+        Assert.assertEquals(ConnectionPrewarmService.Metrics(0, 0, 0), connectionPrewarmService.getMetrics())
+    }
+
+    @Test
+    fun testConnectionOpenedByCallIsNotCounted() {
+        val connection = FakeConnection()
+        openConnection(apiCall(), connection, setupTimeMs = 0)
+        acquireConnection(apiCall(), connection)
+        Assert.assertEquals(ConnectionPrewarmService.Metrics(0, 0, 0), connectionPrewarmService.getMetrics())
+    }
+
+    private fun openConnection(call: Call, connection: Connection, setupTimeMs: Long) {
+        val listener = connectionPrewarmService.eventListenerFactory.create(call)
+        listener.dnsStart(call, HOST)
+        listener.dnsEnd(call, HOST, emptyList())
+        listener.connectStart(call, ADDRESS, Proxy.NO_PROXY)
+        // Only makes sure some time passes, the exact setup time does not matter
+        Thread.sleep(setupTimeMs)
+        listener.connectEnd(call, ADDRESS, Proxy.NO_PROXY, Protocol.HTTP_2)
+        listener.connectionAcquired(call, connection)
+    }
+
+    private fun acquireConnection(call: Call, connection: Connection) {
+        connectionPrewarmService.eventListenerFactory.create(call).connectionAcquired(call, connection)
+    }
+
+    private fun prewarmCall() = FakeCall(
+        Request.Builder()
+            .url("https://$HOST/")
+            .head()
+            .tag(ConnectionPrewarmService.PrewarmTag::class.java, ConnectionPrewarmService.PrewarmTag)
+            .build()
+    )
+
+    private fun apiCall() = FakeCall(Request.Builder().url("https://$HOST/vpn-user-portal/api/v3/info").build())
+
+    /**
+     * A call which is never executed, only its request is used by the listener.
+     */
+    private class FakeCall(private val request: Request) : Call {
+        override fun request(): Request = request
+        override fun execute(): Response = throw UnsupportedOperationException()
+        override fun enqueue(responseCallback: Callback) {
+            throw UnsupportedOperationException()
+        }
+        override fun cancel() = Unit
+        override fun isExecuted(): Boolean = false
+        override fun isCanceled(): Boolean = false
+        override fun timeout(): Timeout = Timeout.NONE
+        override fun clone(): Call = FakeCall(request)
+    }
+
+    /**
+     * A connection which is only compared by identity.
+     */
+    private class FakeConnection : Connection {
+        override fun route(): Route = throw UnsupportedOperationException()
+        override fun socket(): Socket = throw UnsupportedOperationException()
+        override fun handshake(): Handshake? = null
+        override fun protocol(): Protocol = Protocol.HTTP_2
+    }
+}
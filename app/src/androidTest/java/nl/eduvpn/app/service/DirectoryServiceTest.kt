@@ -0,0 +1,85 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package nl.eduvpn.app.service
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import kotlinx.coroutines.runBlocking
+import nl.eduvpn.app.BuildConfig
+import okhttp3.OkHttpClient
+import org.junit.Assert
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests the server and organization lists bundled with the app, as they are shown on the first launch.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class DirectoryServiceTest {
+
+    private lateinit var preferencesService: PreferencesService
+    private lateinit var organizationService: OrganizationService
+    private lateinit var directoryService: DirectoryService
+
+    @Before
+    fun before() {
+        // Only the flavors with server discovery bundle the lists
+        Assume.assumeTrue(BuildConfig.API_DISCOVERY_ENABLED)
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val serializerService = SerializerService()
+        preferencesService = PreferencesService(context, serializerService)
+        preferencesService.clearPreferences()
+        organizationService = OrganizationService(
+            context,
+            serializerService,
+            SecurityService(),
+            RetryService(),
+            OkHttpClient(),
+            preferencesService
+        )
+        directoryService = DirectoryService(organizationService, preferencesService)
+    }
+
+    @Test
+    fun testBundledListsAreVerified() = runBlocking {
+        // Null if the lists are missing, or do not match their signatures
+        Assert.assertNotNull(organizationService.loadBundledServerList())
+        Assert.assertNotNull(organizationService.loadBundledOrganizations())
+    }
+
+    @Test
+    fun testBundledListsAreShownOnFirstLaunch() = runBlocking {
+        val serverList = directoryService.getLocalServerList()
+        Assert.assertNotNull(serverList)
+        Assert.assertTrue(serverList!!.serverList.isNotEmpty())
+        // Passing the version check makes the bundled version the minimum for the downloaded lists
+        Assert.assertTrue(serverList.version > 0)
+        Assert.assertEquals(serverList.version, preferencesService.getLastKnownServerListVersion())
+
+        val organizationList = directoryService.getLocalOrganizationList()
+        Assert.assertNotNull(organizationList)
+        Assert.assertTrue(organizationList!!.organizationList.isNotEmpty())
+        Assert.assertTrue(organizationList.version > 0)
+        Assert.assertEquals(organizationList.version, preferencesService.getLastKnownOrganizationListVersion())
+    }
+}
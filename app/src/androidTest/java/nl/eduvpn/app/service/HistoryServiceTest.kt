@@ -22,12 +22,21 @@ import android.net.Uri
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.filters.LargeTest
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
 import net.openid.appauth.AuthState
 import net.openid.appauth.AuthorizationServiceConfiguration
 import nl.eduvpn.app.entity.*
 import org.junit.*
 import org.junit.runner.RunWith
 import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * Tests for the history service.
@@ -53,6 +62,8 @@ class HistoryServiceTest {
      */
     @SuppressLint("CommitPrefEdits", "ApplySharedPref")
     private fun reloadHistoryService(clearHistory: Boolean) {
+        // Write the pending changes of the previous instance
+        _historyService?.flush()
         val serializerService = SerializerService()
         val context = ApplicationProvider.getApplicationContext<Context>()
         val preferencesService = PreferencesService(context, serializerService)
@@ -185,4 +196,120 @@ class HistoryServiceTest {
         Assert.assertEquals(keyPair2.certificate, retrieved2.keyPair.certificate)
         Assert.assertEquals(keyPair2.privateKey, retrieved2.keyPair.privateKey)
     }
+
+    @Test(timeout = 30_000)
+    fun testConcurrentRefreshAndReads() {
+        val instanceCount = 20
+        val instances = (0 until instanceCount).map { i ->
+            Instance(
+                "https://vpn$i.example.com/",
+                TranslatableString("vpn$i"),
+                TranslatableString("konijn"),
+                null,
+                AuthorizationType.Local,
+                null,
+                false,
+                null,
+                ArrayList()
+            )
+        }
+        val configurations = (0 until instanceCount).map { i ->
+            AuthorizationServiceConfiguration(
+                Uri.parse("https://vpn$i.example.com/auth"),
+                Uri.parse("https://vpn$i.example.com/token"),
+                null
+            )
+        }
+        instances.forEachIndexed { i, instance ->
+            _historyService!!.cacheAuthorizationState(instance, AuthState(configurations[i]), Date())
+        }
+        val historyService = _historyService!!
+        val failure = AtomicReference<Throwable>()
+        val executor = Executors.newFixedThreadPool(8)
+        val start = CountDownLatch(1)
+        val done = CountDownLatch(8)
+        // Token refreshes, like the ones done by AppAuth on a background thread
+        repeat(4) { writer ->
+            executor.execute {
+                try {
+                    start.await()
+                    repeat(500) { round ->
+                        val i = (writer + round) % instanceCount
+                        historyService.refreshAuthState(AuthState(configurations[i]))
+                    }
+                } catch (ex: Throwable) {
+                    failure.compareAndSet(null, ex)
+                } finally {
+                    done.countDown()
+                }
+            }
+        }
+        // Reads, like the ones done by the UI
+        repeat(4) {
+            executor.execute {
+                try {
+                    start.await()
+                    repeat(2_000) { round ->
+                        val savedAuthStates = historyService.savedAuthStateList
+                        Assert.assertEquals(instanceCount, savedAuthStates.size)
+                        savedAuthStates.forEach { savedAuthState ->
+                            // Every entry must still belong to its own server
+                            Assert.assertEquals(
+                                savedAuthState.instance.sanitizedBaseURI + "/token",
+                                savedAuthState.authState.authorizationServiceConfiguration!!.tokenEndpoint.toString()
+                            )
+                        }
+                        Assert.assertNotNull(historyService.getSavedToken(instances[round % instanceCount]))
+                    }
+                } catch (ex: Throwable) {
+                    failure.compareAndSet(null, ex)
+                } finally {
+                    done.countDown()
+                }
+            }
+        }
+        start.countDown()
+        Assert.assertTrue(done.await(25, TimeUnit.SECONDS))
+        executor.shutdown()
+        failure.get()?.let { throw it }
+        reloadHistoryService(false)
+        Assert.assertEquals(instanceCount, _historyService!!.savedAuthStateList.size)
+    }
+
+    @Test(timeout = 10_000)
+    fun testChangeFeed() = runBlocking {
+        val instance = Instance(
+            "https://example.com/",
+            TranslatableString("example.com"),
+            TranslatableString("konijn"),
+            null,
+            AuthorizationType.Local,
+            null,
+            false,
+            null,
+            ArrayList()
+        )
+        val configuration = AuthorizationServiceConfiguration(
+            Uri.parse("https://example.com/auth"),
+            Uri.parse("https://example.com/token"),
+            null
+        )
+        val historyService = _historyService!!
+        val changes = async(start = CoroutineStart.UNDISPATCHED) {
+            historyService.changes.take(4).toList()
+        }
+        historyService.cacheAuthorizationState(instance, AuthState(configuration), Date())
+        historyService.refreshAuthState(AuthState(configuration))
+        historyService.storeSavedKeyPair(SavedKeyPair(instance, KeyPair(true, "cert", "pk")))
+        historyService.removeAllDataForInstance(instance)
+        Assert.assertEquals(
+            listOf(
+                HistoryChange.AuthAdded(instance),
+                HistoryChange.AuthRefreshed(instance),
+                HistoryChange.KeyPairStored(instance),
+                HistoryChange.AuthRemoved(instance)
+            ),
+            changes.await()
+        )
+    }
 }
@@ -16,15 +16,19 @@
  */
 package nl.eduvpn.app.service
 
+import ProfileV3API
 import android.content.Context
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.filters.LargeTest
 import nl.eduvpn.app.entity.*
+import nl.eduvpn.app.utils.FileSharedPreferences
+import nl.eduvpn.app.utils.ListSnapshotStore
 import org.junit.Assert
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import java.io.File
 
 /**
  * Tests for the preferences service.
@@ -35,11 +39,13 @@ import org.junit.runner.RunWith
 class PreferencesServiceTest {
 
     private lateinit var _preferencesService: PreferencesService
+    private lateinit var _context: Context
 
     @Before
     fun before() {
         val serializerService = SerializerService()
         val context = ApplicationProvider.getApplicationContext<Context>()
+        _context = context
         _preferencesService = PreferencesService(
             context,
             serializerService
@@ -94,6 +100,48 @@ class PreferencesServiceTest {
         Assert.assertEquals(discoveredAPIV3.tokenEndpoint, retrievedDiscoveredAPI.tokenEndpoint)
     }
 
+    @Test
+    fun testDiscoveredAPICacheSave() {
+        val first = DiscoveredAPIs(
+            DiscoveredAPIV3("https://a.example.com/api", "https://a.example.com/auth", "https://a.example.com/token")
+        )
+        val second = DiscoveredAPIs(
+            DiscoveredAPIV3("https://b.example.com/api", "https://b.example.com/auth", "https://b.example.com/token")
+        )
+        val cache = mapOf("https://a.example.com" to first, "https://b.example.com" to second)
+        _preferencesService.setDiscoveredAPICache(cache)
+        Assert.assertEquals(cache, _preferencesService.getDiscoveredAPICache())
+        // Read back from the stored value, instead of the decoded one kept in memory
+        val reopened = PreferencesService(_context, SerializerService())
+        Assert.assertEquals(cache, reopened.getDiscoveredAPICache())
+        _preferencesService.setDiscoveredAPICache(emptyMap())
+        Assert.assertTrue(_preferencesService.getDiscoveredAPICache().isEmpty())
+    }
+
+    @Test
+    fun testProfileListCacheSave() {
+        val profiles = listOf(
+            ProfileV3API("internet", TranslatableString("Internet"), listOf("openvpn", "wireguard")),
+            ProfileV3API("office", TranslatableString("Office"), listOf("wireguard"))
+        )
+        val fetchedAt = System.currentTimeMillis()
+        _preferencesService.setProfileListCache(
+            mapOf("https://a.example.com" to CachedProfileList(profiles, fetchedAt))
+        )
+        val reopened = PreferencesService(_context, SerializerService())
+        val cached = reopened.getProfileListCache()["https://a.example.com"]
+        Assert.assertNotNull(cached)
+        Assert.assertEquals(fetchedAt, cached!!.fetchedAt)
+        Assert.assertEquals(profiles.map { it.profileId }, cached.profiles.map { it.profileId })
+        Assert.assertEquals(profiles[1].vpnProtocolList, cached.profiles[1].vpnProtocolList)
+        Assert.assertEquals(
+            profiles[0].displayName.bestTranslation,
+            cached.profiles[0].displayName.bestTranslation
+        )
+        _preferencesService.setProfileListCache(emptyMap())
+        Assert.assertTrue(_preferencesService.getProfileListCache().isEmpty())
+    }
+
     @Test
     fun testLastKnownOrganizationListVersionSave() {
         val version = 121_323L
@@ -109,4 +157,171 @@ class PreferencesServiceTest {
         val retrievedVersion = _preferencesService.getLastKnownServerListVersion()
         Assert.assertEquals(version, retrievedVersion)
     }
+
+    @Test
+    fun testListValidatorsSave() {
+        val url = "https://disco.example.com/server_list.json"
+        val validators = ListValidators(1234L, "\"abc\"", "Mon, 01 Jan 2024 00:00:00 GMT", "untrusted comment: test", "AAEC")
+        _preferencesService.setListValidators(url, validators)
+        Assert.assertEquals(validators, _preferencesService.getListValidators(url))
+        Assert.assertNull(_preferencesService.getListValidators("https://disco.example.com/organization_list.json"))
+        _preferencesService.setListValidators(url, null)
+        Assert.assertNull(_preferencesService.getListValidators(url))
+    }
+
+    @Test
+    fun testServerListSnapshotSave() {
+        val instances = (0 until 50).map { i ->
+            Instance(
+                "https://example$i.com/",
+                TranslatableString(mapOf("en" to "Example $i", "nl" to "Voorbeeld $i")),
+                TranslatableString("keyword"),
+                null,
+                if (i % 2 == 0) AuthorizationType.Local else AuthorizationType.Distributed,
+                "NL",
+                false,
+                null,
+                listOf("mailto:support@example$i.com")
+            )
+        }
+        val savedAfter = System.currentTimeMillis()
+        _preferencesService.setServerList(ServerList(1234L, instances))
+        val storedServerList = _preferencesService.getServerList()
+        Assert.assertNotNull(storedServerList)
+        val (retrievedServerList, savedAt) = storedServerList!!
+        Assert.assertTrue(savedAt in savedAfter..System.currentTimeMillis())
+        Assert.assertEquals(1234L, retrievedServerList.version)
+        Assert.assertEquals(instances.size, retrievedServerList.serverList.size)
+        Assert.assertEquals(instances[37], retrievedServerList.serverList[37])
+        Assert.assertEquals(instances, retrievedServerList.serverList.toList())
+        _preferencesService.setServerList(null)
+        Assert.assertNull(_preferencesService.getServerList())
+    }
+
+    @Test
+    fun testSnapshotEntriesAreDecodedOnAccess() {
+        val directory = File(_context.cacheDir, "snapshot_test_" + System.nanoTime())
+        val snapshotStore = ListSnapshotStore(directory)
+        Assert.assertTrue(snapshotStore.write("numbers", 3L, listOf("1", "2", "3")) { it })
+        var decodeCount = 0
+        val snapshot = snapshotStore.read("numbers") { decodeCount++; it.toInt() }!!
+        Assert.assertEquals(3L, snapshot.version)
+        Assert.assertEquals(3, snapshot.entries.size)
+        Assert.assertEquals(0, decodeCount)
+        Assert.assertEquals(2, snapshot.entries[1])
+        Assert.assertEquals(2, snapshot.entries[1])
+        Assert.assertEquals(1, decodeCount)
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun testUndecodableSnapshotIsDropped() {
+        val directory = File(_context.cacheDir, "snapshot_test_" + System.nanoTime())
+        val snapshotStore = ListSnapshotStore(directory)
+        Assert.assertTrue(snapshotStore.write("numbers", 3L, listOf("1", "two")) { it })
+        val snapshot = snapshotStore.read("numbers") { it.toInt() }!!
+        Assert.assertEquals(1, snapshot.entries[0])
+        // The entry which can not be decoded removes the snapshot, so it is not read again
+        try {
+            snapshot.entries[1]
+            Assert.fail("Expected the entry to be rejected.")
+        } catch (ex: ListSnapshotStore.CorruptSnapshotException) {
+            // Expected
+        }
+        Assert.assertNull(snapshotStore.read("numbers") { it })
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun testLegacyPreferencesImport() {
+        val legacyPreferences = _context.getSharedPreferences("app_preferences", Context.MODE_PRIVATE)
+        legacyPreferences.edit()
+            .putInt(PreferencesService.KEY_STORAGE_VERSION, 6)
+            .putString(PreferencesService.KEY_PREFERRED_COUNTRY, "NL")
+            .putLong(PreferencesService.KEY_LAST_KNOWN_SERVER_LIST_VERSION, 42L)
+            .commit()
+        val directory = File(_context.cacheDir, "legacy_import_test_" + System.nanoTime())
+        val newPreferences = FileSharedPreferences.open(directory)
+        _preferencesService.importLegacyPreferencesIfNeeded(newPreferences, _context)
+        Assert.assertEquals(6, newPreferences.getInt(PreferencesService.KEY_STORAGE_VERSION, 1))
+        Assert.assertEquals("NL", newPreferences.getString(PreferencesService.KEY_PREFERRED_COUNTRY, null))
+        Assert.assertEquals(42L, newPreferences.getLong(PreferencesService.KEY_LAST_KNOWN_SERVER_LIST_VERSION, 0L))
+        Assert.assertTrue(legacyPreferences.all.isEmpty())
+        // Every key is stored in its own file
+        Assert.assertEquals(3, directory.listFiles()!!.size)
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun testFailedWriteIsRetried() {
+        val directory = File(_context.cacheDir, "failed_write_test_" + System.nanoTime())
+        val preferences = FileSharedPreferences.open(directory)
+        Assert.assertTrue(directory.setWritable(false))
+        Assert.assertFalse(preferences.edit().putString(PreferencesService.KEY_PREFERRED_COUNTRY, "NL").commit())
+        Assert.assertEquals(0, directory.listFiles()!!.size)
+        Assert.assertTrue(directory.setWritable(true))
+        // The value which could not be written is still pending, so the next commit writes it as well
+        Assert.assertTrue(preferences.edit().putInt(PreferencesService.KEY_STORAGE_VERSION, 7).commit())
+        Assert.assertEquals(2, directory.listFiles()!!.size)
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun testDecodedObjectCache() {
+        val instance = Instance(
+            "http://example.com",
+            TranslatableString("Example"),
+            TranslatableString("konijn"),
+            null,
+            AuthorizationType.Local,
+            null,
+            false,
+            null,
+            ArrayList()
+        )
+        _preferencesService.setCurrentInstance(instance)
+        val hitsBefore = _preferencesService.cacheHitCount
+        val missesBefore = _preferencesService.cacheMissCount
+        // The written object is returned as-is, without decoding it again
+        Assert.assertSame(instance, _preferencesService.getCurrentInstance())
+        Assert.assertSame(instance, _preferencesService.getCurrentInstance())
+        Assert.assertEquals(hitsBefore + 2, _preferencesService.cacheHitCount)
+        Assert.assertEquals(missesBefore, _preferencesService.cacheMissCount)
+        // A direct change of the stored value is picked up
+        _preferencesService.getSharedPreferences().edit()
+            .putString(PreferencesService.KEY_INSTANCE, SerializerService().serializeInstance(instance))
+            .commit()
+        val decodedInstance = _preferencesService.getCurrentInstance()
+        Assert.assertNotSame(instance, decodedInstance)
+        Assert.assertEquals(instance, decodedInstance)
+        Assert.assertEquals(missesBefore + 1, _preferencesService.cacheMissCount)
+        _preferencesService.setCurrentInstance(null)
+        Assert.assertNull(_preferencesService.getCurrentInstance())
+    }
+
+    @Test
+    fun testTransaction() {
+        _preferencesService.setPreferredCountry(null)
+        _preferencesService.setLastKnownServerListVersion(null)
+        _preferencesService.transaction {
+            setPreferredCountry("DE")
+            setPreferredCountry("NL")
+            setLastKnownServerListVersion(7L)
+            // Nothing is written before the transaction completes
+            Assert.assertNull(getPreferredCountry())
+            Assert.assertNull(getLastKnownServerListVersion())
+        }
+        Assert.assertEquals("NL", _preferencesService.getPreferredCountry())
+        Assert.assertEquals(7L, _preferencesService.getLastKnownServerListVersion())
+
+        try {
+            _preferencesService.transaction {
+                setPreferredCountry("HU")
+                throw IllegalStateException("Abort")
+            }
+        } catch (ex: IllegalStateException) {
+            // Expected
+        }
+        Assert.assertEquals("NL", _preferencesService.getPreferredCountry())
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package nl.eduvpn.app.service
+
+import ProfileV3API
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import kotlinx.coroutines.runBlocking
+import net.openid.appauth.AuthState
+import nl.eduvpn.app.entity.CachedProfileList
+import nl.eduvpn.app.entity.DiscoveredAPIV3
+import nl.eduvpn.app.entity.TranslatableString
+import nl.eduvpn.app.entity.v3.Info
+import nl.eduvpn.app.entity.v3.ProfileV3APIList
+import nl.eduvpn.app.service.ServiceFixtures.BASE_URI
+import nl.eduvpn.app.service.ServiceFixtures.INSTANCE
+import nl.eduvpn.app.service.ServiceFixtures.waitFor
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Tests that stored profile lists are returned right away, refreshed when they are old, and fetched again once invalidated.
+ * The fetch function passed to the service counts the requests instead of asking a server.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class ProfileListServiceTest {
+
+    companion object {
+        private val DISCOVERED_API = DiscoveredAPIV3(
+            "$BASE_URI/api",
+            "$BASE_URI/authorize",
+            "$BASE_URI/token"
+        )
+
+        private val OLD_PROFILES = listOf(
+            ProfileV3API("office", TranslatableString("Office"), listOf("wireguard"))
+        )
+        private val NEW_PROFILES = listOf(
+            ProfileV3API("internet", TranslatableString("Internet"), listOf("openvpn", "wireguard"))
+        )
+    }
+
+    private lateinit var preferencesService: PreferencesService
+    private lateinit var profileListService: ProfileListService
+
+    // The number of times the fake server was asked for the profiles
+    private val requestCount = AtomicInteger()
+
+    @Before
+    fun before() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        preferencesService = PreferencesService(context, SerializerService())
+        preferencesService.setProfileListCache(emptyMap())
+        profileListService = ProfileListService({ _, _ ->
+            requestCount.incrementAndGet()
+            Info(ProfileV3APIList(NEW_PROFILES))
+        }, preferencesService)
+    }
+
+    @After
+    fun after() {
+        preferencesService.setProfileListCache(emptyMap())
+    }
+
+    @Test
+    fun testFetchedListIsStored() = runBlocking {
+        val fetched = profileListService.getProfiles(INSTANCE, DISCOVERED_API, AuthState())
+        Assert.assertFalse(fetched.isCached)
+        Assert.assertEquals(NEW_PROFILES, fetched.profiles)
+        // A recent list is returned without asking the server again
+        val cached = profileListService.getProfiles(INSTANCE, DISCOVERED_API, AuthState())
+        Assert.assertTrue(cached.isCached)
+        Assert.assertEquals(NEW_PROFILES.map { it.profileId }, cached.profiles.map { it.profileId })
+        Assert.assertEquals(fetched.fetchedAt, cached.fetchedAt)
+        Assert.assertEquals(1, requestCount.get())
+    }
+
+    @Test
+    fun testOldListIsRefreshed() = runBlocking {
+        val fetchedAt = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2)
+        preferencesService.setProfileListCache(mapOf(BASE_URI to CachedProfileList(OLD_PROFILES, fetchedAt)))
+        val result = profileListService.getProfiles(INSTANCE, DISCOVERED_API, AuthState())
+        Assert.assertTrue(result.isCached)
+        Assert.assertEquals(OLD_PROFILES, result.profiles)
+        Assert.assertEquals(fetchedAt, result.fetchedAt)
+        // Compared by id, the display names of the stored list might be decoded into another form
+        waitFor {
+            preferencesService.getProfileListCache()[BASE_URI]?.profiles?.map { it.profileId } ==
+                    NEW_PROFILES.map { it.profileId }
+        }
+        Assert.assertEquals(1, requestCount.get())
+    }
+
+    @Test
+    fun testInvalidateReportsCachedList() = runBlocking {
+        // Nothing was returned yet, so there is nothing to fetch again
+        Assert.assertFalse(profileListService.invalidate(INSTANCE))
+        preferencesService.setProfileListCache(
+            mapOf(BASE_URI to CachedProfileList(OLD_PROFILES, System.currentTimeMillis()))
+        )
+        profileListService.getProfiles(INSTANCE, DISCOVERED_API, AuthState())
+        Assert.assertTrue(profileListService.invalidate(INSTANCE))
+        Assert.assertFalse(preferencesService.getProfileListCache().containsKey(BASE_URI))
+        // The list fetched afterwards comes from the server, so the selected profile is really gone
+        val fetched = profileListService.getProfiles(INSTANCE, DISCOVERED_API, AuthState())
+        Assert.assertFalse(fetched.isCached)
+        Assert.assertEquals(NEW_PROFILES, fetched.profiles)
+        Assert.assertFalse(profileListService.invalidate(INSTANCE))
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package nl.eduvpn.app.service
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import nl.eduvpn.app.service.RetryService.Endpoint
+import nl.eduvpn.app.service.RetryService.RetryPolicy
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.IOException
+import java.net.ConnectException
+import java.net.SocketTimeoutException
+
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class RetryServiceTest {
+
+    companion object {
+        private val FAST_POLICY =
+            RetryPolicy(maxAttempts = 3, baseDelayMs = 1, maxDelayMs = 4, retryTimeouts = false)
+    }
+
+    private lateinit var retryService: RetryService
+
+    @Before
+    fun before() {
+        retryService = RetryService()
+    }
+
+    @Test
+    fun testRetriesUntilSuccess() = runBlocking {
+        var attempts = 0
+        val result = retryService.withRetries(Endpoint.ApiRead, FAST_POLICY) {
+            attempts++
+            if (attempts < 3) {
+                throw ConnectException("Connection refused")
+            }
+            "success"
+        }
+        Assert.assertEquals("success", result)
+        Assert.assertEquals(3, attempts)
+        val metrics = retryService.getMetrics()
+        Assert.assertEquals(2L, metrics.retries[Endpoint.ApiRead])
+        Assert.assertEquals(0L, metrics.retries[Endpoint.Discovery])
+        Assert.assertEquals(1L, metrics.recoveredCalls)
+        Assert.assertEquals(0L, metrics.failedCalls)
+    }
+
+    @Test
+    fun testGivesUpAfterMaxAttempts() = runBlocking {
+        var attempts = 0
+        try {
+            retryService.withRetries(Endpoint.Discovery, FAST_POLICY) {
+                attempts++
+                throw ConnectException("Connection refused")
+            }
+            Assert.fail("Expected the call to fail")
+        } catch (ex: ConnectException) {
+            // Expected
+        }
+        Assert.assertEquals(FAST_POLICY.maxAttempts, attempts)
+        Assert.assertEquals(1L, retryService.getMetrics().failedCalls)
+    }
+
+    @Test
+    fun testDoesNotRetryTimeoutsWhenDisallowed() = runBlocking {
+        var attempts = 0
+        try {
+            retryService.withRetries(Endpoint.ApiWrite, FAST_POLICY) {
+                attempts++
+                throw SocketTimeoutException("timeout")
+            }
+            Assert.fail("Expected the call to fail")
+        } catch (ex: SocketTimeoutException) {
+            // Expected
+        }
+        Assert.assertEquals(1, attempts)
+        // Other errors are not related to reaching the server, and are never retried
+        attempts = 0
+        try {
+            retryService.withRetries(Endpoint.ApiRead, FAST_POLICY.copy(retryTimeouts = true)) {
+                attempts++
+                throw IOException("Unsuccessful response with status code 500")
+            }
+            Assert.fail("Expected the call to fail")
+        } catch (ex: IOException) {
+            // Expected
+        }
+        Assert.assertEquals(1, attempts)
+        Assert.assertEquals(0L, retryService.getMetrics().retries.values.sum())
+    }
+
+    @Test
+    fun testBudgetLimitsRetries() = runBlocking {
+        val policy = FAST_POLICY.copy(maxAttempts = 100)
+        var attempts = 0
+        try {
+            retryService.withRetries(Endpoint.Discovery, policy) {
+                attempts++
+                throw ConnectException("Connection refused")
+            }
+            Assert.fail("Expected the call to fail")
+        } catch (ex: ConnectException) {
+            // Expected
+        }
+        // The budget allows 10 retries after the first attempt
+        Assert.assertEquals(11, attempts)
+        val metrics = retryService.getMetrics()
+        Assert.assertEquals(10L, metrics.retries[Endpoint.Discovery])
+        Assert.assertEquals(1L, metrics.budgetRejections)
+        // Ten successful calls pay for a single retry
+        repeat(10) {
+            retryService.withRetries(Endpoint.ApiRead, policy) { Unit }
+        }
+        attempts = 0
+        try {
+            retryService.withRetries(Endpoint.ApiRead, policy) {
+                attempts++
+                throw ConnectException("Connection refused")
+            }
+            Assert.fail("Expected the call to fail")
+        } catch (ex: ConnectException) {
+            // Expected
+        }
+        Assert.assertEquals(2, attempts)
+    }
+
+    @Test
+    fun testCancelledWhileWaiting() = runBlocking {
+        var attempts = 0
+        val job = launch(start = CoroutineStart.UNDISPATCHED) {
+            retryService.withRetries(Endpoint.ApiRead, FAST_POLICY.copy(baseDelayMs = 60_000, maxDelayMs = 60_000)) {
+                attempts++
+                throw ConnectException("Connection refused")
+            }
+        }
+        // The coroutine is now suspended, waiting for the next attempt
+        job.cancel()
+        job.join()
+        Assert.assertTrue(job.isCancelled)
+        Assert.assertEquals(1, attempts)
+    }
+}
@@ -113,6 +113,73 @@ class SecurityServiceTest {
         Assert.assertTrue(securityService.verifyMinisign(toVerify, signature))
     }
 
+    @Test
+    fun testMinisignVerifyStreamingHashSuccess() {
+        val toVerify = "test text signed by eduvpn dev\n".toByteArray()
+        val signature = """
+            untrusted comment: signature from minisign secret key
+            RUTVSfCL4u2OJsrz7ZONagn+2Z/KzzvDXSCOAV2qoKm8hC5xs6j8xymFVDmkG0kGgrAITLOBVFAA5lYjN+sCwIo8tAk2belgjQk=
+            trusted comment: timestamp:1638884585	file:test.txt	hashed
+            9+i1fAMvR6KcA5arwb6d8QyZbL260WgzT6dq/iD+VUxbWixNFmZuDVd0/LjvyEb8l9kI1+fM+e7Ci3YWnz3eAA==
+            """.trimIndent()
+        // Feed the message in small parts, like a download would
+        val hasher = SecurityService.MessageHasher()
+        toVerify.toList().chunked(7).forEach { part ->
+            val bytes = part.toByteArray()
+            hasher.update(bytes, bytes.size)
+        }
+        Assert.assertTrue(securityService.verifyMinisign(toVerify, signature, hasher.digest()))
+    }
+
+    @Test
+    fun testHashBackendsAgree() {
+        val message = ByteArray(1000) { (it * 31).toByte() }
+        val jvmHasher = SecurityService.MessageHasher(message.size.toLong())
+        // Unknown sizes always use libsodium
+        val sodiumHasher = SecurityService.MessageHasher()
+        Assert.assertEquals(SecurityService.CryptoBackend.Sodium, sodiumHasher.backend)
+        jvmHasher.update(message, message.size)
+        sodiumHasher.update(message, message.size)
+        Assert.assertArrayEquals(sodiumHasher.digest(), jvmHasher.digest())
+    }
+
+    @Test
+    fun testSignatureBackendsAgree() {
+        val publicKey = hex("d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a")
+        val signature = hex(
+            "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e06522490155" +
+                    "5fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b"
+        )
+        val identity = hex("0100000000000000000000000000000000000000000000000000000000000000")
+        val identitySignature = identity + ByteArray(32)
+        // S + L, the same scalar as S, but not canonically encoded
+        val nonCanonicalS = hex("4c8c7872aa064e049dbb3013fbf29380d25bf5f0595bbe24655141438e7a101b")
+        // Signature, message, public key, and whether it is valid
+        val vectors = listOf(
+            Triple(signature, ByteArray(0), publicKey) to true,
+            Triple(signature, byteArrayOf(1), publicKey) to false,
+            Triple(signature.copyOfRange(0, 32) + nonCanonicalS, ByteArray(0), publicKey) to false,
+            Triple(identitySignature, ByteArray(0), identity) to false,
+            Triple(identitySignature, "any message".toByteArray(), identity) to false,
+            Triple(identitySignature, ByteArray(0), hex("0000000000000000000000000000000000000000000000000000000000000000")) to false,
+            Triple(identitySignature, ByteArray(0), hex("ecffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f")) to false,
+            Triple(identitySignature, ByteArray(0), hex("c7176a703d4dd84fba3c0b760d10670f2a2053fa2c39ccc64ec7fd7792ac037a")) to false,
+            Triple(identitySignature, ByteArray(0), hex("26e8958fc2b227b045c3f489f2ef98f0d5dfac05d3c63339b13802886d53fc05")) to false,
+            Triple(identitySignature, ByteArray(0), hex("eeffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f")) to false,
+            Triple(identitySignature, ByteArray(0), hex("0100000000000000000000000000000000000000000000000000000000000080")) to false,
+            Triple(identity + signature.copyOfRange(32, 64), ByteArray(0), publicKey) to false
+        )
+        vectors.forEachIndexed { index, (input, expected) ->
+            val (vectorSignature, message, vectorPublicKey) = input
+            val jvmResult = SecurityService.verifySignature(vectorSignature, message, vectorPublicKey, SecurityService.CryptoBackend.Jvm)
+            val sodiumResult = SecurityService.verifySignature(vectorSignature, message, vectorPublicKey, SecurityService.CryptoBackend.Sodium)
+            Assert.assertEquals("Vector $index", sodiumResult, jvmResult)
+            Assert.assertEquals("Vector $index", expected, jvmResult)
+        }
+    }
+
+    private fun hex(value: String) = ByteArray(value.length / 2) { value.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+
     fun testMinisignVerifyHashedFail() {
         val toVerify =
             "a completely different text which has the same signature as the success text".toByteArray()
@@ -18,6 +18,8 @@
 package nl.eduvpn.app.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import android.net.Uri;
 
@@ -27,11 +29,14 @@ import androidx.test.filters.LargeTest;
 import net.openid.appauth.AuthState;
 import net.openid.appauth.AuthorizationServiceConfiguration;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -42,6 +47,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
+import kotlinx.serialization.json.Json;
+
 import nl.eduvpn.app.entity.AuthorizationType;
 import nl.eduvpn.app.entity.DiscoveredAPI;
 import nl.eduvpn.app.entity.DiscoveredAPIV3;
@@ -52,6 +59,7 @@ import nl.eduvpn.app.entity.Organization;
 import nl.eduvpn.app.entity.OrganizationList;
 import nl.eduvpn.app.entity.Profile;
 import nl.eduvpn.app.entity.SavedAuthState;
+import nl.eduvpn.app.entity.SavedAuthStateList;
 import nl.eduvpn.app.entity.SavedKeyPair;
 import nl.eduvpn.app.entity.Settings;
 import nl.eduvpn.app.entity.TranslatableString;
@@ -123,6 +131,20 @@ public class SerializerServiceTest {
         assertEquals(discoveredAPIV3.getTokenEndpoint(), deserializedDiscoveredAPI.getTokenEndpoint());
     }
 
+    @Test
+    public void testDiscoveredAPIStreamDeserialization() throws SerializerService.UnknownFormatException {
+        DiscoveredAPIV3 discoveredAPIV3 = new DiscoveredAPIV3("base_uri", "auth_endpoint", "token_endpoint");
+        String serializedDiscoveredAPIs = _serializerService.serializeDiscoveredAPIs(new DiscoveredAPIs(discoveredAPIV3));
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(serializedDiscoveredAPIs.getBytes(StandardCharsets.UTF_8));
+        DiscoveredAPIs streamed = _serializerService.deserializeDiscoveredAPIs(inputStream, StandardCharsets.UTF_8);
+        assertEquals(discoveredAPIV3.getAuthorizationEndpoint(), streamed.getV3().getAuthorizationEndpoint());
+        assertEquals(discoveredAPIV3.getApiEndpoint(), streamed.getV3().getApiEndpoint());
+        // Other charsets are decoded from text
+        inputStream = new ByteArrayInputStream(serializedDiscoveredAPIs.getBytes(StandardCharsets.UTF_16));
+        streamed = _serializerService.deserializeDiscoveredAPIs(inputStream, StandardCharsets.UTF_16);
+        assertEquals(discoveredAPIV3.getTokenEndpoint(), streamed.getV3().getTokenEndpoint());
+    }
+
     @SuppressWarnings("ConstantConditions")
     @Test
     public void testSavedTokenListSerialization() throws SerializerService.UnknownFormatException {
@@ -153,6 +175,62 @@ public class SerializerServiceTest {
         }
     }
 
+    @Test
+    public void testDistributedAuthStateStoredOnce() throws Exception {
+        AuthState sharedState = new AuthState(new AuthorizationServiceConfiguration(Uri.parse("http://eduvpn.org/auth"), Uri.parse("http://eduvpn.org/token"), null));
+        AuthState localState = new AuthState(new AuthorizationServiceConfiguration(Uri.parse("http://example.com/auth"), Uri.parse("http://example.com/token"), null));
+        List<SavedAuthState> list = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            Instance instance = new Instance("https://country" + i + ".example.org/", new TranslatableString("country" + i), new TranslatableString("konijn"), null, AuthorizationType.Distributed, "C" + i, false, null, new ArrayList<>());
+            list.add(new SavedAuthState(instance, sharedState, new Date()));
+        }
+        Instance localInstance = new Instance("https://example.com/", new TranslatableString("example.com"), new TranslatableString("konijn"), null, AuthorizationType.Local, null, false, null, new ArrayList<>());
+        list.add(new SavedAuthState(localInstance, localState, new Date()));
+        String serializedList = _serializerService.serializeSavedAuthStateList(list);
+        // The shared tokens are stored once, only the local instance has its own tokens
+        JSONObject serializedJson = new JSONObject(serializedList);
+        assertTrue(serializedJson.has("distributed_auth_state"));
+        JSONArray entries = serializedJson.getJSONArray("data");
+        for (int i = 0; i < entries.length(); ++i) {
+            assertEquals(i == entries.length() - 1, entries.getJSONObject(i).has("auth_state"));
+        }
+        List<SavedAuthState> deserializedList = _serializerService.deserializeSavedAuthStateList(serializedList);
+        assertEquals(list.size(), deserializedList.size());
+        for (int i = 0; i < list.size(); ++i) {
+            assertEquals(list.get(i).getInstance().getSanitizedBaseURI(), deserializedList.get(i).getInstance().getSanitizedBaseURI());
+            assertEquals(list.get(i).getAuthState().jsonSerializeString(), deserializedList.get(i).getAuthState().jsonSerializeString());
+        }
+    }
+
+    @Test
+    public void testLegacySavedTokenListDeserialization() throws SerializerService.UnknownFormatException {
+        // Before the distributed auth state was shared, every entry had its own copy
+        Instance instance = new Instance("https://country.example.org/", new TranslatableString("country"), new TranslatableString("konijn"), null, AuthorizationType.Distributed, "NL", false, null, new ArrayList<>());
+        AuthState state = new AuthState(new AuthorizationServiceConfiguration(Uri.parse("http://eduvpn.org/auth"), Uri.parse("http://eduvpn.org/token"), null));
+        SavedAuthStateList legacyList = new SavedAuthStateList(
+                Collections.singletonList(new SavedAuthStateList.Entry(instance, state, new Date())), null, null);
+        String json = Json.Default.encodeToString(SavedAuthStateList.Companion.serializer(), legacyList);
+        List<SavedAuthState> deserializedList = _serializerService.deserializeSavedAuthStateList(json);
+        assertEquals(1, deserializedList.size());
+        assertEquals(instance.getSanitizedBaseURI(), deserializedList.get(0).getInstance().getSanitizedBaseURI());
+        assertEquals(state.jsonSerializeString(), deserializedList.get(0).getAuthState().jsonSerializeString());
+    }
+
+    @Test
+    public void testAuthStateStoredAsObject() throws Exception {
+        Instance instance = new Instance("https://example.com/", new TranslatableString("example.com"), new TranslatableString("konijn"), null, AuthorizationType.Local, null, false, null, new ArrayList<>());
+        AuthState state = new AuthState(new AuthorizationServiceConfiguration(Uri.parse("http://example.com/auth"), Uri.parse("http://example.com/token"), null));
+        String serializedList = _serializerService.serializeSavedAuthStateList(Collections.singletonList(new SavedAuthState(instance, state, new Date())));
+        JSONObject entry = new JSONObject(serializedList).getJSONArray("data").getJSONObject(0);
+        assertTrue(entry.get("auth_state") instanceof JSONObject);
+        // Earlier versions stored the auth state as an escaped JSON string
+        entry.put("auth_state", state.jsonSerializeString());
+        JSONObject legacyJson = new JSONObject().put("data", new JSONArray().put(entry));
+        List<SavedAuthState> deserializedList = _serializerService.deserializeSavedAuthStateList(legacyJson.toString());
+        assertEquals(1, deserializedList.size());
+        assertEquals(state.jsonSerializeString(), deserializedList.get(0).getAuthState().jsonSerializeString());
+    }
+
     @Test
     public void testKeyPairSerialization() throws SerializerService.UnknownFormatException {
         KeyPair keyPair = new KeyPair(false, "cert1", "pk1");
@@ -207,7 +285,7 @@ public class SerializerServiceTest {
         Organization organization3 = new Organization("orgid-3", new TranslatableString("display name - 3"), new TranslatableString(), "http://server.info/url3");
         List<Organization> organizations = Arrays.asList(organization1, organization2, organization3);
         OrganizationList organizationList = new OrganizationList(12345L, organizations);
-        JSONObject serializedOrganizationList = _serializerService.serializeOrganizationList(organizationList);
+        String serializedOrganizationList = _serializerService.serializeOrganizationList(organizationList);
         OrganizationList deserializedOrganizationList = _serializerService.deserializeOrganizationList(serializedOrganizationList);
         for (int i = 0; i < organizations.size(); ++i) {
             assertEquals(organizations.get(i).getDisplayName(), deserializedOrganizationList.getOrganizationList().get(i).getDisplayName());
@@ -218,6 +296,44 @@ public class SerializerServiceTest {
         }
     }
 
+    @Test
+    public void testOrganizationListStreamDeserialization() throws SerializerService.UnknownFormatException {
+        String json = "{\"v\": 42, \"organization_list\": [" +
+                "{\"org_id\": \"orgid-1\", \"display_name\": \"display name - 1\", \"secure_internet_home\": \"https://server.info/url\"}," +
+                "{\"org_id\": \"orgid-2\", \"display_name\": {\"en\": \"english name\", \"nl\": \"dutch name\"}, \"keyword_list\": {\"en\": \"keyword\"}, \"unknown_key\": [1, 2]}," +
+                "{\"org_id\": \"orgid-3\", \"display_name\": null, \"keyword_list\": \"plain keyword\"}" +
+                "]}";
+        OrganizationList organizationList = _serializerService.deserializeOrganizationList(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        assertEquals(42L, organizationList.getVersion());
+        assertEquals(3, organizationList.getOrganizationList().size());
+        Organization organization1 = organizationList.getOrganizationList().get(0);
+        assertEquals("orgid-1", organization1.getOrgId());
+        assertEquals(new TranslatableString("display name - 1"), organization1.getDisplayName());
+        assertEquals(new TranslatableString(), organization1.getKeywordList());
+        assertEquals("https://server.info/url", organization1.getSecureInternetHome());
+        Organization organization2 = organizationList.getOrganizationList().get(1);
+        assertEquals("dutch name", organization2.getDisplayName().getTranslations().get("nl"));
+        assertEquals(new TranslatableString("keyword"), organization2.getKeywordList());
+        assertNull(organization2.getSecureInternetHome());
+        Organization organization3 = organizationList.getOrganizationList().get(2);
+        assertEquals(new TranslatableString(), organization3.getDisplayName());
+        assertEquals(new TranslatableString("plain keyword"), organization3.getKeywordList());
+    }
+
+    @Test
+    public void testLegacyOrganizationDeserialization() throws SerializerService.UnknownFormatException {
+        // Format written by the previous, hand-written serializer
+        String legacyJson = "{\"org_id\":\"orgid-1\",\"display_name\":{\"en\":\"display name\"},\"keyword_list\":null}";
+        Organization organization = _serializerService.deserializeOrganization(legacyJson);
+        assertEquals("orgid-1", organization.getOrgId());
+        assertEquals(new TranslatableString("display name"), organization.getDisplayName());
+        assertEquals(new TranslatableString(), organization.getKeywordList());
+        assertNull(organization.getSecureInternetHome());
+        Organization reserializedOrganization = _serializerService.deserializeOrganization(_serializerService.serializeOrganization(organization));
+        assertEquals(organization, reserializedOrganization);
+    }
+
     @Test
     public void testProfileListSerialization() throws SerializerService.UnknownFormatException {
         Profile profile1 = new Profile("profile-id1", new TranslatableString("display-name1"), 2277227722772277L);
@@ -0,0 +1,126 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package nl.eduvpn.app.service
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import kotlinx.coroutines.runBlocking
+import nl.eduvpn.app.Constants
+import nl.eduvpn.app.entity.DiscoveredAPIV3
+import nl.eduvpn.app.entity.DiscoveredAPIs
+import nl.eduvpn.app.service.ServiceFixtures.BASE_URI
+import nl.eduvpn.app.service.ServiceFixtures.INSTANCE
+import nl.eduvpn.app.service.ServiceFixtures.waitFor
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+
+/**
+ * Tests that stored discovery documents are returned right away and replaced when the server changes them.
+ * The fetch function passed to the service stands in for the server, and records the URLs it is asked for.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class ServerDiscoveryServiceTest {
+
+    companion object {
+        private val OLD_APIS = DiscoveredAPIs(
+            DiscoveredAPIV3("$BASE_URI/old/api", "$BASE_URI/old/authorize", "$BASE_URI/old/token")
+        )
+        private val NEW_APIS = DiscoveredAPIs(
+            DiscoveredAPIV3("$BASE_URI/new/api", "$BASE_URI/new/authorize", "$BASE_URI/new/token")
+        )
+    }
+
+    private lateinit var preferencesService: PreferencesService
+    private lateinit var serverDiscoveryService: ServerDiscoveryService
+
+    // The document the fake server returns, and the URLs it was requested at
+    @Volatile
+    private var serverAPIs = NEW_APIS
+    private val requestedUrls = Collections.synchronizedList(ArrayList<String>())
+
+    @Before
+    fun before() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        preferencesService = PreferencesService(context, SerializerService())
+        preferencesService.setDiscoveredAPICache(emptyMap())
+        preferencesService.setCurrentInstance(null)
+        serverDiscoveryService = ServerDiscoveryService({ url ->
+            requestedUrls.add(url)
+            serverAPIs
+        }, preferencesService)
+    }
+
+    @After
+    fun after() {
+        preferencesService.setDiscoveredAPICache(emptyMap())
+        preferencesService.setCurrentInstance(null)
+        preferencesService.setCurrentDiscoveredAPI(null)
+    }
+
+    @Test
+    fun testMissingDocumentIsFetched() = runBlocking {
+        val result = serverDiscoveryService.getDiscoveredAPIs(INSTANCE)
+        Assert.assertFalse(result.isCached)
+        Assert.assertEquals(NEW_APIS, result.discoveredAPIs)
+        Assert.assertEquals(listOf(BASE_URI + Constants.API_DISCOVERY_POSTFIX), requestedUrls)
+        Assert.assertEquals(NEW_APIS, preferencesService.getDiscoveredAPICache()[BASE_URI])
+    }
+
+    @Test
+    fun testStoredDocumentIsReturnedAndRevalidated() = runBlocking {
+        preferencesService.setDiscoveredAPICache(mapOf(BASE_URI to OLD_APIS))
+        preferencesService.setCurrentInstance(INSTANCE)
+        val result = serverDiscoveryService.getDiscoveredAPIs(INSTANCE)
+        Assert.assertTrue(result.isCached)
+        Assert.assertEquals(OLD_APIS, result.discoveredAPIs)
+        // The changed document replaces the stored one, and the endpoints of the current connection
+        waitFor {
+            preferencesService.getDiscoveredAPICache()[BASE_URI] == NEW_APIS &&
+                    preferencesService.getCurrentDiscoveredAPI() == NEW_APIS.v3
+        }
+        Assert.assertEquals(1, requestedUrls.size)
+    }
+
+    @Test
+    fun testInvalidatedDocumentIsFetchedAgain() = runBlocking {
+        serverAPIs = OLD_APIS
+        serverDiscoveryService.getDiscoveredAPIs(INSTANCE)
+        serverDiscoveryService.invalidate(INSTANCE)
+        Assert.assertFalse(preferencesService.getDiscoveredAPICache().containsKey(BASE_URI))
+        serverAPIs = NEW_APIS
+        val result = serverDiscoveryService.getDiscoveredAPIs(INSTANCE)
+        Assert.assertFalse(result.isCached)
+        Assert.assertEquals(NEW_APIS, result.discoveredAPIs)
+        Assert.assertEquals(2, requestedUrls.size)
+    }
+
+    @Test
+    fun testDocumentWithoutV3IsNotStored() = runBlocking {
+        serverAPIs = DiscoveredAPIs(null)
+        val result = serverDiscoveryService.getDiscoveredAPIs(INSTANCE)
+        Assert.assertNull(result.discoveredAPIs.v3)
+        Assert.assertFalse(preferencesService.getDiscoveredAPICache().containsKey(BASE_URI))
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package nl.eduvpn.app.service
+
+import android.os.SystemClock
+import nl.eduvpn.app.entity.AuthorizationType
+import nl.eduvpn.app.entity.Instance
+import nl.eduvpn.app.entity.TranslatableString
+import org.junit.Assert
+
+/**
+ * The server and helpers shared by the tests of the services which cache server responses.
+ */
+object ServiceFixtures {
+
+    const val BASE_URI = "https://vpn.example.com"
+
+    val INSTANCE = Instance(
+        "$BASE_URI/",
+        TranslatableString("Example"),
+        TranslatableString("example"),
+        null,
+        AuthorizationType.Local,
+        null,
+        true,
+        null,
+        ArrayList()
+    )
+
+    /**
+     * Waits until work in the background made a condition true, and fails the test if it does not in time.
+     */
+    fun waitFor(timeoutMs: Long = 5_000L, condition: () -> Boolean) {
+        val deadline = SystemClock.elapsedRealtime() + timeoutMs
+        while (!condition()) {
+            Assert.assertTrue("Timed out waiting for the background work.", SystemClock.elapsedRealtime() < deadline)
+            Thread.sleep(10)
+        }
+    }
+}
@@ -39,8 +39,6 @@ object Constants {
 
     val GONE_HTTP_CODES = intArrayOf(404, 410)
 
-    @JvmField
-    val LOCALE = Locale.getDefault()
     val ENGLISH_LOCALE = Locale.ENGLISH
 
     const val SERVER_LIST_VALID_FOR_MS: Long = 3600000 // 1 hour
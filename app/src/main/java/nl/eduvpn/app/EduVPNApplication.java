@@ -20,8 +20,15 @@ package nl.eduvpn.app;
 import android.content.Context;
 import android.os.StrictMode;
 
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.ProcessLifecycleOwner;
+
+import javax.inject.Inject;
+
 import de.blinkt.openvpn.core.ICSOpenVPNApplication;
 import nl.eduvpn.app.inject.EduVPNComponent;
+import nl.eduvpn.app.service.HistoryService;
 
 /**
  * Application object which keeps track of the app lifecycle.
@@ -29,6 +36,9 @@ import nl.eduvpn.app.inject.EduVPNComponent;
  */
 public class EduVPNApplication extends ICSOpenVPNApplication {
 
+    @Inject
+    protected HistoryService _historyService;
+
     private EduVPNComponent _component;
 
     @Override
@@ -36,6 +46,15 @@ public class EduVPNApplication extends ICSOpenVPNApplication {
         super.onCreate();
         // Set up the injector
         _component = EduVPNComponent.Initializer.init(this);
+        _component.inject(this);
+        // The process might be killed while in the background, so the pending history and preference writes
+        // must be finished before that. Blocks the main thread like the platform preferences do,
+        // but only once the app is not visible.
+        ProcessLifecycleOwner.get().getLifecycle().addObserver((LifecycleEventObserver)(source, event) -> {
+            if (event == Lifecycle.Event.ON_STOP) {
+                _historyService.flush();
+            }
+        });
 
         // The base class sets a strict VM policy for debug builds, which do not work well with OkHttp
         // (see this issue: https://github.com/square/okhttp/issues/3537)
@@ -45,7 +45,7 @@ sealed class DiscoveredAPI {
 }
 
 @Serializable
-class DiscoveredAPIV3(
+data class DiscoveredAPIV3(
 
     @SerialName("api_endpoint")
     val apiEndpoint: String,
@@ -18,6 +18,7 @@ package nl.eduvpn.app.entity
 
 import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.Transient
 import nl.eduvpn.app.utils.serializer.TranslatableStringSerializer
 
 /**
@@ -57,9 +58,15 @@ data class Instance(
     val supportContact: List<String> = emptyList()
 ) {
 
-    val sanitizedBaseURI: String
-        get() = if (baseURI.endsWith("/")) {
-            baseURI.substring(0, baseURI.length - 1)
-        } else baseURI
+    /**
+     * The base URI without the trailing slash. Used as the identity of the server, so it is computed once,
+     * and interned so all instances of the same server share the same string.
+     */
+    @Transient
+    val sanitizedBaseURI: String = if (baseURI.endsWith("/")) {
+        baseURI.substring(0, baseURI.length - 1)
+    } else {
+        baseURI
+    }.intern()
 
 }
@@ -1,6 +0,0 @@
-package nl.eduvpn.app.entity
-
-import kotlinx.serialization.Serializable
-
-@Serializable
-data class JsonListWrapper<T>(val data: List<T>)
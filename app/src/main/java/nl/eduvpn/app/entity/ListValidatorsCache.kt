@@ -0,0 +1,49 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity
+
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
+/**
+ * The validators of the last verified download of each signed list, keyed by the URL of the list.
+ */
+@Serializable
+data class ListValidatorsCache(
+    val lists: Map<String, ListValidators> = emptyMap()
+)
+
+/**
+ * The data needed to check if a signed list has changed since it was stored.
+ *
+ * @param version       The version of the list. The validators only belong to a stored list with the same version.
+ * @param eTag          The ETag header of the response, if any.
+ * @param lastModified  The Last-Modified header of the response, if any.
+ * @param signature     The minisign signature the content was verified with.
+ * @param contentDigest The Base64 encoded BLAKE2b hash of the verified content.
+ */
+@Serializable
+data class ListValidators(
+    val version: Long,
+    @SerialName("etag")
+    val eTag: String? = null,
+    @SerialName("last_modified")
+    val lastModified: String? = null,
+    val signature: String,
+    @SerialName("content_digest")
+    val contentDigest: String
+)
@@ -18,9 +18,24 @@
 
 package nl.eduvpn.app.entity
 
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import nl.eduvpn.app.utils.serializer.TranslatableStringSerializer
+
+@Serializable
 data class Organization(
+
+        @SerialName("org_id")
         val orgId: String,
-        val displayName: TranslatableString,
-        val keywordList: TranslatableString,
-        val secureInternetHome: String?
+
+        @SerialName("display_name")
+        @Serializable(with = TranslatableStringSerializer::class)
+        val displayName: TranslatableString = TranslatableString(),
+
+        @SerialName("keyword_list")
+        @Serializable(with = TranslatableStringSerializer::class)
+        val keywordList: TranslatableString = TranslatableString(),
+
+        @SerialName("secure_internet_home")
+        val secureInternetHome: String? = null
 )
\ No newline at end of file
@@ -18,10 +18,18 @@
 
 package nl.eduvpn.app.entity
 
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
 /**
  * A versioned list of organizations
  */
+@Serializable
 data class OrganizationList(
+
+        @SerialName("v")
         val version: Long,
+
+        @SerialName("organization_list")
         val organizationList: List<Organization>
 )
\ No newline at end of file
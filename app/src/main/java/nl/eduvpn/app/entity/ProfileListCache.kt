@@ -0,0 +1,42 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity
+
+import ProfileV3API
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
+/**
+ * The last profile list of each server the user connected to, keyed by the sanitized base URI of the server.
+ */
+@Serializable
+data class ProfileListCache(
+    val servers: Map<String, CachedProfileList> = emptyMap()
+)
+
+/**
+ * A profile list as returned by the info endpoint of a server.
+ *
+ * @param profiles  The profiles available to the user.
+ * @param fetchedAt The time the list was fetched at, in milliseconds since the epoch.
+ */
+@Serializable
+data class CachedProfileList(
+    val profiles: List<ProfileV3API>,
+    @SerialName("fetched_at")
+    val fetchedAt: Long
+)
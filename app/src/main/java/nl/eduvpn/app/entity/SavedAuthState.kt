@@ -38,7 +38,7 @@ data class SavedAuthState(
 
     @SerialName("auth_state")
     @Serializable(with = AuthStateSerializer::class)
-    var authState: AuthState,
+    val authState: AuthState,
 
     @Serializable(with = DateSerializer::class)
     @SerialName("authentication_date")
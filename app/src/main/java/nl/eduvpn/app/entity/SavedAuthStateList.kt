@@ -0,0 +1,104 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.eduvpn.app.entity
+
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import net.openid.appauth.AuthState
+import nl.eduvpn.app.utils.serializer.AuthStateSerializer
+import nl.eduvpn.app.utils.serializer.DateSerializer
+import java.util.*
+
+/**
+ * The stored form of the saved authorization states.
+ *
+ * All distributed auth instances share the same tokens, so these are stored once in [distributedAuthState],
+ * and the distributed entries in [data] only contain the instance.
+ * Lists stored before this format only have [data], with the auth state in every entry. These can still be read.
+ *
+ * @param data                          The saved instances.
+ * @param distributedAuthState          The auth state shared by all distributed auth instances.
+ * @param distributedAuthenticationDate The moment the user authorized the distributed auth instances.
+ */
+@Serializable
+data class SavedAuthStateList(
+
+    @SerialName("data")
+    val data: List<Entry>,
+
+    @SerialName("distributed_auth_state")
+    @Serializable(with = AuthStateSerializer::class)
+    val distributedAuthState: AuthState? = null,
+
+    @SerialName("distributed_authentication_date")
+    @Serializable(with = DateSerializer::class)
+    val distributedAuthenticationDate: Date? = null,
+) {
+
+    /**
+     * A saved instance. The auth state is only missing for distributed auth instances.
+     */
+    @Serializable
+    data class Entry(
+
+        @SerialName("instance")
+        val instance: Instance,
+
+        @SerialName("auth_state")
+        @Serializable(with = AuthStateSerializer::class)
+        val authState: AuthState? = null,
+
+        @Serializable(with = DateSerializer::class)
+        @SerialName("authentication_date")
+        val authenticationDate: Date? = null,
+    )
+
+    /**
+     * Resolves the entries to saved auth states.
+     * Entries without an auth state are skipped if there is no shared auth state to use for them.
+     */
+    fun toSavedAuthStates(): List<SavedAuthState> = data.mapNotNull { entry ->
+        when {
+            entry.authState != null -> SavedAuthState(entry.instance, entry.authState, entry.authenticationDate)
+            distributedAuthState != null && entry.instance.authorizationType == AuthorizationType.Distributed ->
+                SavedAuthState(entry.instance, distributedAuthState, distributedAuthenticationDate)
+            else -> null
+        }
+    }
+
+    companion object {
+
+        /**
+         * Creates the stored form of a list of saved auth states.
+         * The first distributed auth state is the one stored for all distributed auth instances.
+         */
+        fun of(savedAuthStates: List<SavedAuthState>): SavedAuthStateList {
+            val distributed = savedAuthStates.firstOrNull { it.instance.authorizationType == AuthorizationType.Distributed }
+            return SavedAuthStateList(
+                data = savedAuthStates.map { savedAuthState ->
+                    if (savedAuthState.instance.authorizationType == AuthorizationType.Distributed) {
+                        Entry(savedAuthState.instance)
+                    } else {
+                        Entry(savedAuthState.instance, savedAuthState.authState, savedAuthState.authenticationDate)
+                    }
+                },
+                distributedAuthState = distributed?.authState,
+                distributedAuthenticationDate = distributed?.authenticationDate
+            )
+        }
+    }
+}
@@ -21,9 +21,9 @@ package nl.eduvpn.app.entity
 import android.os.Parcel
 import android.os.Parcelable
 import android.os.PersistableBundle
-import android.text.TextUtils
-import nl.eduvpn.app.Constants
-import java.util.*
+import androidx.annotation.VisibleForTesting
+import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
 
 data class TranslatableString(
     val translations: Map<String, String>
@@ -32,57 +32,71 @@ data class TranslatableString(
     constructor() : this(emptyMap())
 
 
+    /**
+     * The last resolved translation, together with the locale it was resolved for.
+     * Not part of the data class properties, so it does not influence equality.
+     */
+    @Volatile
+    private var resolvedTranslation: ResolvedTranslation? = null
+
     /***
-     * Finds the best matching translation.
+     * Finds the best matching translation for the current default locale.
      * Strings with matching language (and locale) take precedence.
+     * The result is cached per instance, and resolved again when the default locale changes.
      *
      * @return The best match from the object. Could be null if there are no translations at all.
      ***/
     val bestTranslation: String?
         get() {
-            val entrySet = translations.entries
-            var matchingLevel = 0
-            var bestTranslationMatch: String? = null
-            // 0 - no matching
-            // 1 - matches any item (will be the first item, if no better match)
-            // 2 - item in english language
-            // 3 - language part matches, territory does not
-            // 4 - language part matches, territory part matches, variant does not
-            // 5 - full match
-            for (entry in entrySet) {
-                val key = entry.key
-                val localeParts = key.split("-".toRegex()).toTypedArray()
-                var translationLocale: Locale
-                translationLocale = if (localeParts.size == 1) {
-                    Locale(localeParts[0])
-                } else if (localeParts.size == 2) {
-                    Locale(localeParts[0], localeParts[1])
-                } else {
-                    val variant = TextUtils.join("-", localeParts.copyOfRange(2, localeParts.size))
-                    Locale(localeParts[0], localeParts[1], variant)
-                }
-                var currentMatchingLevel = 1
-                if (translationLocale.language.equals(Constants.LOCALE.language, ignoreCase = true)) {
-                    currentMatchingLevel = 3
-                    if (translationLocale.country.equals(Constants.LOCALE.country, ignoreCase = true)) {
-                        currentMatchingLevel = 4
-                        if (translationLocale.variant.equals(Constants.LOCALE.variant, ignoreCase = true)) {
-                            currentMatchingLevel = 5
-                        }
+            val locale = Locale.getDefault()
+            val resolved = resolvedTranslation
+            if (resolved != null && (resolved.locale === locale || resolved.locale == locale)) {
+                return resolved.value
+            }
+            val result = findBestTranslation(locale)
+            resolvedTranslation = ResolvedTranslation(locale, result)
+            return result
+        }
+
+    /**
+     * Resolves the best translation for a locale, without the cache.
+     */
+    @VisibleForTesting
+    internal fun findBestTranslation(locale: Locale): String? {
+        var matchingLevel = 0
+        var bestTranslationMatch: String? = null
+        // 0 - no matching
+        // 1 - matches any item (will be the first item, if no better match)
+        // 2 - item in english language
+        // 3 - language part matches, territory does not
+        // 4 - language part matches, territory part matches, variant does not
+        // 5 - full match
+        for (entry in translations.entries) {
+            val translationLocale = parseLocale(entry.key)
+            var currentMatchingLevel = 1
+            if (translationLocale.language.equals(locale.language, ignoreCase = true)) {
+                currentMatchingLevel = 3
+                if (translationLocale.country.equals(locale.country, ignoreCase = true)) {
+                    currentMatchingLevel = 4
+                    if (translationLocale.variant.equals(locale.variant, ignoreCase = true)) {
+                        currentMatchingLevel = 5
                     }
-                } else if (translationLocale.language.equals("en", ignoreCase = true)) {
-                    currentMatchingLevel = 2
-                }
-                if (currentMatchingLevel > matchingLevel) {
-                    matchingLevel = currentMatchingLevel
-                    bestTranslationMatch = entry.value
-                }
-                if (currentMatchingLevel == 5) {
-                    break
                 }
+            } else if (translationLocale.language.equals("en", ignoreCase = true)) {
+                currentMatchingLevel = 2
+            }
+            if (currentMatchingLevel > matchingLevel) {
+                matchingLevel = currentMatchingLevel
+                bestTranslationMatch = entry.value
+            }
+            if (currentMatchingLevel == 5) {
+                break
             }
-            return bestTranslationMatch
         }
+        return bestTranslationMatch
+    }
+
+    private class ResolvedTranslation(val locale: Locale, val value: String?)
 
     override fun writeToParcel(out: Parcel, flags: Int) {
         val persistableBundle = PersistableBundle(translations.size)
@@ -97,6 +111,25 @@ data class TranslatableString(
     }
 
     companion object CREATOR : Parcelable.Creator<TranslatableString> {
+
+        // There are only a few distinct translation keys (language tags), so we parse each of them only once.
+        private val parsedLocales = ConcurrentHashMap<String, Locale>()
+
+        private fun parseLocale(key: String): Locale {
+            return parsedLocales.getOrPut(key) {
+                val localeParts = key.split('-')
+                when (localeParts.size) {
+                    1 -> Locale(localeParts[0])
+                    2 -> Locale(localeParts[0], localeParts[1])
+                    else -> Locale(
+                        localeParts[0],
+                        localeParts[1],
+                        localeParts.subList(2, localeParts.size).joinToString("-")
+                    )
+                }
+            }
+        }
+
         override fun createFromParcel(inParcel: Parcel): TranslatableString {
             val bundle = inParcel.readPersistableBundle(this::class.java.classLoader)!!
             val map = bundle.keySet().map { k -> Pair(k, bundle.getString(k)!!) }.toMap()
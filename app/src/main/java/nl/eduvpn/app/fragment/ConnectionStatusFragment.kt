@@ -40,6 +40,7 @@ import nl.eduvpn.app.databinding.FragmentConnectionStatusBinding
 import nl.eduvpn.app.entity.Profile
 import nl.eduvpn.app.fragment.ServerSelectionFragment.Companion.newInstance
 import nl.eduvpn.app.service.APIService
+import nl.eduvpn.app.service.ProfileListService
 import nl.eduvpn.app.service.VPNConnectionService
 import nl.eduvpn.app.service.VPNService
 import nl.eduvpn.app.service.VPNService.VPNStatus
@@ -320,10 +321,11 @@ class ConnectionStatusFragment : BaseFragment<FragmentConnectionStatusBinding>()
                 withContext(Dispatchers.Main) {
                     setToggleCheckedWithoutAction(false)
                     viewModel.isInDisconnectMode.value = true
-                    if (thr is APIService.UserNotAuthorizedException) {
-                        initiateConnection()
-                    } else {
-                        ErrorDialog.show(requireContext(), thr)
+                    when (thr) {
+                        is APIService.UserNotAuthorizedException -> initiateConnection()
+                        // The profiles are shown again once they are fetched
+                        is ProfileListService.ProfileListChangedException -> Unit
+                        else -> ErrorDialog.show(requireContext(), thr)
                     }
                 }
             }
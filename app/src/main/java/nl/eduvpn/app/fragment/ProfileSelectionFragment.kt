@@ -33,6 +33,7 @@ import nl.eduvpn.app.adapter.ProfileAdapter
 import nl.eduvpn.app.base.BaseFragment
 import nl.eduvpn.app.databinding.FragmentProfileSelectionBinding
 import nl.eduvpn.app.entity.Profile
+import nl.eduvpn.app.service.ProfileListService
 import nl.eduvpn.app.utils.ErrorDialog
 import nl.eduvpn.app.utils.ItemClickSupport
 import nl.eduvpn.app.viewmodel.BaseConnectionViewModel
@@ -109,8 +110,11 @@ class ProfileSelectionFragment : BaseFragment<FragmentProfileSelectionBinding>()
     private fun selectProfileToConnectTo(profile: Profile) {
         viewModel.viewModelScope.launch {
             viewModel.selectProfileToConnectTo(profile).onFailure { thr ->
-                withContext(Dispatchers.Main) {
-                    ErrorDialog.show(requireContext(), thr)
+                // The profiles are shown again once they are fetched
+                if (thr !is ProfileListService.ProfileListChangedException) {
+                    withContext(Dispatchers.Main) {
+                        ErrorDialog.show(requireContext(), thr)
+                    }
                 }
             }
         }
@@ -20,6 +20,7 @@ import android.content.Context
 import android.os.Build
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.liveData
+import dagger.Lazy
 import dagger.Module
 import dagger.Provides
 import kotlinx.coroutines.delay
@@ -29,15 +30,11 @@ import nl.eduvpn.app.entity.v3.Protocol
 import nl.eduvpn.app.livedata.ConnectionTimeLiveData
 import nl.eduvpn.app.livedata.openvpn.IPLiveData
 import nl.eduvpn.app.service.*
-import nl.eduvpn.app.utils.Log
 import okhttp3.Cache
 import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import okhttp3.logging.HttpLoggingInterceptor
 import java.io.IOException
-import java.net.ConnectException
-import java.net.SocketTimeoutException
-import java.net.UnknownHostException
 import java.util.*
 import java.util.concurrent.TimeUnit
 import javax.inject.Named
@@ -60,10 +57,30 @@ class ApplicationModule(private val application: EduVPNApplication) {
     @Provides
     @Singleton
     fun provideOrganizationService(
+        context: Context,
         serializerService: SerializerService?,
-        securityService: SecurityService?, okHttpClient: OkHttpClient?
+        securityService: SecurityService?,
+        retryService: RetryService,
+        okHttpClient: OkHttpClient?,
+        preferencesService: PreferencesService
     ): OrganizationService {
-        return OrganizationService(serializerService!!, securityService!!, okHttpClient!!)
+        return OrganizationService(
+            context,
+            serializerService!!,
+            securityService!!,
+            retryService,
+            okHttpClient!!,
+            preferencesService
+        )
+    }
+
+    @Provides
+    @Singleton
+    fun provideDirectoryService(
+        organizationService: OrganizationService,
+        preferencesService: PreferencesService
+    ): DirectoryService {
+        return DirectoryService(organizationService, preferencesService)
     }
 
     @Provides
@@ -88,9 +105,41 @@ class ApplicationModule(private val application: EduVPNApplication) {
     @Singleton
     fun provideAPIService(
         connectionService: ConnectionService?,
+        serializerService: SerializerService?,
+        retryService: RetryService,
         okHttpClient: OkHttpClient?
     ): APIService {
-        return APIService(connectionService!!, okHttpClient!!)
+        return APIService(connectionService!!, serializerService!!, retryService, okHttpClient!!)
+    }
+
+    @Provides
+    @Singleton
+    fun provideServerDiscoveryService(
+        apiService: APIService,
+        preferencesService: PreferencesService
+    ): ServerDiscoveryService {
+        return ServerDiscoveryService(apiService::getDiscoveredAPIs, preferencesService)
+    }
+
+    @Provides
+    @Singleton
+    fun provideProfileListService(
+        apiService: APIService,
+        preferencesService: PreferencesService
+    ): ProfileListService {
+        return ProfileListService(apiService::getInfo, preferencesService)
+    }
+
+    @Provides
+    @Singleton
+    fun provideConnectionPrewarmService(okHttpClient: Lazy<OkHttpClient>): ConnectionPrewarmService {
+        return ConnectionPrewarmService(okHttpClient)
+    }
+
+    @Provides
+    @Singleton
+    fun provideRetryService(): RetryService {
+        return RetryService()
     }
 
     @Provides
@@ -198,7 +247,10 @@ class ApplicationModule(private val application: EduVPNApplication) {
 
     @Provides
     @Singleton
-    fun provideHttpClient(context: Context): OkHttpClient {
+    fun provideHttpClient(
+        context: Context,
+        connectionPrewarmService: ConnectionPrewarmService
+    ): OkHttpClient {
         val cacheDirectory = context.cacheDir
         val CACHE_SIZE = (16 * 1024 * 1024).toLong() // 16 Mb
         val clientBuilder = OkHttpClient.Builder()
@@ -209,6 +261,7 @@ class ApplicationModule(private val application: EduVPNApplication) {
             .connectTimeout(10, TimeUnit.SECONDS)
             .writeTimeout(30, TimeUnit.SECONDS)
             .readTimeout(30, TimeUnit.SECONDS)
+            .eventListenerFactory(connectionPrewarmService.eventListenerFactory)
             .let { builder ->
                 // Unencrypted traffic is disallowed on Android >= 6, so disallowing redirects from
                 // HTTPS to HTTP only applies to Android 5.
@@ -224,43 +277,6 @@ class ApplicationModule(private val application: EduVPNApplication) {
                     builder
                 }
             }
-            .addInterceptor { chain: Interceptor.Chain ->
-                try {
-                    return@addInterceptor chain.proceed(chain.request())
-                } catch (ex: ConnectException) {
-                    Log.d(
-                        "OkHTTP",
-                        "Retrying request because previous one failed with connection exception..."
-                    )
-                    // Wait 3 seconds
-                    try {
-                        Thread.sleep(3000)
-                    } catch (e: InterruptedException) {
-                        // Do nothing
-                    }
-                    return@addInterceptor chain.proceed(chain.request())
-                } catch (ex: SocketTimeoutException) {
-                    Log.d(
-                        "OkHTTP",
-                        "Retrying request because previous one failed with connection exception..."
-                    )
-                    try {
-                        Thread.sleep(3000)
-                    } catch (e: InterruptedException) {
-                    }
-                    return@addInterceptor chain.proceed(chain.request())
-                } catch (ex: UnknownHostException) {
-                    Log.d(
-                        "OkHTTP",
-                        "Retrying request because previous one failed with connection exception..."
-                    )
-                    try {
-                        Thread.sleep(3000)
-                    } catch (e: InterruptedException) {
-                    }
-                    return@addInterceptor chain.proceed(chain.request())
-                }
-            }
         if (BuildConfig.DEBUG) {
             val logging = HttpLoggingInterceptor()
             logging.setLevel(HttpLoggingInterceptor.Level.BODY)
@@ -39,6 +39,7 @@ interface EduVPNComponent {
         }
     }
   
+    fun inject(application: EduVPNApplication)
     fun inject(organizationSelectionFragment: OrganizationSelectionFragment)
     fun inject(mainActivity: MainActivity)
     fun inject(connectionStatusFragment: ConnectionStatusFragment)
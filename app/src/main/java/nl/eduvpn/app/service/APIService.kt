@@ -19,34 +19,79 @@ package nl.eduvpn.app.service
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import net.openid.appauth.AuthState
+import nl.eduvpn.app.entity.DiscoveredAPIs
+import nl.eduvpn.app.entity.v3.Info
 import nl.eduvpn.app.utils.Log
 import nl.eduvpn.app.utils.await
+import nl.eduvpn.app.utils.charset
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
 import okhttp3.internal.EMPTY_REQUEST
+import org.json.JSONObject
 import java.io.IOException
+import java.io.InputStream
+import java.nio.charset.Charset
 
 /**
  * This service is responsible for fetching data from API endpoints.
  * Created by Daniel Zolnai on 2016-10-12.
  */
-class APIService(private val connectionService: ConnectionService, private val okHttpClient: OkHttpClient) {
+class APIService(
+    private val connectionService: ConnectionService,
+    private val serializerService: SerializerService,
+    private val retryService: RetryService,
+    private val okHttpClient: OkHttpClient
+) {
 
     class UserNotAuthorizedException : Exception()
 
     /**
-     * Retrieves a resource as a string.
+     * Thrown if the server responded with a status code which is not successful.
      *
-     * @param url      The URL to get the resource from.
-     * @param authState If the access token should be used, provide a previous authorization state.
+     * @param statusCode The status code of the response.
+     * @param body       The body of the response.
+     */
+    class UnsuccessfulResponseException(val statusCode: Int, val body: String) :
+        IOException("Unsuccessful response with status code $statusCode: $body") {
+
+        /**
+         * The error message of the API, if the body is an error object such as {"error": "profile not available"}.
+         */
+        val apiError: String? by lazy {
+            runCatching { JSONObject(body).optString(KEY_ERROR).takeIf { it.isNotEmpty() } }.getOrNull()
+        }
+    }
+
+    /**
+     * Retrieves the discovered APIs of a server.
+     * The response is decoded while it is being read, without buffering it into a string first.
+     *
+     * @param url The URL of the well-known document of the server.
+     * @return The APIs supported by the server.
      * @throws UserNotAuthorizedException
+     * @throws SerializerService.UnknownFormatException
      * @throws IOException
      */
-    suspend fun getString(url: String, authState: AuthState?): String {
+    suspend fun getDiscoveredAPIs(url: String): DiscoveredAPIs {
+        return fetchResource(url, null, serializerService::deserializeDiscoveredAPIs)
+    }
+
+    /**
+     * Retrieves the info of a server, containing the profiles available to the user.
+     * The response is decoded while it is being read, without buffering it into a string first.
+     *
+     * @param url       The URL of the info endpoint.
+     * @param authState The authorization state to get the access token from.
+     * @return The server info.
+     * @throws UserNotAuthorizedException
+     * @throws SerializerService.UnknownFormatException
+     * @throws IOException
+     */
+    suspend fun getInfo(url: String, authState: AuthState): Info {
         return createNetworkCall(authState) { accessToken ->
-            fetchString(url, accessToken)
+            fetchResource(url, accessToken, serializerService::deserializeInfo)
         }
     }
 
@@ -94,7 +139,9 @@ class APIService(private val connectionService: ConnectionService, private val o
             requestBuilder.post(EMPTY_REQUEST)
         }
         val request = requestBuilder.build()
-        val response = okHttpClient.newCall(request).await()
+        val response = retryService.withRetries(RetryService.Endpoint.ApiWrite) {
+            okHttpClient.newCall(request).await()
+        }
         val statusCode = response.code
         if (statusCode == STATUS_CODE_UNAUTHORIZED) {
             throw UserNotAuthorizedException()
@@ -106,14 +153,14 @@ class APIService(private val connectionService: ConnectionService, private val o
         } else {
             val result = withContext(Dispatchers.IO) { responseBody.string() }
             responseBody.close()
-            Log.d(TAG, "POST $url data: '$requestData': $result")
+            Log.d(TAG) { "POST $url data: '$requestData': $result" }
             if (statusCode in 200..299) {
                 return Pair(
                     result,
                     response.headers.toMultimap()
                 )
             } else {
-                throw IOException("Unsuccessful response with status code $statusCode: $result")
+                throw UnsuccessfulResponseException(statusCode, result)
             }
         }
     }
@@ -134,32 +181,43 @@ class APIService(private val connectionService: ConnectionService, private val o
     }
 
     /**
-     * Fetches a JSON resource from a specific URL.
+     * Fetches a JSON resource from a specific URL, and decodes it directly from the response stream.
+     * The body is only read into a string if the request was not successful, to include it in the error.
      *
-     * @param url The URL as a string.
-     * @return The JSON resource if the call was successful.
+     * @param url         The URL as a string.
+     * @param accessToken The access token to fetch the resource with. Can be null.
+     * @param decode      Decodes the resource from the response stream.
+     * @return The decoded resource if the call was successful.
      * @throws UserNotAuthorizedException
+     * @throws SerializerService.UnknownFormatException
      * @throws IOException   Thrown if there was a problem while connecting.
      */
-    private suspend fun fetchString(url: String, accessToken: String?): String {
-        val requestBuilder = createRequestBuilder(url, accessToken)
-        val response = okHttpClient.newCall(requestBuilder.build()).await()
-        val statusCode = response.code
-        if (statusCode == STATUS_CODE_UNAUTHORIZED) {
-            throw UserNotAuthorizedException()
+    private suspend fun <T> fetchResource(
+        url: String,
+        accessToken: String?,
+        decode: (InputStream, Charset) -> T
+    ): T {
+        val request = createRequestBuilder(url, accessToken).build()
+        val response = retryService.withRetries(RetryService.Endpoint.ApiRead) {
+            okHttpClient.newCall(request).await()
         }
         // Get the body of the response
-        val responseBody = response.body
-        if (responseBody == null) {
-            throw IOException("Response body is empty!")
-        } else {
-            val responseString = withContext(Dispatchers.IO) { responseBody.string() }
-            responseBody.close()
-            Log.d(TAG, "GET $url: $responseString")
+        val responseBody = response.body ?: throw IOException("Response body is empty!")
+        return responseBody.use { body ->
+            val statusCode = response.code
+            if (statusCode == STATUS_CODE_UNAUTHORIZED) {
+                throw UserNotAuthorizedException()
+            }
             if (statusCode !in 200..299) {
-                throw IOException("Unsuccessful response with status code $statusCode: $responseString")
+                val responseString = withContext(Dispatchers.IO) { body.string() }
+                Log.d(TAG) { "GET $url: $responseString" }
+                throw UnsuccessfulResponseException(statusCode, responseString)
+            }
+            Log.d(TAG) { "GET $url: $statusCode" }
+            val charset = body.charset()
+            withContext(Dispatchers.IO) {
+                decode(body.byteStream(), charset)
             }
-            return responseString
         }
     }
 
@@ -175,5 +233,11 @@ class APIService(private val connectionService: ConnectionService, private val o
         private val TAG = APIService::class.java.name
         private const val HEADER_AUTHORIZATION = "Authorization"
         private const val STATUS_CODE_UNAUTHORIZED = 401
+        private const val KEY_ERROR = "error"
+
+        /**
+         * The error returned by the connect endpoint if the profile does not exist, or the user has no access to it.
+         */
+        const val ERROR_PROFILE_NOT_AVAILABLE = "profile not available"
     }
 }
@@ -0,0 +1,264 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service
+
+import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
+import dagger.Lazy
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import nl.eduvpn.app.entity.DiscoveredAPIV3
+import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.await
+import nl.eduvpn.app.utils.runCatchingCoroutine
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.URL
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Opens the connections to the hosts of a server as soon as it is selected,
+ * so the calls of the connection flow do not have to wait for the DNS lookup and TLS handshake.
+ *
+ * The API calls share the connection pool of the OkHttp client. The token endpoint is called by AppAuth,
+ * which uses the HttpURLConnection of the platform, so its host is warmed up in the pool of the platform instead.
+ *
+ * The time it took to set up each connection opened by this service is measured with an [EventListener],
+ * and counted as saved when another call reuses that connection.
+ *
+ * @param okHttpClient The client to warm up connections for. Lazy, because the client reports its events to this service.
+ */
+class ConnectionPrewarmService(private val okHttpClient: Lazy<OkHttpClient>) {
+
+    /**
+     * The results of prewarming since the application was started.
+     *
+     * @param prewarmedConnections The number of connections opened ahead of time.
+     * @param reusedConnections    The number of prewarmed connections which were used by a call afterwards.
+     * @param savedTimeMs          The connection setup time the calls did not have to wait for, in milliseconds.
+     */
+    data class Metrics(
+        val prewarmedConnections: Int,
+        val reusedConnections: Int,
+        val savedTimeMs: Long
+    )
+
+    /**
+     * Tags the requests made by this service, so their connections are counted as prewarmed.
+     */
+    @VisibleForTesting
+    internal object PrewarmTag
+
+    private val lock = Any()
+
+    // Connections opened by this service, with the time it took to set them up in nanoseconds.
+    private val prewarmedConnections = WeakHashMap<Connection, Long>()
+
+    // The time each origin was warmed up at, used to skip origins which were warmed up recently.
+    private val warmedOrigins = HashMap<String, Long>()
+
+    private var prewarmedCount = 0
+    private var reusedCount = 0
+    private var savedTimeNanos = 0L
+
+    private val prewarmClient by lazy {
+        // Redirects are not followed, as they would open connections to hosts which are not called later on.
+        okHttpClient.get().newBuilder()
+            .followRedirects(false)
+            .followSslRedirects(false)
+            .cache(null)
+            .build()
+    }
+
+    /**
+     * Factory for the listener which measures the connection setup times. Should be installed on the OkHttp client.
+     */
+    val eventListenerFactory = object : EventListener.Factory {
+        override fun create(call: Call): EventListener {
+            return MeasuringEventListener(call.request().tag(PrewarmTag::class.java) != null)
+        }
+    }
+
+    /**
+     * Opens the connection to the host of a server, before its API endpoints are known.
+     * The API is usually served by the same host, and the endpoints are discovered or revalidated on it.
+     * Failures are ignored, the calls themselves will report them if the host is really unreachable.
+     *
+     * @param baseUri The base URI of the server.
+     */
+    suspend fun prewarm(baseUri: String) {
+        val origin = baseUri.toHttpUrlOrNull() ?: return
+        if (markWarmed(origin, PLATFORM_PREFIX_OKHTTP)) {
+            prewarmOkHttp(origin)
+        }
+    }
+
+    /**
+     * Opens the connections to the hosts the connection flow of a server is going to call.
+     * Failures are ignored, the calls themselves will report them if the host is really unreachable.
+     *
+     * @param discoveredAPI The API endpoints of the server.
+     */
+    suspend fun prewarm(discoveredAPI: DiscoveredAPIV3) {
+        val apiOrigin = discoveredAPI.apiEndpoint.toHttpUrlOrNull()
+        val tokenOrigin = discoveredAPI.tokenEndpoint.toHttpUrlOrNull()
+        coroutineScope {
+            if (apiOrigin != null && markWarmed(apiOrigin, PLATFORM_PREFIX_OKHTTP)) {
+                launch { prewarmOkHttp(apiOrigin) }
+            }
+            if (tokenOrigin != null && markWarmed(tokenOrigin, PLATFORM_PREFIX_URL_CONNECTION)) {
+                launch { prewarmUrlConnection(tokenOrigin) }
+            }
+        }
+    }
+
+    /**
+     * Returns the current values of the prewarm counters.
+     */
+    fun getMetrics(): Metrics = synchronized(lock) {
+        Metrics(prewarmedCount, reusedCount, TimeUnit.NANOSECONDS.toMillis(savedTimeNanos))
+    }
+
+    private suspend fun prewarmOkHttp(origin: HttpUrl) {
+        val request = Request.Builder()
+            .url(origin.resolve("/")!!)
+            .head()
+            .tag(PrewarmTag::class.java, PrewarmTag)
+            .build()
+        runCatchingCoroutine {
+            // Closing the response returns the connection to the pool.
+            prewarmClient.newCall(request).await().close()
+        }.onFailure {
+            Log.d(TAG) { "Unable to prewarm connection to ${origin.host}: $it" }
+        }
+    }
+
+    private suspend fun prewarmUrlConnection(origin: HttpUrl) {
+        withContext(Dispatchers.IO) {
+            runCatchingCoroutine {
+                val connection = URL(origin.resolve("/")!!.toString()).openConnection() as HttpURLConnection
+                connection.instanceFollowRedirects = false
+                connection.requestMethod = "HEAD"
+                connection.connectTimeout = PREWARM_TIMEOUT_MS
+                connection.readTimeout = PREWARM_TIMEOUT_MS
+                val startTime = SystemClock.elapsedRealtime()
+                connection.responseCode
+                // A HEAD response has no body, closing the stream returns the connection to the pool of the platform.
+                (connection.errorStream ?: connection.inputStream).close()
+                Log.d(TAG) { "Prewarmed platform connection to ${origin.host} in ${SystemClock.elapsedRealtime() - startTime} ms." }
+            }.onFailure {
+                Log.d(TAG) { "Unable to prewarm platform connection to ${origin.host}: $it" }
+            }
+        }
+    }
+
+    /**
+     * Marks an origin as warmed up.
+     *
+     * @return True if the origin should be warmed up, false if it was warmed up recently and is probably still in the pool.
+     */
+    private fun markWarmed(origin: HttpUrl, platformPrefix: String): Boolean = synchronized(lock) {
+        val key = "$platformPrefix${origin.scheme}://${origin.host}:${origin.port}"
+        val now = SystemClock.elapsedRealtime()
+        val warmedAt = warmedOrigins[key]
+        if (warmedAt != null && now - warmedAt < WARM_DURATION_MS) {
+            false
+        } else {
+            warmedOrigins[key] = now
+            true
+        }
+    }
+
+    private inner class MeasuringEventListener(private val isPrewarm: Boolean) : EventListener() {
+
+        private var dnsStartNanos = 0L
+        private var connectStartNanos = 0L
+        private var setupNanos = 0L
+        private var connected = false
+
+        override fun dnsStart(call: Call, domainName: String) {
+            dnsStartNanos = System.nanoTime()
+        }
+
+        override fun dnsEnd(call: Call, domainName: String, inetAddressList: List<InetAddress>) {
+            setupNanos += System.nanoTime() - dnsStartNanos
+        }
+
+        override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+            connectStartNanos = System.nanoTime()
+        }
+
+        override fun connectEnd(
+            call: Call,
+            inetSocketAddress: InetSocketAddress,
+            proxy: Proxy,
+            protocol: Protocol?
+        ) {
+            // Includes the TLS handshake
+            setupNanos += System.nanoTime() - connectStartNanos
+            connected = true
+        }
+
+        override fun connectionAcquired(call: Call, connection: Connection) {
+            if (isPrewarm) {
+                if (connected) {
+                    synchronized(lock) {
+                        prewarmedConnections[connection] = setupNanos
+                        prewarmedCount++
+                    }
+                }
+                return
+            }
+            val savedNanos = synchronized(lock) {
+                prewarmedConnections.remove(connection)?.also { saved ->
+                    reusedCount++
+                    savedTimeNanos += saved
+                }
+            }
+            if (savedNanos != null) {
+                Log.d(TAG) {
+                    "Call to ${call.request().url.host} reused a prewarmed connection, saved ${TimeUnit.NANOSECONDS.toMillis(savedNanos)} ms."
+                }
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = ConnectionPrewarmService::class.java.name
+
+        private const val PLATFORM_PREFIX_OKHTTP = "okhttp:"
+        private const val PLATFORM_PREFIX_URL_CONNECTION = "urlconnection:"
+
+        // OkHttp and the platform both keep idle connections for 5 minutes.
+        private val WARM_DURATION_MS = TimeUnit.MINUTES.toMillis(4)
+        private const val PREWARM_TIMEOUT_MS = 10_000
+    }
+}
@@ -86,8 +86,10 @@ class ConnectionService(private val preferencesService: PreferencesService,
         withContext(Dispatchers.Main) {
             runCatchingCoroutine {
                 val stateString = securityService.generateSecureRandomString(32)
-                preferencesService.setCurrentInstance(instance)
-                preferencesService.setCurrentDiscoveredAPI(discoveredAPI)
+                preferencesService.transaction {
+                    setCurrentInstance(instance)
+                    setCurrentDiscoveredAPI(discoveredAPI)
+                }
                 val serviceConfig = buildAuthConfiguration(discoveredAPI)
                 val authRequestBuilder = AuthorizationRequest.Builder(
                     serviceConfig,  // the authorization service configuration
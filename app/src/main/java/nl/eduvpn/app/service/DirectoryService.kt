@@ -0,0 +1,275 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.service
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import nl.eduvpn.app.Constants
+import nl.eduvpn.app.R
+import nl.eduvpn.app.entity.OrganizationList
+import nl.eduvpn.app.entity.ServerList
+import nl.eduvpn.app.entity.exception.EduVPNException
+import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.runCatchingCoroutine
+
+/**
+ * Application-wide owner of the parsed server and organization lists.
+ * Only one fetch per list runs at a time: callers arriving while a fetch is in progress wait for it,
+ * and then receive its result instead of starting a new download.
+ * Until a list is downloaded, the list stored on the device, or the signed list bundled with the app is used.
+ */
+class DirectoryService(
+    private val organizationService: OrganizationService,
+    private val preferencesService: PreferencesService
+) {
+
+    private val serverListMutex = Mutex()
+    private val organizationListMutex = Mutex()
+
+    // Guarded by the mutex of the list
+    private var serverListFetchedAt = 0L
+    private var organizationListFetchedAt = 0L
+
+    // If the list in memory was read from the stored snapshot. Guarded by the mutex of the list.
+    private var isServerListStored = false
+    private var isOrganizationListStored = false
+
+    // If the bundled list was loaded or rejected already, so it is not read and verified again. Guarded by the mutex of the list.
+    private var bundledServerListChecked = false
+    private var bundledOrganizationListChecked = false
+
+    private val _serverList = MutableStateFlow<ServerList?>(null)
+    private val _organizationList = MutableStateFlow<OrganizationList?>(null)
+
+    /**
+     * The latest verified server list, or null if it has not been loaded yet.
+     */
+    val serverList: StateFlow<ServerList?> = _serverList.asStateFlow()
+
+    /**
+     * The latest verified organization list, or null if it has not been loaded yet.
+     */
+    val organizationList: StateFlow<OrganizationList?> = _organizationList.asStateFlow()
+
+    /**
+     * Returns the server list. If the list in memory is older than the TTL (see constants), it is refreshed first.
+     * If the refresh fails, the list in memory, or otherwise the stored or the bundled list is returned, regardless of its age.
+     *
+     * @return The server list.
+     * @throws EduVPNException If the fetched list is older than a previously seen version.
+     * @throws Exception       If the list could not be fetched, and there is no list in memory.
+     */
+    suspend fun getServerList(): ServerList = serverListMutex.withLock {
+        val current = loadLocalServerList()
+        if (current != null && System.currentTimeMillis() - serverListFetchedAt < Constants.SERVER_LIST_VALID_FOR_MS) {
+            return@withLock current
+        }
+        Log.v(TAG, "Fetching server list...")
+        val serverList = runCatchingCoroutine {
+            organizationService.fetchServerList()
+        }.getOrElse { throwable ->
+            if (current != null) {
+                Log.w(TAG, "Unable to fetch server list, using the previous one.", throwable)
+                return@withLock current
+            }
+            throw throwable
+        }
+        checkVersion(
+            serverList.version,
+            preferencesService.getLastKnownServerListVersion(),
+            R.string.error_server_list_version_check_title,
+            R.string.error_server_list_version_check_message
+        )
+        if (serverList.version > 0) {
+            preferencesService.setLastKnownServerListVersion(serverList.version)
+        }
+        withContext(Dispatchers.IO) { preferencesService.setServerList(serverList) }
+        serverListFetchedAt = System.currentTimeMillis()
+        isServerListStored = false
+        _serverList.value = serverList
+        serverList
+    }
+
+    /**
+     * Returns the organization list. If the list in memory is older than the TTL (see constants), it is refreshed first.
+     * If the refresh fails, the list in memory, or otherwise the last stored or the bundled list is returned.
+     *
+     * @return The organization list.
+     * @throws EduVPNException If the fetched list is older than a previously seen version.
+     * @throws Exception       If the list could not be fetched, and there is no previous list available.
+     */
+    suspend fun getOrganizationList(): OrganizationList = organizationListMutex.withLock {
+        val current = loadLocalOrganizationList()
+        if (current != null && System.currentTimeMillis() - organizationListFetchedAt < Constants.SERVER_LIST_VALID_FOR_MS) {
+            return@withLock current
+        }
+        Log.v(TAG, "Fetching organization list...")
+        val organizationList = runCatchingCoroutine {
+            organizationService.fetchOrganizations()
+        }.getOrElse { throwable ->
+            if (current != null) {
+                Log.w(TAG, "Unable to fetch organization list, using the previous one.", throwable)
+                return@withLock current
+            }
+            throw throwable
+        }
+        checkVersion(
+            organizationList.version,
+            preferencesService.getLastKnownOrganizationListVersion(),
+            R.string.error_organization_list_version_check_title,
+            R.string.error_organization_list_version_check_message
+        )
+        if (organizationList.version > 0) {
+            preferencesService.setLastKnownOrganizationListVersion(organizationList.version)
+            withContext(Dispatchers.IO) { preferencesService.setOrganizationList(organizationList) }
+        }
+        organizationListFetchedAt = System.currentTimeMillis()
+        isOrganizationListStored = false
+        _organizationList.value = organizationList
+        organizationList
+    }
+
+    /**
+     * Returns the server list available without the network: the one in memory, the stored one,
+     * or the one bundled with the app. Use it to show a list right away, while [getServerList] refreshes it.
+     *
+     * @return The server list, or null if there is none available on the device.
+     */
+    suspend fun getLocalServerList(): ServerList? = serverListMutex.withLock {
+        loadLocalServerList()
+    }
+
+    /**
+     * Returns the organization list available without the network: the one in memory, the stored one,
+     * or the one bundled with the app. Use it to show a list right away, while [getOrganizationList] refreshes it.
+     *
+     * @return The organization list, or null if there is none available on the device.
+     */
+    suspend fun getLocalOrganizationList(): OrganizationList? = organizationListMutex.withLock {
+        loadLocalOrganizationList()
+    }
+
+    /**
+     * Forgets the lists which were read from the stored snapshots, after one of their entries turned out to be damaged.
+     * The snapshot itself is deleted already, so the next call returns the bundled list, or downloads the list again.
+     */
+    suspend fun dropStoredLists() {
+        serverListMutex.withLock {
+            if (isServerListStored) {
+                Log.w(TAG, "Dropping the damaged stored server list.")
+                _serverList.value = null
+                serverListFetchedAt = 0L
+                isServerListStored = false
+            }
+        }
+        organizationListMutex.withLock {
+            if (isOrganizationListStored) {
+                Log.w(TAG, "Dropping the damaged stored organization list.")
+                _organizationList.value = null
+                organizationListFetchedAt = 0L
+                isOrganizationListStored = false
+            }
+        }
+    }
+
+    // Only call while holding the server list mutex
+    private suspend fun loadLocalServerList(): ServerList? {
+        _serverList.value?.let { return it }
+        val storedServerList = withContext(Dispatchers.IO) { preferencesService.getServerList() }
+        if (storedServerList != null) {
+            // The stored list is as old as the download it was stored after, not as old as this process.
+            val (serverList, savedAt) = storedServerList
+            _serverList.value = serverList
+            serverListFetchedAt = savedAt
+            isServerListStored = true
+            return serverList
+        }
+        if (bundledServerListChecked) {
+            return null
+        }
+        bundledServerListChecked = true
+        val bundledServerList = organizationService.loadBundledServerList() ?: return null
+        if (!isAcceptedBundledVersion(bundledServerList.version, preferencesService.getLastKnownServerListVersion(), "server list")) {
+            return null
+        }
+        if (bundledServerList.version > 0) {
+            preferencesService.setLastKnownServerListVersion(bundledServerList.version)
+        }
+        // The fetch time is left unset, so the next call to getServerList() downloads the latest list.
+        _serverList.value = bundledServerList
+        return bundledServerList
+    }
+
+    // Only call while holding the organization list mutex
+    private suspend fun loadLocalOrganizationList(): OrganizationList? {
+        _organizationList.value?.let { return it }
+        val storedOrganizationList = withContext(Dispatchers.IO) { preferencesService.getOrganizationList() }
+        if (storedOrganizationList != null) {
+            val (organizationList, savedAt) = storedOrganizationList
+            _organizationList.value = organizationList
+            organizationListFetchedAt = savedAt
+            isOrganizationListStored = true
+            return organizationList
+        }
+        if (bundledOrganizationListChecked) {
+            return null
+        }
+        bundledOrganizationListChecked = true
+        val bundledOrganizationList = organizationService.loadBundledOrganizations() ?: return null
+        if (!isAcceptedBundledVersion(bundledOrganizationList.version, preferencesService.getLastKnownOrganizationListVersion(), "organization list")) {
+            return null
+        }
+        if (bundledOrganizationList.version > 0) {
+            preferencesService.setLastKnownOrganizationListVersion(bundledOrganizationList.version)
+        }
+        _organizationList.value = bundledOrganizationList
+        return bundledOrganizationList
+    }
+
+    /**
+     * A bundled list older than a list we have seen before is not an error, the app is just older than that list.
+     * It is not used though, so the version check of the downloaded lists still holds.
+     */
+    private fun isAcceptedBundledVersion(version: Long, lastKnownVersion: Long?, listName: String): Boolean {
+        if (version > 0 && lastKnownVersion != null && lastKnownVersion > version) {
+            Log.i(TAG, "Ignoring bundled $listName with version $version, last known version is $lastKnownVersion.")
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Protects against rollback: a list must never be older than a list we have seen before.
+     */
+    private fun checkVersion(version: Long, lastKnownVersion: Long?, titleId: Int, messageId: Int) {
+        if (version > 0 && lastKnownVersion != null && lastKnownVersion > version) {
+            Log.w(TAG, "Rejecting list with version $version, last known version is $lastKnownVersion.")
+            throw EduVPNException(titleId, messageId)
+        }
+    }
+
+    companion object {
+        private val TAG = DirectoryService::class.java.name
+    }
+}
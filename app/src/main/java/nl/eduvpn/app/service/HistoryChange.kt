@@ -0,0 +1,53 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.service
+
+import nl.eduvpn.app.entity.Instance
+import nl.eduvpn.app.entity.Organization
+
+/**
+ * A change of the data stored by the [HistoryService].
+ */
+sealed class HistoryChange {
+
+    /**
+     * An authorization was saved for a server. Replaces any previous authorization of the server.
+     */
+    data class AuthAdded(val instance: Instance) : HistoryChange()
+
+    /**
+     * The authorization and the key pair of a server were removed.
+     */
+    data class AuthRemoved(val instance: Instance) : HistoryChange()
+
+    /**
+     * The tokens of a server were refreshed. The server itself did not change.
+     */
+    data class AuthRefreshed(val instance: Instance) : HistoryChange()
+
+    /**
+     * A key pair was stored for a server.
+     */
+    data class KeyPairStored(val instance: Instance) : HistoryChange()
+
+    /**
+     * The saved organization was changed or removed.
+     */
+    data class OrganizationChanged(val organization: Organization?) : HistoryChange()
+}
@@ -14,7 +14,6 @@
  *     You should have received a copy of the GNU General Public License
  *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package nl.eduvpn.app.service;
 
 import androidx.annotation.NonNull;
@@ -26,35 +25,175 @@ import net.openid.appauth.AuthorizationServiceConfiguration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 import kotlin.Pair;
+import kotlinx.coroutines.channels.BufferOverflow;
+import kotlinx.coroutines.flow.FlowKt;
+import kotlinx.coroutines.flow.MutableSharedFlow;
+import kotlinx.coroutines.flow.SharedFlow;
+import kotlinx.coroutines.flow.SharedFlowKt;
 import nl.eduvpn.app.entity.AuthorizationType;
 import nl.eduvpn.app.entity.Instance;
 import nl.eduvpn.app.entity.Organization;
 import nl.eduvpn.app.entity.SavedAuthState;
 import nl.eduvpn.app.entity.SavedKeyPair;
-import nl.eduvpn.app.utils.Listener;
 import nl.eduvpn.app.utils.Log;
 
 /**
  * Service which stores previously used access token and profile names.
  * This allows us to skip some steps, which will make the user experience more fluid.
+ * <p>
+ * The data is kept in an immutable {@link State}. Changes create a new state, which is published atomically,
+ * so the service can be used from any thread, and reads never block nor see a partially applied change.
+ * Changes are published as {@link HistoryChange} events, see {@link #getChanges()}.
  * Created by Daniel Zolnai on 2016-10-20.
  */
 public class HistoryService {
     private static final String TAG = HistoryService.class.getName();
 
-    private List<SavedAuthState> _savedAuthStateList;
-    private List<SavedKeyPair> _savedKeyPairList;
+    // Changes made within this time are written together
+    private static final long FLUSH_DELAY_MS = 500L;
+
+    private static final int DIRTY_AUTH_STATES = 1;
+    private static final int DIRTY_KEY_PAIRS = 1 << 1;
+    private static final int DIRTY_ORGANIZATION = 1 << 2;
+
+    // Slow collectors miss the oldest changes instead of blocking the writers
+    private static final int CHANGE_BUFFER_SIZE = 64;
+
+    /**
+     * An immutable snapshot of the saved data, together with the indexes to look it up quickly.
+     */
+    private static final class State {
+        final List<SavedAuthState> savedAuthStates;
+        final List<SavedKeyPair> savedKeyPairs;
+        @Nullable
+        final Organization savedOrganization;
+
+        // Positions in the lists above, keyed by the sanitized base URI of the instance.
+        // If an instance has multiple auth states, the first one is indexed.
+        final Map<String, Integer> authStatePositionByUri;
+        final Map<AuthorizationType, List<Integer>> authStatePositionsByType;
+        final Map<String, Integer> keyPairPositionByUri;
+
+        State(@NonNull List<SavedAuthState> savedAuthStates, @NonNull List<SavedKeyPair> savedKeyPairs, @Nullable Organization savedOrganization) {
+            this(savedAuthStates, _indexAuthStatesByUri(savedAuthStates), _indexAuthStatesByType(savedAuthStates),
+                    savedKeyPairs, _indexKeyPairs(savedKeyPairs), savedOrganization);
+        }
+
+        private State(List<SavedAuthState> savedAuthStates,
+                      Map<String, Integer> authStatePositionByUri,
+                      Map<AuthorizationType, List<Integer>> authStatePositionsByType,
+                      List<SavedKeyPair> savedKeyPairs,
+                      Map<String, Integer> keyPairPositionByUri,
+                      @Nullable Organization savedOrganization) {
+            this.savedAuthStates = Collections.unmodifiableList(savedAuthStates);
+            this.authStatePositionByUri = authStatePositionByUri;
+            this.authStatePositionsByType = authStatePositionsByType;
+            this.savedKeyPairs = Collections.unmodifiableList(savedKeyPairs);
+            this.keyPairPositionByUri = keyPairPositionByUri;
+            this.savedOrganization = savedOrganization;
+        }
+
+        State withSavedAuthStates(@NonNull List<SavedAuthState> newSavedAuthStates) {
+            return new State(newSavedAuthStates, _indexAuthStatesByUri(newSavedAuthStates), _indexAuthStatesByType(newSavedAuthStates),
+                    savedKeyPairs, keyPairPositionByUri, savedOrganization);
+        }
+
+        State withSavedKeyPairs(@NonNull List<SavedKeyPair> newSavedKeyPairs) {
+            return new State(savedAuthStates, authStatePositionByUri, authStatePositionsByType,
+                    newSavedKeyPairs, _indexKeyPairs(newSavedKeyPairs), savedOrganization);
+        }
+
+        State withSavedOrganization(@Nullable Organization newSavedOrganization) {
+            return new State(savedAuthStates, authStatePositionByUri, authStatePositionsByType,
+                    savedKeyPairs, keyPairPositionByUri, newSavedOrganization);
+        }
 
-    private Organization _savedOrganization;
+        /**
+         * Returns the positions of the saved auth states with the given authorization type.
+         */
+        @NonNull
+        List<Integer> authStatePositions(@NonNull AuthorizationType authorizationType) {
+            List<Integer> positions = authStatePositionsByType.get(authorizationType);
+            return positions == null ? Collections.emptyList() : positions;
+        }
+
+        /**
+         * Returns the position of the first saved auth state with the given authorization type, or null if there is none.
+         */
+        @Nullable
+        Integer firstAuthStatePosition(@NonNull AuthorizationType authorizationType) {
+            List<Integer> positions = authStatePositions(authorizationType);
+            return positions.isEmpty() ? null : positions.get(0);
+        }
+
+        private static Map<String, Integer> _indexAuthStatesByUri(List<SavedAuthState> savedAuthStates) {
+            Map<String, Integer> index = new HashMap<>();
+            for (int i = 0; i < savedAuthStates.size(); ++i) {
+                String sanitizedBaseURI = savedAuthStates.get(i).getInstance().getSanitizedBaseURI();
+                if (!index.containsKey(sanitizedBaseURI)) {
+                    index.put(sanitizedBaseURI, i);
+                }
+            }
+            return index;
+        }
+
+        private static Map<AuthorizationType, List<Integer>> _indexAuthStatesByType(List<SavedAuthState> savedAuthStates) {
+            Map<AuthorizationType, List<Integer>> index = new EnumMap<>(AuthorizationType.class);
+            for (int i = 0; i < savedAuthStates.size(); ++i) {
+                AuthorizationType authorizationType = savedAuthStates.get(i).getInstance().getAuthorizationType();
+                List<Integer> positions = index.get(authorizationType);
+                if (positions == null) {
+                    positions = new ArrayList<>();
+                    index.put(authorizationType, positions);
+                }
+                positions.add(i);
+            }
+            return index;
+        }
+
+        private static Map<String, Integer> _indexKeyPairs(List<SavedKeyPair> savedKeyPairs) {
+            Map<String, Integer> index = new HashMap<>();
+            for (int i = 0; i < savedKeyPairs.size(); ++i) {
+                String sanitizedBaseURI = savedKeyPairs.get(i).getInstance().getSanitizedBaseURI();
+                if (!index.containsKey(sanitizedBaseURI)) {
+                    index.put(sanitizedBaseURI, i);
+                }
+            }
+            return index;
+        }
+    }
 
     private final PreferencesService _preferencesService;
 
-    private List<Listener> _listeners = new ArrayList<>();
+    private final AtomicReference<State> _state = new AtomicReference<>();
+
+    private final MutableSharedFlow<HistoryChange> _changes =
+            SharedFlowKt.MutableSharedFlow(0, CHANGE_BUFFER_SIZE, BufferOverflow.DROP_OLDEST);
+
+    private final ScheduledExecutorService _flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HistoryService-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Which collections changed since they were last written, see the DIRTY_ flags.
+    private final AtomicInteger _dirtyFlags = new AtomicInteger();
+    private final AtomicBoolean _flushScheduled = new AtomicBoolean();
 
     /**
      * Constructor.
@@ -70,39 +209,146 @@ public class HistoryService {
      * Loads the state of the service.
      */
     private void _load() {
-        _savedAuthStateList = _preferencesService.getSavedAuthStateList();
-        if (_savedAuthStateList == null) {
-            _savedAuthStateList = new ArrayList<>();
+        List<SavedAuthState> savedAuthStateList = _preferencesService.getSavedAuthStateList();
+        if (savedAuthStateList == null) {
+            savedAuthStateList = new ArrayList<>();
             Log.i(TAG, "No saved tokens found.");
         }
-        _savedKeyPairList = _preferencesService.getSavedKeyPairList();
-        if (_savedKeyPairList == null) {
+        List<SavedKeyPair> savedKeyPairList = _preferencesService.getSavedKeyPairList();
+        if (savedKeyPairList == null) {
             Log.i(TAG, "No saved key pair found.");
-            _savedKeyPairList = new ArrayList<>();
+            savedKeyPairList = new ArrayList<>();
+        }
+        // Remove duplicate key pairs for the same instance, keeping the first one
+        List<SavedKeyPair> uniqueKeyPairs = new ArrayList<>(savedKeyPairList.size());
+        Map<String, Integer> seenKeyPairs = State._indexKeyPairs(savedKeyPairList);
+        for (int i = 0; i < savedKeyPairList.size(); ++i) {
+            SavedKeyPair savedKeyPair = savedKeyPairList.get(i);
+            if (seenKeyPairs.get(savedKeyPair.getInstance().getSanitizedBaseURI()) == i) {
+                uniqueKeyPairs.add(savedKeyPair);
+            } else {
+                Log.w(TAG, "Found a duplicate key pair entry! Removing second one.");
+            }
         }
-        _savedOrganization = _preferencesService.getSavedOrganization();
+        _state.set(new State(new ArrayList<>(savedAuthStateList), uniqueKeyPairs, _preferencesService.getSavedOrganization()));
     }
 
     /**
-     * Saves the state of the service.
+     * Applies a change to the state. The change may be retried if another thread changed the state concurrently,
+     * so it should not have side effects.
+     *
+     * @param change Creates the new state from the current one.
+     * @return The state before the change, or null if the state did not change.
      */
-    private void _save() {
-        _preferencesService.storeSavedAuthStateList(_savedAuthStateList);
-        _preferencesService.storeSavedOrganization(_savedOrganization);
+    @Nullable
+    private State _update(@NonNull UnaryOperator<State> change) {
+        while (true) {
+            State current = _state.get();
+            State updated = change.apply(current);
+            if (updated == current) {
+                return null;
+            }
+            if (_state.compareAndSet(current, updated)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Marks collections as changed, and schedules writing them in the background.
+     * All changes made before the write starts are written together.
+     *
+     * @param dirtyFlags The collections which have changed, see the DIRTY_ flags.
+     */
+    private void _markDirty(int dirtyFlags) {
+        int flags;
+        do {
+            flags = _dirtyFlags.get();
+        } while (!_dirtyFlags.compareAndSet(flags, flags | dirtyFlags));
+        if (_flushScheduled.compareAndSet(false, true)) {
+            _flushExecutor.schedule(this::_writeDirty, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Marks collections as changed, and starts writing them in the background right away, without waiting
+     * for other changes to write together with them.
+     *
+     * @param dirtyFlags The collections which have changed, see the DIRTY_ flags.
+     */
+    private void _markDirtyAndWrite(int dirtyFlags) {
+        _markDirty(dirtyFlags);
+        _flushExecutor.execute(this::_writeDirty);
+    }
+
+    /**
+     * Writes the changed collections. Only runs on the flush executor, so writes never overtake each other.
+     */
+    private void _writeDirty() {
+        _flushScheduled.set(false);
+        int dirtyFlags = _dirtyFlags.getAndSet(0);
+        if (dirtyFlags == 0) {
+            return;
+        }
+        // Read the state after clearing the flags, so it contains at least the changes the flags were set for.
+        State state = _state.get();
+        if ((dirtyFlags & DIRTY_AUTH_STATES) != 0) {
+            _preferencesService.storeSavedAuthStateList(state.savedAuthStates);
+        }
+        if ((dirtyFlags & DIRTY_KEY_PAIRS) != 0) {
+            _preferencesService.storeSavedKeyPairList(state.savedKeyPairs);
+        }
+        if ((dirtyFlags & DIRTY_ORGANIZATION) != 0) {
+            _preferencesService.storeSavedOrganization(state.savedOrganization);
+        }
     }
 
-    public void addListener(Listener listener) {
-        if (!_listeners.contains(listener)) {
-            _listeners.add(listener);
+    /**
+     * Writes all pending changes to the disk, together with the other pending preference changes,
+     * and blocks until they have been written.
+     * Call it when the process might be killed soon: the application calls it when it goes to the background.
+     */
+    public void flush() {
+        try {
+            _flushExecutor.submit(this::_writeDirty).get();
+        } catch (ExecutionException ex) {
+            Log.e(TAG, "Unable to write history!", ex);
+        } catch (InterruptedException ex) {
+            Log.w(TAG, "Interrupted while writing history!", ex);
+            Thread.currentThread().interrupt();
+            return;
         }
+        _preferencesService.flush();
     }
 
-    public void removeListener(Listener listener) {
-        _listeners.remove(listener);
+    /**
+     * Returns the stream of changes. Changes are emitted on the thread which made them,
+     * collectors receive them in their own context.
+     *
+     * @return The changes made after starting the collection.
+     */
+    @NonNull
+    public SharedFlow<HistoryChange> getChanges() {
+        return FlowKt.asSharedFlow(_changes);
     }
 
-    private void notifyListeners() {
-        _listeners.forEach(l -> l.update(this, null));
+    private void _publish(@NonNull HistoryChange change) {
+        _changes.tryEmit(change);
+    }
+
+    /**
+     * Publishes a removal for every server which had an authorization before the change, but not after it.
+     */
+    private void _publishRemovedAuthorizations(@Nullable State before) {
+        if (before == null) {
+            return;
+        }
+        State after = _state.get();
+        for (SavedAuthState savedAuthState : before.savedAuthStates) {
+            if (!after.authStatePositionByUri.containsKey(savedAuthState.getInstance().getSanitizedBaseURI())) {
+                _publish(new HistoryChange.AuthRemoved(savedAuthState.getInstance()));
+            }
+        }
     }
 
     /**
@@ -113,18 +359,20 @@ public class HistoryService {
      */
     @Nullable
     public Pair<AuthState, Date> getCachedAuthState(@NonNull Instance instance) {
-        for (SavedAuthState savedAuthState : _savedAuthStateList) {
-            if (savedAuthState.getInstance()
-                    .getSanitizedBaseURI()
-                    .equals(instance.getSanitizedBaseURI())) {
-                return new Pair(savedAuthState.getAuthState(), savedAuthState.getAuthenticationDate());
-            } else if (instance.getAuthorizationType() == AuthorizationType.Distributed && savedAuthState
-                    .getInstance()
-                    .getAuthorizationType() == AuthorizationType.Distributed) {
-                return new Pair(savedAuthState.getAuthState(), savedAuthState.getAuthenticationDate());
+        State state = _state.get();
+        Integer position = state.authStatePositionByUri.get(instance.getSanitizedBaseURI());
+        if (instance.getAuthorizationType() == AuthorizationType.Distributed) {
+            // Any distributed auth state can be used, take the one which was saved first
+            Integer distributedPosition = state.firstAuthStatePosition(AuthorizationType.Distributed);
+            if (distributedPosition != null && (position == null || distributedPosition < position)) {
+                position = distributedPosition;
             }
         }
-        return null;
+        if (position == null) {
+            return null;
+        }
+        SavedAuthState savedAuthState = state.savedAuthStates.get(position);
+        return new Pair<>(savedAuthState.getAuthState(), savedAuthState.getAuthenticationDate());
     }
 
     /**
@@ -134,35 +382,43 @@ public class HistoryService {
      * @param authState The authorization state which contains the access and refresh tokens.
      */
     public void cacheAuthorizationState(@NonNull Instance instance, @NonNull AuthState authState, @Nullable Date authenticationDate) {
-        List<Instance> existingInstances = new ArrayList<>();
-        if (instance.getAuthorizationType() == AuthorizationType.Distributed) {
-            for (SavedAuthState savedAuthState : _savedAuthStateList) {
-                if (savedAuthState.getInstance()
-                        .getAuthorizationType() == AuthorizationType.Distributed && !savedAuthState.getInstance()
-                        .getSanitizedBaseURI()
-                        .equals(instance.getSanitizedBaseURI())) {
-                    existingInstances.add(savedAuthState.getInstance());
+        _update(state -> {
+            List<Instance> existingInstances = new ArrayList<>();
+            if (instance.getAuthorizationType() == AuthorizationType.Distributed) {
+                for (Integer position : state.authStatePositions(AuthorizationType.Distributed)) {
+                    Instance existingInstance = state.savedAuthStates.get(position).getInstance();
+                    if (!existingInstance.getSanitizedBaseURI().equals(instance.getSanitizedBaseURI())) {
+                        existingInstances.add(existingInstance);
+                    }
                 }
             }
-        }
-        // Remove all previous entries
-        _removeAuthorizations(instance);
-        _savedAuthStateList.add(new SavedAuthState(instance, authState, authenticationDate));
-        for (Instance existingSharedInstance : existingInstances) {
-            _savedAuthStateList.add(new SavedAuthState(existingSharedInstance, authState, authenticationDate));
-        }
-        _save();
-        notifyListeners();
+            // Remove all previous entries
+            List<SavedAuthState> savedAuthStates = _withoutAuthorizations(state, instance);
+            savedAuthStates.add(new SavedAuthState(instance, authState, authenticationDate));
+            for (Instance existingSharedInstance : existingInstances) {
+                savedAuthStates.add(new SavedAuthState(existingSharedInstance, authState, authenticationDate));
+            }
+            return state.withSavedAuthStates(savedAuthStates);
+        });
+        _markDirty(DIRTY_AUTH_STATES);
+        _publish(new HistoryChange.AuthAdded(instance));
     }
 
     /**
-     * Removes the access token(s) which have the given base URI.
+     * Returns the saved auth states without the access token(s) which have the given base URI.
      *
-     * @param instance The instance the access token will be saved for.
+     * @param state    The state to remove the auth states from.
+     * @param instance The instance to remove the access tokens of.
+     * @return A new list of saved auth states.
      */
-    private void _removeAuthorizations(@NonNull Instance instance) {
-        Iterator<SavedAuthState> savedTokenIterator = _savedAuthStateList.iterator();
-        while (savedTokenIterator.hasNext()) {
+    @NonNull
+    private static List<SavedAuthState> _withoutAuthorizations(@NonNull State state, @NonNull Instance instance) {
+        List<SavedAuthState> result = new ArrayList<>(state.savedAuthStates);
+        boolean hasMatch = instance.getAuthorizationType() == AuthorizationType.Distributed ?
+                state.firstAuthStatePosition(AuthorizationType.Distributed) != null :
+                state.authStatePositionByUri.containsKey(instance.getSanitizedBaseURI());
+        Iterator<SavedAuthState> savedTokenIterator = result.iterator();
+        while (hasMatch && savedTokenIterator.hasNext()) {
             SavedAuthState savedAuthState = savedTokenIterator.next();
             if (instance.getAuthorizationType() == AuthorizationType.Distributed &&
                     savedAuthState.getInstance().getAuthorizationType() == AuthorizationType.Distributed) {
@@ -178,7 +434,7 @@ public class HistoryService {
                 Log.i(TAG, "Deleted saved token for organization auth instance " + savedAuthState.getInstance().getSanitizedBaseURI());
             }
         }
-        _save();
+        return result;
     }
 
     /**
@@ -187,7 +443,7 @@ public class HistoryService {
      * @return The list of all saved access tokens and instances.
      */
     public List<SavedAuthState> getSavedAuthStateList() {
-        return Collections.unmodifiableList(_savedAuthStateList);
+        return _state.get().savedAuthStates;
     }
 
     /**
@@ -198,21 +454,14 @@ public class HistoryService {
      */
     @Nullable
     public SavedAuthState getSavedToken(Instance instance) {
+        State state = _state.get();
         // First we prioritize tokens which belong to the same instance
-        for (SavedAuthState savedAuthState : _savedAuthStateList) {
-            if (instance.getSanitizedBaseURI().equals(savedAuthState.getInstance().getSanitizedBaseURI())) {
-                return savedAuthState;
-            }
+        Integer position = state.authStatePositionByUri.get(instance.getSanitizedBaseURI());
+        // Second: if distributed auth instance, any other instance with distributed auth is fine as well
+        if (position == null && instance.getAuthorizationType() == AuthorizationType.Distributed) {
+            position = state.firstAuthStatePosition(AuthorizationType.Distributed);
         }
-        // Second pass: if distributed auth instance, any other instance with distributed auth is fine as well
-        if (instance.getAuthorizationType() == AuthorizationType.Distributed) {
-            for (SavedAuthState savedAuthState : _savedAuthStateList) {
-                if (savedAuthState.getInstance().getAuthorizationType() == AuthorizationType.Distributed) {
-                    return savedAuthState;
-                }
-            }
-        }
-        return null;
+        return position == null ? null : state.savedAuthStates.get(position);
     }
 
     /**
@@ -222,23 +471,20 @@ public class HistoryService {
      * @return The saved key pair if there was a previously generated one. Null if none created yet.
      */
     public SavedKeyPair getSavedKeyPairForInstance(Instance instance) {
-        for (SavedKeyPair savedKeyPair : _savedKeyPairList) {
-            if (savedKeyPair.getInstance().getSanitizedBaseURI().equals(instance.getSanitizedBaseURI())) {
-                return savedKeyPair;
-            }
-        }
-        return null;
+        State state = _state.get();
+        Integer position = state.keyPairPositionByUri.get(instance.getSanitizedBaseURI());
+        return position == null ? null : state.savedKeyPairs.get(position);
     }
 
     @Nullable
     public Organization getSavedOrganization() {
-        return _savedOrganization;
+        return _state.get().savedOrganization;
     }
 
     public void storeSavedOrganization(@NonNull Organization organization) {
-        _savedOrganization = organization;
-        _preferencesService.storeSavedOrganization(organization);
-        notifyListeners();
+        _update(state -> state.withSavedOrganization(organization));
+        _markDirty(DIRTY_ORGANIZATION);
+        _publish(new HistoryChange.OrganizationChanged(organization));
     }
 
     /**
@@ -247,48 +493,61 @@ public class HistoryService {
      * @param savedKeyPair The saved key pair to store.
      */
     public void storeSavedKeyPair(@NonNull SavedKeyPair savedKeyPair) {
-        // Check if it is not a duplicate
-        boolean wasDuplicate = false;
-        ListIterator<SavedKeyPair> savedKeyPairIterator = _savedKeyPairList.listIterator();
-        while (savedKeyPairIterator.hasNext()) {
-            SavedKeyPair current = savedKeyPairIterator.next();
-            if (current.getInstance().getSanitizedBaseURI().equals(savedKeyPair.getInstance().getSanitizedBaseURI())) {
-                if (!wasDuplicate) {
-                    savedKeyPairIterator.set(savedKeyPair);
-                } else {
-                    // We already replaced one. So this one is a duplicate.
-                    Log.w(TAG, "Found a duplicate key pair entry! Removing second one.");
-                    savedKeyPairIterator.remove();
-                }
-                wasDuplicate = true;
+        _update(state -> {
+            // Replace the existing one if there is one. The index makes sure there are no duplicates.
+            List<SavedKeyPair> savedKeyPairs = new ArrayList<>(state.savedKeyPairs);
+            Integer position = state.keyPairPositionByUri.get(savedKeyPair.getInstance().getSanitizedBaseURI());
+            if (position != null) {
+                savedKeyPairs.set(position, savedKeyPair);
+            } else {
+                savedKeyPairs.add(savedKeyPair);
             }
-        }
-        if (!wasDuplicate) {
-            _savedKeyPairList.add(savedKeyPair);
-        }
-        _preferencesService.storeSavedKeyPairList(_savedKeyPairList);
+            return state.withSavedKeyPairs(savedKeyPairs);
+        });
+        _markDirty(DIRTY_KEY_PAIRS);
+        _publish(new HistoryChange.KeyPairStored(savedKeyPair.getInstance()));
     }
 
     /**
      * Refreshes an auth state in the list.
+     * The distributed auth instances share their auth state, so refreshing one of them refreshes all of them.
      *
      * @param authState The auth state to refresh.
      */
     public void refreshAuthState(AuthState authState) {
-        if (_savedAuthStateList == null) {
-            Log.w(TAG, "No saved auth states found. Nothing to refresh?");
-            return;
-        }
         // Two auth states are for the same API if their configuration is the same.
         AuthorizationServiceConfiguration currentConfig = authState.getAuthorizationServiceConfiguration();
-        for (SavedAuthState savedAuthState : _savedAuthStateList) {
-            if (_authConfigsEqual(currentConfig, savedAuthState.getAuthState().getAuthorizationServiceConfiguration())) {
-                savedAuthState.setAuthState(authState);
-                Log.d(TAG, "Auth state found and replaced for " + savedAuthState.getInstance().getBaseURI());
-                break;
+        State before = _update(state -> {
+            for (int i = 0; i < state.savedAuthStates.size(); ++i) {
+                SavedAuthState savedAuthState = state.savedAuthStates.get(i);
+                if (_authConfigsEqual(currentConfig, savedAuthState.getAuthState().getAuthorizationServiceConfiguration())) {
+                    List<SavedAuthState> savedAuthStates = new ArrayList<>(state.savedAuthStates);
+                    if (savedAuthState.getInstance().getAuthorizationType() == AuthorizationType.Distributed) {
+                        for (Integer position : state.authStatePositions(AuthorizationType.Distributed)) {
+                            SavedAuthState shared = state.savedAuthStates.get(position);
+                            savedAuthStates.set(position, new SavedAuthState(shared.getInstance(), authState, shared.getAuthenticationDate()));
+                        }
+                    } else {
+                        savedAuthStates.set(i, new SavedAuthState(savedAuthState.getInstance(), authState, savedAuthState.getAuthenticationDate()));
+                    }
+                    return state.withSavedAuthStates(savedAuthStates);
+                }
             }
+            return state;
+        });
+        if (before != null) {
+            Log.d(TAG, "Auth state found and replaced.");
+            // The server might have rotated the refresh token, losing the new one would log the user out.
+            _markDirtyAndWrite(DIRTY_AUTH_STATES);
+            for (SavedAuthState savedAuthState : _state.get().savedAuthStates) {
+                if (savedAuthState.getAuthState() == authState) {
+                    _publish(new HistoryChange.AuthRefreshed(savedAuthState.getInstance()));
+                    break;
+                }
+            }
+        } else {
+            Log.w(TAG, "No saved auth state found for the refreshed one. Nothing to refresh?");
         }
-        _preferencesService.storeSavedAuthStateList(_savedAuthStateList);
     }
 
     /**
@@ -298,7 +557,7 @@ public class HistoryService {
      * @param right The second operand.
      * @return True if they have the same URLs, false if not.
      */
-    private boolean _authConfigsEqual(AuthorizationServiceConfiguration left, AuthorizationServiceConfiguration right) {
+    private static boolean _authConfigsEqual(AuthorizationServiceConfiguration left, AuthorizationServiceConfiguration right) {
         return left.tokenEndpoint.toString().equals(right.tokenEndpoint.toString()) &&
                 left.authorizationEndpoint.toString().equals(right.authorizationEndpoint.toString());
 
@@ -310,11 +569,21 @@ public class HistoryService {
      * @param instance The instance to remove.
      */
     public void removeSavedKeyPairs(Instance instance) {
-        if (_savedKeyPairList == null) {
-            Log.i(TAG, "No saved key pairs found to remove.");
-            return;
-        }
-        ListIterator<SavedKeyPair> keyPairListIterator = _savedKeyPairList.listIterator();
+        _update(state -> state.withSavedKeyPairs(_withoutKeyPairs(state, instance)));
+        _markDirty(DIRTY_KEY_PAIRS);
+    }
+
+    /**
+     * Returns the saved key pairs without the ones of the given instance and all connecting instances.
+     *
+     * @param state    The state to remove the key pairs from.
+     * @param instance The instance to remove the key pairs of.
+     * @return A new list of saved key pairs.
+     */
+    @NonNull
+    private static List<SavedKeyPair> _withoutKeyPairs(@NonNull State state, @NonNull Instance instance) {
+        List<SavedKeyPair> result = new ArrayList<>(state.savedKeyPairs);
+        Iterator<SavedKeyPair> keyPairListIterator = result.iterator();
         while (keyPairListIterator.hasNext()) {
             SavedKeyPair current = keyPairListIterator.next();
             if (instance.getAuthorizationType() == AuthorizationType.Distributed &&
@@ -328,7 +597,21 @@ public class HistoryService {
 
             }
         }
-        _save();
+        return result;
+    }
+
+    /**
+     * Returns the state without any of the saved data for an instance.
+     * For a distributed auth instance, the data of all distributed auth instances is removed.
+     */
+    @NonNull
+    private static State _withoutInstance(@NonNull State state, @NonNull Instance instance) {
+        if (instance.getAuthorizationType() == AuthorizationType.Distributed &&
+                state.firstAuthStatePosition(AuthorizationType.Distributed) == null) {
+            return state;
+        }
+        return state.withSavedKeyPairs(_withoutKeyPairs(state, instance))
+                .withSavedAuthStates(_withoutAuthorizations(state, instance));
     }
 
     /**
@@ -337,37 +620,25 @@ public class HistoryService {
      * @param instance The instance to remove the data for.
      */
     public void removeAllDataForInstance(Instance instance) {
-        if (instance.getAuthorizationType() == AuthorizationType.Distributed) {
-            // Remove all distributed instance related data
-            List<SavedAuthState> authStates = new ArrayList<>(getSavedAuthStateList());
-            for (SavedAuthState savedAuthState : authStates) {
-                if (savedAuthState.getInstance().getAuthorizationType() == AuthorizationType.Distributed) {
-                    removeSavedKeyPairs(savedAuthState.getInstance());
-                    _removeAuthorizations(savedAuthState.getInstance());
-                }
-            }
-        } else {
-            removeSavedKeyPairs(instance);
-            _removeAuthorizations(instance);
-        }
-        notifyListeners();
+        State before = _update(state -> _withoutInstance(state, instance));
+        _markDirty(DIRTY_AUTH_STATES | DIRTY_KEY_PAIRS);
+        _publishRemovedAuthorizations(before);
     }
 
     /***
      * Removes all saved data in this app.
      ***/
     public void removeOrganizationData() {
-        _savedOrganization = null;
         _preferencesService.setCurrentOrganization(null);
-        List<Instance> instancesToRemove = new ArrayList<>();
-        for (SavedAuthState authState : _savedAuthStateList) {
-            if (authState.getInstance() != null && authState.getInstance().getAuthorizationType() == AuthorizationType.Distributed) {
-                instancesToRemove.add(authState.getInstance());
+        State before = _update(state -> {
+            State updated = state.withSavedOrganization(null);
+            for (Integer position : state.authStatePositions(AuthorizationType.Distributed)) {
+                updated = _withoutInstance(updated, state.savedAuthStates.get(position).getInstance());
             }
-        }
-        for (Instance instance : instancesToRemove) {
-            removeAllDataForInstance(instance);
-        }
-        _save();
+            return updated;
+        });
+        _markDirty(DIRTY_AUTH_STATES | DIRTY_KEY_PAIRS | DIRTY_ORGANIZATION);
+        _publish(new HistoryChange.OrganizationChanged(null));
+        _publishRemovedAuthorizations(before);
     }
 }
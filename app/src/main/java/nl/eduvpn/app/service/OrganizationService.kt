@@ -16,12 +16,15 @@
  */
 package nl.eduvpn.app.service
 
+import android.content.Context
+import android.util.Base64
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.withContext
 import nl.eduvpn.app.BuildConfig
 import nl.eduvpn.app.Constants
+import nl.eduvpn.app.entity.ListValidators
 import nl.eduvpn.app.entity.OrganizationList
 import nl.eduvpn.app.entity.ServerList
 import nl.eduvpn.app.entity.exception.InvalidSignatureException
@@ -31,115 +34,293 @@ import nl.eduvpn.app.utils.charset
 import nl.eduvpn.app.utils.runCatchingCoroutine
 import okhttp3.OkHttpClient
 import okhttp3.Request
-import org.json.JSONObject
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.FileNotFoundException
 import java.io.IOException
 import java.nio.charset.Charset
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Service which provides the configurations for organization related data model.
  * Created by Daniel Zolnai on 2016-10-07.
  */
-class OrganizationService(private val serializerService: SerializerService,
+class OrganizationService(private val context: Context,
+                          private val serializerService: SerializerService,
                           private val securityService: SecurityService,
-                          private val okHttpClient: OkHttpClient) {
+                          private val retryService: RetryService,
+                          private val okHttpClient: OkHttpClient,
+                          private val preferencesService: PreferencesService) {
 
 
+    /**
+     * The last verified version of a list, together with the data needed to check if it has changed.
+     *
+     * @param eTag          The ETag header of the response, if any.
+     * @param lastModified  The Last-Modified header of the response, if any.
+     * @param signature     The minisign signature the content was verified with.
+     * @param contentDigest The BLAKE2b hash of the verified content, as computed while downloading it.
+     * @param value         The parsed list.
+     */
+    private class VerifiedList<T>(
+        val eTag: String?,
+        val lastModified: String?,
+        val signature: String,
+        val contentDigest: ByteArray,
+        val value: T
+    )
+
+    private class ListResponse(
+        val bytes: ByteArray,
+        val contentDigest: ByteArray,
+        val charset: Charset,
+        val eTag: String?,
+        val lastModified: String?
+    )
+
+    // Keyed by the URL of the list. Seeded from the stored validators and list after a restart.
+    private val verifiedLists = ConcurrentHashMap<String, VerifiedList<*>>()
+
     suspend fun fetchServerList(): ServerList {
-        return coroutineScope {
-            val serverListUrl = BuildConfig.ORGANIZATION_LIST_BASE_URL + "server_list.json"
-
-            val signatureDeferred = async {
-                runCatchingCoroutine {
-                    getSignature(serverListUrl)
-                }.mapCatching { signature ->
-                    if (signature.isBlank()) {
-                        throw IllegalArgumentException("Signature of server list is empty!")
-                    }
-                    signature
-                }.onFailure { it ->
-                    Log.w(TAG, "Unable to fetch server list!", it)
-                }.getOrThrow()
+        val serverListUrl = BuildConfig.ORGANIZATION_LIST_BASE_URL + SERVER_LIST_FILE_NAME
+        return fetchVerifiedList(serverListUrl, "server list", ::parseServerList, ServerList::version) {
+            preferencesService.getServerList(includeExpired = true)?.first?.let { storedList ->
+                ServerList(storedList.version, storedList.serverList.toList())
             }
-            val serverListDeferred = async {
-                runCatchingCoroutine {
-                    getJsonBytes(serverListUrl)
-                }.onFailure { it ->
-                    Log.w(TAG, "Unable to fetch signature of server list!", it)
-                }.getOrThrow()
+        }
+    }
+
+    suspend fun fetchOrganizations(): OrganizationList {
+        val listUrl = BuildConfig.ORGANIZATION_LIST_BASE_URL + ORGANIZATION_LIST_FILE_NAME
+        return fetchVerifiedList(listUrl, "organization list", ::parseOrganizationList, OrganizationList::version) {
+            preferencesService.getOrganizationList()?.first?.let { storedList ->
+                OrganizationList(storedList.version, storedList.organizationList.toList())
             }
+        }
+    }
+
+    /**
+     * Loads the server list bundled with the app at build time.
+     *
+     * @return The verified server list, or null if there is none, or it could not be verified.
+     */
+    suspend fun loadBundledServerList(): ServerList? {
+        return loadBundledList(SERVER_LIST_FILE_NAME, "server list", ::parseServerList)
+    }
 
-            val (serverListBytes, serverListCharset) = serverListDeferred.await()
-            val signature = signatureDeferred.await()
+    /**
+     * Loads the organization list bundled with the app at build time.
+     *
+     * @return The verified organization list, or null if there is none, or it could not be verified.
+     */
+    suspend fun loadBundledOrganizations(): OrganizationList? {
+        return loadBundledList(ORGANIZATION_LIST_FILE_NAME, "organization list", ::parseOrganizationList)
+    }
 
-            try {
-                if (!securityService.verifyMinisign(serverListBytes, signature)) {
-                    throw InvalidSignatureException("Signature validation failed for server list!")
-                }
-            } catch (ex: Exception) {
-                Log.w(TAG, "Unable to verify signature", ex)
-                throw InvalidSignatureException("Signature validation failed for server list!")
-            }
+    private fun parseServerList(bytes: ByteArray, charset: Charset): ServerList {
+        val serverListString = bytes.toString(charset)
+        if (serverListString.isBlank()) {
+            Log.w(TAG, "Server list is empty")
+            throw IllegalArgumentException("Server list is empty!")
+        }
+        return serializerService.deserializeServerList(serverListString)
+    }
 
-            val serverListString = serverListBytes.toString(serverListCharset)
-            if (serverListString.isBlank()) {
-                Log.w(TAG, "Server list is empty")
-                throw IllegalArgumentException("Server list is empty!")
-            }
-            serializerService.deserializeServerList(serverListString)
+    private fun parseOrganizationList(bytes: ByteArray, charset: Charset): OrganizationList {
+        if (bytes.isEmpty()) {
+            Log.w(TAG, "Organization list is empty!")
+            throw IllegalArgumentException("Organization list is empty!")
         }
+        // Parse straight from the bytes, without creating a string or a JSON tree copy of the list.
+        return serializerService.deserializeOrganizationList(ByteArrayInputStream(bytes), charset)
     }
 
-    suspend fun fetchOrganizations(): OrganizationList {
+    /**
+     * Loads a signed list from the assets, verifies its signature and parses it.
+     * The lists are only bundled in the flavors which use the server discovery.
+     *
+     * @param fileName The file name of the list. The signature is expected in the same directory with the signature postfix.
+     * @param listName The name of the list, used in log messages.
+     * @param parse    Parses the verified content of the list.
+     * @return The parsed list, or null if it is not bundled, or it could not be verified.
+     */
+    private suspend fun <T> loadBundledList(
+        fileName: String,
+        listName: String,
+        parse: (ByteArray, Charset) -> T
+    ): T? = withContext(Dispatchers.IO) {
+        runCatchingCoroutine {
+            val path = BUNDLED_LIST_DIRECTORY + fileName
+            val bytes = context.assets.open(path).use { it.readBytes() }
+            val signature = context.assets.open(path + BuildConfig.SIGNATURE_URL_POSTFIX).use {
+                it.readBytes().toString(Charsets.UTF_8)
+            }
+            if (!securityService.verifyMinisign(bytes, signature)) {
+                throw InvalidSignatureException("Signature validation failed for bundled $listName!")
+            }
+            parse(bytes, Charsets.UTF_8)
+        }.onFailure { throwable ->
+            if (throwable is FileNotFoundException) {
+                Log.v(TAG, "There is no bundled $listName.")
+            } else {
+                Log.w(TAG, "Unable to load bundled $listName!", throwable)
+            }
+        }.getOrNull()
+    }
+
+    /**
+     * Fetches a signed list, verifies its signature and parses it.
+     * If the list did not change since the last verified fetch (the server responded with 304 Not Modified,
+     * or the content is byte-identical), the signature is not downloaded nor verified again,
+     * and the previously parsed list is returned.
+     * Otherwise the signature is downloaded and verified while the list is parsed on a background thread.
+     * The parsed list is only returned if the signature is valid, and discarded if it is not.
+     *
+     * @param url        The URL of the list. The signature is expected at the same URL with the signature postfix.
+     * @param listName   The name of the list, used in log and error messages.
+     * @param parse      Parses the content of the list. Runs on the default dispatcher.
+     * @param versionOf  Returns the version of a list.
+     * @param loadStored Loads the list stored on the device, used with the stored validators after a restart. Runs on the IO dispatcher.
+     * @return The parsed list.
+     */
+    private suspend fun <T> fetchVerifiedList(
+        url: String,
+        listName: String,
+        parse: (ByteArray, Charset) -> T,
+        versionOf: (T) -> Long,
+        loadStored: () -> T?
+    ): T {
         return coroutineScope {
-            val listUrl = BuildConfig.ORGANIZATION_LIST_BASE_URL + "organization_list.json"
-
-            val organizationListDeferred = async {
-                runCatchingCoroutine {
-                    getJsonBytes(listUrl)
-                }.onFailure {
-                    Log.w(TAG, "Unable to fetch organization list!", it)
-                }.getOrThrow()
+            val cachedList = getVerifiedList(url, listName, versionOf, loadStored)
+
+            val listResponse = runCatchingCoroutine {
+                getJsonBytes(url, cachedList)
+            }.onFailure {
+                Log.w(TAG, "Unable to fetch $listName!", it)
+            }.getOrThrow()
+
+            if (listResponse == null) {
+                // Not modified, the signature we verified before is still valid for this content.
+                Log.v(TAG, "The $listName was not modified, using the previously verified version.")
+                return@coroutineScope cachedList!!.value
             }
 
-            val signatureDeferred = async {
-                runCatchingCoroutine {
-                    getSignature(listUrl)
-                }.mapCatching { signature ->
-                    if (signature.isBlank()) {
-                        throw throw IllegalArgumentException("Signature of organization list is empty!")
-                    }
-                    signature
-                }.onFailure {
-                    Log.w(TAG, "Unable to fetch signature of organization list!", it)
-                }.getOrThrow()
+            val contentDigest = listResponse.contentDigest
+            if (cachedList != null && MessageDigest.isEqual(cachedList.contentDigest, contentDigest)) {
+                Log.v(TAG, "The $listName content is unchanged, using the previously verified version.")
+                storeVerifiedList(
+                    url,
+                    VerifiedList(
+                        listResponse.eTag,
+                        listResponse.lastModified,
+                        cachedList.signature,
+                        contentDigest,
+                        cachedList.value
+                    ),
+                    versionOf
+                )
+                return@coroutineScope cachedList.value
             }
 
-            val (organizationListBytes, charset) = organizationListDeferred.await()
-            val signature = signatureDeferred.await()
+            // Parsing can start before the content is verified, because the result is only used after verifying it.
+            val parsedDeferred = async(Dispatchers.Default) {
+                runCatchingCoroutine { parse(listResponse.bytes, listResponse.charset) }
+            }
 
+            // If fetching the signature fails, the scope cancels the parsing as well.
+            val signature = runCatchingCoroutine {
+                getSignature(url)
+            }.mapCatching { signature ->
+                if (signature.isBlank()) {
+                    throw IllegalArgumentException("Signature of $listName is empty!")
+                }
+                signature
+            }.onFailure {
+                Log.w(TAG, "Unable to fetch signature of $listName!", it)
+            }.getOrThrow()
             try {
-                if (!securityService.verifyMinisign(organizationListBytes, signature)) {
-                    throw InvalidSignatureException("Signature validation failed for organization list!")
+                if (!securityService.verifyMinisign(listResponse.bytes, signature, contentDigest)) {
+                    throw InvalidSignatureException("Signature validation failed for $listName!")
                 }
             } catch (ex: Exception) {
                 Log.w(TAG, "Unable to verify signature", ex)
-                throw InvalidSignatureException("Signature validation failed for organization list!")
+                parsedDeferred.cancel()
+                throw InvalidSignatureException("Signature validation failed for $listName!")
             }
 
-            val organizationListString = organizationListBytes.toString(charset)
-            if (organizationListString.isBlank()) {
-                Log.w(TAG, "Organization list is empty!")
-                throw IllegalArgumentException("Organization list is empty!")
-            }
-            val organizationListJson = JSONObject(organizationListString)
-            serializerService.deserializeOrganizationList(organizationListJson)
+            val result = parsedDeferred.await().getOrThrow()
+            storeVerifiedList(
+                url,
+                VerifiedList(
+                    listResponse.eTag,
+                    listResponse.lastModified,
+                    signature,
+                    contentDigest,
+                    result
+                ),
+                versionOf
+            )
+            result
+        }
+    }
+
+    /**
+     * Returns the last verified version of a list. After a restart, it is put together from the stored validators
+     * and the stored list, if the stored list is the version the validators were stored with.
+     * The stored list is decoded completely, so a damaged list is not revalidated, but downloaded again.
+     */
+    private suspend fun <T> getVerifiedList(
+        url: String,
+        listName: String,
+        versionOf: (T) -> Long,
+        loadStored: () -> T?
+    ): VerifiedList<T>? {
+        @Suppress("UNCHECKED_CAST")
+        (verifiedLists[url] as VerifiedList<T>?)?.let { return it }
+        val validators = preferencesService.getListValidators(url) ?: return null
+        val storedList = withContext(Dispatchers.IO) {
+            runCatchingCoroutine {
+                loadStored()
+            }.onFailure {
+                Log.w(TAG, "Unable to load the stored $listName, not revalidating it.", it)
+            }.getOrNull()
+        } ?: return null
+        if (versionOf(storedList) != validators.version) {
+            Log.v(TAG, "The stored $listName does not match its validators, not revalidating it.")
+            return null
         }
+        val verifiedList = VerifiedList(
+            validators.eTag,
+            validators.lastModified,
+            validators.signature,
+            Base64.decode(validators.contentDigest, Base64.NO_WRAP),
+            storedList
+        )
+        verifiedLists.putIfAbsent(url, verifiedList)
+        return verifiedList
+    }
+
+    private fun <T> storeVerifiedList(url: String, verifiedList: VerifiedList<T>, versionOf: (T) -> Long) {
+        verifiedLists[url] = verifiedList
+        preferencesService.setListValidators(
+            url,
+            ListValidators(
+                versionOf(verifiedList.value),
+                verifiedList.eTag,
+                verifiedList.lastModified,
+                verifiedList.signature,
+                Base64.encodeToString(verifiedList.contentDigest, Base64.NO_WRAP)
+            )
+        )
     }
 
     private suspend fun getSignature(signatureRequestUrl: String): String {
         val postfixedUrl = signatureRequestUrl + BuildConfig.SIGNATURE_URL_POSTFIX
         val request = Request.Builder().url(postfixedUrl).build()
-        val response = okHttpClient.newCall(request).await()
+        val response = retryService.withRetries(RetryService.Endpoint.Discovery) {
+            okHttpClient.newCall(request).await()
+        }
         val responseBody = response.body
         if (responseBody != null) {
             val result = withContext(Dispatchers.IO) { responseBody.string() }
@@ -150,9 +331,24 @@ class OrganizationService(private val serializerService: SerializerService,
         }
     }
 
-    private suspend fun getJsonBytes(url: String): Pair<ByteArray, Charset> {
-        val request = Request.Builder().url(url).build()
-        val response = okHttpClient.newCall(request).await()
+    /**
+     * Downloads a list. The content is hashed while it is being downloaded,
+     * so the hash is ready for verifying a prehashed signature when the download completes.
+     *
+     * @param url          The URL of the list.
+     * @param verifiedList The previously verified version of the list. If available, a conditional request is made.
+     * @return The response, or null if the server reported that the list was not modified.
+     */
+    private suspend fun getJsonBytes(url: String, verifiedList: VerifiedList<*>?): ListResponse? {
+        val requestBuilder = Request.Builder().url(url)
+        if (verifiedList != null) {
+            verifiedList.eTag?.let { requestBuilder.header(HEADER_IF_NONE_MATCH, it) }
+            verifiedList.lastModified?.let { requestBuilder.header(HEADER_IF_MODIFIED_SINCE, it) }
+        }
+        val request = requestBuilder.build()
+        val response = retryService.withRetries(RetryService.Endpoint.Discovery) {
+            okHttpClient.newCall(request).await()
+        }
         val responseBody = response.body
         val responseCode = response.code
         var isGone = false
@@ -162,12 +358,38 @@ class OrganizationService(private val serializerService: SerializerService,
             }
         }
         if (isGone) {
+            response.close()
             throw OrganizationDeletedException()
+        } else if (responseCode == HTTP_NOT_MODIFIED && verifiedList != null) {
+            response.close()
+            return null
         } else if (responseBody != null) {
             val charset = responseBody.charset()
-            val result = withContext(Dispatchers.IO) { responseBody.bytes() }
-            responseBody.close()
-            return Pair(result, charset)
+            val hasher = SecurityService.MessageHasher(responseBody.contentLength())
+            val result = withContext(Dispatchers.IO) {
+                responseBody.use { body ->
+                    val source = body.source()
+                    val contentLength = body.contentLength()
+                    val output = ByteArrayOutputStream(if (contentLength in 1L..Int.MAX_VALUE.toLong()) contentLength.toInt() else DOWNLOAD_BUFFER_SIZE)
+                    val buffer = ByteArray(DOWNLOAD_BUFFER_SIZE)
+                    while (true) {
+                        val read = source.read(buffer)
+                        if (read == -1) {
+                            break
+                        }
+                        hasher.update(buffer, read)
+                        output.write(buffer, 0, read)
+                    }
+                    output.toByteArray()
+                }
+            }
+            return ListResponse(
+                result,
+                hasher.digest(),
+                charset,
+                response.header(HEADER_ETAG),
+                response.header(HEADER_LAST_MODIFIED)
+            )
         } else {
             throw IOException("Response body is empty!")
         }
@@ -177,5 +399,17 @@ class OrganizationService(private val serializerService: SerializerService,
 
     companion object {
         private val TAG = OrganizationService::class.java.name
+
+        private const val DOWNLOAD_BUFFER_SIZE = 8192
+
+        // Downloaded and verified by the downloadDiscoSnapshot task of the build
+        private const val BUNDLED_LIST_DIRECTORY = "disco/"
+        private const val SERVER_LIST_FILE_NAME = "server_list.json"
+        private const val ORGANIZATION_LIST_FILE_NAME = "organization_list.json"
+        private const val HTTP_NOT_MODIFIED = 304
+        private const val HEADER_ETAG = "ETag"
+        private const val HEADER_LAST_MODIFIED = "Last-Modified"
+        private const val HEADER_IF_NONE_MATCH = "If-None-Match"
+        private const val HEADER_IF_MODIFIED_SINCE = "If-Modified-Since"
     }
 }
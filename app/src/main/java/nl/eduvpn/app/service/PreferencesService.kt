@@ -28,11 +28,14 @@ import nl.eduvpn.app.BuildConfig
 import nl.eduvpn.app.Constants
 import nl.eduvpn.app.entity.*
 import nl.eduvpn.app.entity.v3.Protocol
+import nl.eduvpn.app.utils.FileSharedPreferences
+import nl.eduvpn.app.utils.ListSnapshotStore
 import nl.eduvpn.app.utils.Log
 import org.json.JSONException
 import org.json.JSONObject
 import java.io.File
 import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * This service is used to save temporary data
@@ -49,10 +52,13 @@ class PreferencesService(
     companion object {
         private val TAG = PreferencesService::class.simpleName
 
-        private const val STORAGE_VERSION = 4
+        private const val STORAGE_VERSION = 7
 
+        @Deprecated("Moved to the per-key file store.")
         private const val KEY_PREFERENCES_NAME = "app_preferences"
 
+        private const val PREFERENCES_DIRECTORY_NAME = "preferences"
+
         private const val KEY_AUTH_STATE = "auth_state"
         private const val KEY_APP_SETTINGS = "app_settings"
 
@@ -62,6 +68,9 @@ class PreferencesService(
         const val KEY_VPN_PROTOCOL = "vpn_protocol"
         const val KEY_PROFILE_LIST = "profile_list"
         const val KEY_DISCOVERED_API = "discovered_api"
+        const val KEY_DISCOVERED_API_CACHE = "discovered_api_cache"
+        const val KEY_PROFILE_LIST_CACHE = "profile_list_cache"
+        const val KEY_LIST_VALIDATORS_CACHE = "list_validators_cache"
 
         const val KEY_LAST_KNOWN_ORGANIZATION_LIST_VERSION = "last_known_organization_list_version"
         const val KEY_LAST_KNOWN_SERVER_LIST_VERSION = "last_known_server_list_version"
@@ -75,9 +84,16 @@ class PreferencesService(
         const val KEY_INSTANCE_LIST_INSTITUTE_ACCESS =
             KEY_INSTANCE_LIST_PREFIX + "institute_access"
 
+        @Deprecated("Moved to the snapshot store.")
         const val KEY_SERVER_LIST_DATA = "server_list_data"
+
+        @Deprecated("Moved to the snapshot store.")
         const val KEY_SERVER_LIST_TIMESTAMP = "server_list_timestamp"
 
+        private const val SNAPSHOT_DIRECTORY_NAME = "snapshots"
+        private const val SNAPSHOT_SERVER_LIST = "server_list"
+        private const val SNAPSHOT_ORGANIZATION_LIST = "organization_list"
+
         const val KEY_SAVED_AUTH_STATES = "saved_auth_state"
         const val KEY_SAVED_KEY_PAIRS = "saved_key_pairs"
         const val KEY_SAVED_ORGANIZATION = "saved_organization"
@@ -88,12 +104,157 @@ class PreferencesService(
 
     private val _serializerService: SerializerService = serializerService
     private val _sharedPreferences: SharedPreferences =
-        applicationContext.getSharedPreferences(KEY_PREFERENCES_NAME, Context.MODE_PRIVATE)
+        FileSharedPreferences.open(File(applicationContext.filesDir, PREFERENCES_DIRECTORY_NAME))
+    private val _snapshotStore =
+        ListSnapshotStore(File(applicationContext.filesDir, SNAPSHOT_DIRECTORY_NAME))
+
+    // The editor of the transaction running on the current thread, see transaction()
+    private val _transactionEditor = ThreadLocal<SharedPreferences.Editor>()
+
+    private val _cacheHits = AtomicLong()
+    private val _cacheMisses = AtomicLong()
+
+    /**
+     * The number of reads which returned a previously decoded object.
+     */
+    @VisibleForTesting
+    val cacheHitCount: Long
+        get() = _cacheHits.get()
+
+    /**
+     * The number of reads which had to decode the stored value.
+     */
+    @VisibleForTesting
+    val cacheMissCount: Long
+        get() = _cacheMisses.get()
+
+    private val _currentInstance = DecodedPreference(KEY_INSTANCE) { serializedInstance ->
+        try {
+            _serializerService.deserializeInstance(serializedInstance)
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize instance!", ex)
+            null
+        }
+    }
+
+    private val _currentProfile = DecodedPreference(KEY_PROFILE) { serializedProfile ->
+        try {
+            _serializerService.deserializeProfile(serializedProfile)
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize saved profile!", ex)
+            null
+        }
+    }
+
+    private val _currentDiscoveredAPI = DecodedPreference(KEY_DISCOVERED_API) { serializedDiscoveredAPI ->
+        try {
+            _serializerService.deserializeDiscoveredAPIs(serializedDiscoveredAPI).v3
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize saved discovered API", ex)
+            null
+        }
+    }
+
+    private val _discoveredAPICache = DecodedPreference(KEY_DISCOVERED_API_CACHE) { serializedCache ->
+        try {
+            _serializerService.deserializeDiscoveredAPICache(serializedCache)
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize discovered API cache", ex)
+            null
+        }
+    }
+
+    private val _profileListCache = DecodedPreference(KEY_PROFILE_LIST_CACHE) { serializedCache ->
+        try {
+            _serializerService.deserializeProfileListCache(serializedCache)
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize profile list cache", ex)
+            null
+        }
+    }
+
+    private val _listValidatorsCache = DecodedPreference(KEY_LIST_VALIDATORS_CACHE) { serializedCache ->
+        try {
+            _serializerService.deserializeListValidatorsCache(serializedCache)
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize list validators cache", ex)
+            null
+        }
+    }
+
+    private val _currentProtocol = DecodedPreference(KEY_VPN_PROTOCOL) { serializedProtocol ->
+        try {
+            _serializerService.deserializeProtocol(serializedProtocol)
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Unable to deserialize saved protocol!", ex)
+            null
+        }
+    }
+
+    private val _appSettings = DecodedPreference(KEY_APP_SETTINGS) { serializedSettings ->
+        try {
+            _serializerService.deserializeAppSettings(JSONObject(serializedSettings))
+        } catch (ex: Exception) {
+            when (ex) {
+                is SerializerService.UnknownFormatException, is JSONException -> {
+                    Log.e(TAG, "Unable to deserialize app settings!", ex)
+                    null
+                }
+                else -> throw ex
+            }
+        }
+    }
 
     init {
+        importLegacyPreferencesIfNeeded(_sharedPreferences, applicationContext)
         migrateIfNeeded(_sharedPreferences, applicationContext)
     }
 
+    /**
+     * Moves the values from the single SharedPreferences file used up to storage version 6 to the per-key file store.
+     * The storage version is moved along, so the migrations after this one continue from the stored version.
+     */
+    @SuppressLint("ApplySharedPref")
+    @VisibleForTesting
+    fun importLegacyPreferencesIfNeeded(
+        newPreferences: SharedPreferences,
+        applicationContext: Context,
+    ) {
+        if (newPreferences.contains(KEY_STORAGE_VERSION)) {
+            return
+        }
+        @Suppress("DEPRECATION")
+        val legacyPreferences =
+            applicationContext.getSharedPreferences(KEY_PREFERENCES_NAME, Context.MODE_PRIVATE)
+        val legacyValues = legacyPreferences.all
+        if (legacyValues.isEmpty()) {
+            return
+        }
+        val editor = newPreferences.edit()
+        legacyValues.forEach { (key, value) ->
+            when (value) {
+                is String -> editor.putString(key, value)
+                is Int -> editor.putInt(key, value)
+                is Long -> editor.putLong(key, value)
+                is Float -> editor.putFloat(key, value)
+                is Boolean -> editor.putBoolean(key, value)
+                is Set<*> -> editor.putStringSet(key, value.filterIsInstance<String>().toSet())
+            }
+        }
+        if (!editor.commit()) {
+            Log.e(TAG, "Unable to import legacy preferences!")
+            return
+        }
+        legacyPreferences.edit().clear().commit()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            @Suppress("DEPRECATION")
+            applicationContext.deleteSharedPreferences(KEY_PREFERENCES_NAME)
+        }
+        if (Constants.DEBUG) {
+            Log.d(TAG, "Imported ${legacyValues.size} values from the legacy preferences.")
+        }
+    }
+
     @SuppressLint("ApplySharedPref")
     @VisibleForTesting
     fun migrateIfNeeded(
@@ -135,12 +296,55 @@ class PreferencesService(
             }
 
             val editor = newPreferences.edit()
-            editor.putInt(KEY_STORAGE_VERSION, STORAGE_VERSION)
+            editor.putInt(KEY_STORAGE_VERSION, 4)
             editor.commit()
             if (Constants.DEBUG) {
                 Log.d(TAG, "Migrated over to storage version v4.")
             }
         }
+        if (version < 5) {
+            // The server list cache moved from the preferences to its own snapshot file.
+            // We do not move over the data, it is only a cache which will be refreshed on the next fetch.
+            val editor = newPreferences.edit()
+            @Suppress("DEPRECATION")
+            editor.remove(KEY_SERVER_LIST_DATA)
+            @Suppress("DEPRECATION")
+            editor.remove(KEY_SERVER_LIST_TIMESTAMP)
+            editor.putInt(KEY_STORAGE_VERSION, 5)
+            editor.commit()
+            if (Constants.DEBUG) {
+                Log.d(TAG, "Migrated over to storage version v5.")
+            }
+        }
+        if (version < 6) {
+            // Organizations were serialized by hand before, using null for empty translations.
+            // The generated serializer still reads that format, but we rewrite them in the new canonical form.
+            val editor = newPreferences.edit()
+            listOf(KEY_ORGANIZATION, KEY_SAVED_ORGANIZATION).forEach { key ->
+                val serializedOrganization = newPreferences.getString(key, null) ?: return@forEach
+                try {
+                    val organization = _serializerService.deserializeOrganization(serializedOrganization)
+                    editor.putString(key, _serializerService.serializeOrganization(organization))
+                } catch (ex: SerializerService.UnknownFormatException) {
+                    Log.w(TAG, "Unable to migrate organization stored at $key, removing it.", ex)
+                    editor.remove(key)
+                }
+            }
+            editor.putInt(KEY_STORAGE_VERSION, 6)
+            editor.commit()
+            if (Constants.DEBUG) {
+                Log.d(TAG, "Migrated over to storage version v6.")
+            }
+        }
+        if (version < 7) {
+            // The values moved from the app_preferences file to a file per key, see importLegacyPreferencesIfNeeded().
+            val editor = newPreferences.edit()
+            editor.putInt(KEY_STORAGE_VERSION, STORAGE_VERSION)
+            editor.commit()
+            if (Constants.DEBUG) {
+                Log.d(TAG, "Migrated over to storage version v7.")
+            }
+        }
     }
 
     /**
@@ -161,6 +365,57 @@ class PreferencesService(
     @VisibleForTesting
     fun clearPreferences() {
         _sharedPreferences.edit().clear().putInt(KEY_STORAGE_VERSION, 2).commit()
+        _snapshotStore.delete(SNAPSHOT_SERVER_LIST)
+        _snapshotStore.delete(SNAPSHOT_ORGANIZATION_LIST)
+    }
+
+    /**
+     * Blocks until all changes made so far have been written to the disk.
+     */
+    fun flush() {
+        (_sharedPreferences as? FileSharedPreferences)?.flush()
+    }
+
+    /**
+     * Groups the changes made in the block into a single editor, which is applied once when the block completes.
+     * Changing the same value multiple times in the block only writes the last value.
+     * Each changed key is still written to its own file, so a batch of keys takes as many file syncs as separate
+     * changes would, and a crash during the write can store some of the keys of the batch without the others.
+     * If the block throws, none of the changes are written.
+     * Reads of stored preferences inside the block return the values from before the transaction.
+     * Nested transactions are merged into the outermost one.
+     *
+     * @param block The changes to make.
+     */
+    fun transaction(block: PreferencesService.() -> Unit) {
+        if (_transactionEditor.get() != null) {
+            block()
+            return
+        }
+        val editor = getSharedPreferences().edit()
+        _transactionEditor.set(editor)
+        try {
+            block()
+        } finally {
+            _transactionEditor.remove()
+        }
+        editor.apply()
+    }
+
+    /**
+     * Returns the editor to make changes with: the one of the current transaction, or a new one.
+     */
+    private fun edit(): SharedPreferences.Editor {
+        return _transactionEditor.get() ?: getSharedPreferences().edit()
+    }
+
+    /**
+     * Applies the changes of the editor, unless it belongs to a transaction, which applies them when it completes.
+     */
+    private fun SharedPreferences.Editor.applyOrDefer() {
+        if (_transactionEditor.get() !== this) {
+            apply()
+        }
     }
 
     /**
@@ -171,14 +426,14 @@ class PreferencesService(
     fun setCurrentOrganization(organization: Organization?) {
         try {
             if (organization == null) {
-                getSharedPreferences().edit().remove(KEY_ORGANIZATION).apply()
+                edit().remove(KEY_ORGANIZATION).applyOrDefer()
             } else {
-                getSharedPreferences().edit()
+                edit()
                     .putString(
                         KEY_ORGANIZATION,
-                        _serializerService.serializeOrganization(organization).toString()
+                        _serializerService.serializeOrganization(organization)
                     )
-                    .apply()
+                    .applyOrDefer()
             }
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Cannot save organization!", ex)
@@ -194,13 +449,10 @@ class PreferencesService(
         val serializedOrganization = getSharedPreferences().getString(KEY_ORGANIZATION, null)
             ?: return null
         return try {
-            _serializerService.deserializeOrganization(JSONObject(serializedOrganization))
+            _serializerService.deserializeOrganization(serializedOrganization)
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Unable to deserialize instance!", ex)
             null
-        } catch (ex: JSONException) {
-            Log.e(TAG, "Unable to deserialize instance!", ex)
-            null
         }
     }
 
@@ -212,14 +464,9 @@ class PreferencesService(
     fun setCurrentInstance(instance: Instance?) {
         try {
             if (instance == null) {
-                getSharedPreferences().edit().remove(KEY_INSTANCE).apply()
+                _currentInstance.set(null, null)
             } else {
-                getSharedPreferences().edit()
-                    .putString(
-                        KEY_INSTANCE,
-                        _serializerService.serializeInstance(instance).toString()
-                    )
-                    .apply()
+                _currentInstance.set(_serializerService.serializeInstance(instance), instance)
             }
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Can not save connection instance!", ex)
@@ -232,14 +479,7 @@ class PreferencesService(
      * @return The instance to connect to. Null if none found.
      */
     fun getCurrentInstance(): Instance? {
-        val serializedInstance = getSharedPreferences().getString(KEY_INSTANCE, null)
-            ?: return null
-        return try {
-            _serializerService.deserializeInstance(serializedInstance)
-        } catch (ex: SerializerService.UnknownFormatException) {
-            Log.e(TAG, "Unable to deserialize instance!", ex)
-            null
-        }
+        return _currentInstance.get()
     }
 
     /**
@@ -248,15 +488,13 @@ class PreferencesService(
      * @param profile  The profile to save.
      * @param protocol Protocol used by the profile, null if not known yet.
      */
-    fun setCurrentProfile(profile: Profile?, protocol: Protocol?) {
+    fun setCurrentProfile(profile: Profile?, protocol: Protocol?) = transaction {
         setCurrentProtocol(protocol)
         try {
             if (profile == null) {
-                getSharedPreferences().edit().remove(KEY_PROFILE).apply()
+                _currentProfile.set(null, null)
             } else {
-                getSharedPreferences().edit()
-                    .putString(KEY_PROFILE, _serializerService.serializeProfile(profile))
-                    .apply()
+                _currentProfile.set(_serializerService.serializeProfile(profile), profile)
             }
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Unable to serialize profile!", ex)
@@ -269,14 +507,7 @@ class PreferencesService(
      * @return The lastly saved profile with {@link #setCurrentProfile(Profile)}.
      */
     fun getCurrentProfile(): Profile? {
-        val serializedProfile = getSharedPreferences().getString(KEY_PROFILE, null)
-            ?: return null
-        return try {
-            _serializerService.deserializeProfile(serializedProfile)
-        } catch (ex: SerializerService.UnknownFormatException) {
-            Log.e(TAG, "Unable to deserialize saved profile!", ex)
-            null
-        }
+        return _currentProfile.get()
     }
 
 
@@ -288,11 +519,11 @@ class PreferencesService(
     fun setCurrentProfileList(currentProfileList: List<Profile>?) {
         try {
             if (currentProfileList == null) {
-                getSharedPreferences().edit().remove(KEY_PROFILE_LIST).apply()
+                edit().remove(KEY_PROFILE_LIST).applyOrDefer()
             } else {
                 val serializedList = _serializerService.serializeProfileList(currentProfileList)
-                getSharedPreferences().edit().putString(KEY_PROFILE_LIST, serializedList)
-                    .apply()
+                edit().putString(KEY_PROFILE_LIST, serializedList)
+                    .applyOrDefer()
             }
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.w(TAG, "Unable to serialize profile list!", ex)
@@ -321,13 +552,13 @@ class PreferencesService(
      * @param authState The access token and refresh token to use for the VPN provider API.
      */
     fun setCurrentAuthState(authState: AuthState?) {
-        val editor = getSharedPreferences().edit()
+        val editor = edit()
         if (authState == null) {
             editor.remove(KEY_AUTH_STATE)
         } else {
             editor.putString(KEY_AUTH_STATE, authState.jsonSerializeString())
         }
-        editor.apply()
+        editor.applyOrDefer()
     }
 
     /**
@@ -338,24 +569,10 @@ class PreferencesService(
     fun getAppSettings(): Settings {
         val defaultSettings =
             Settings(Settings.USE_CUSTOM_TABS_DEFAULT_VALUE, Settings.FORCE_TCP_DEFAULT_VALUE)
-        val serializedSettings = getSharedPreferences().getString(KEY_APP_SETTINGS, null)
-        return if (serializedSettings == null) {
-            // Default settings.
+        return _appSettings.get() ?: run {
+            // Default settings, also used when the stored ones could not be read.
             storeAppSettings(defaultSettings)
             defaultSettings
-        } else {
-            try {
-                _serializerService.deserializeAppSettings(JSONObject(serializedSettings))
-            } catch (ex: Exception) {
-                when (ex) {
-                    is SerializerService.UnknownFormatException, is JSONException -> {
-                        Log.e(TAG, "Unable to deserialize app settings!", ex)
-                        storeAppSettings(defaultSettings)
-                        defaultSettings
-                    }
-                    else -> throw ex
-                }
-            }
         }
     }
 
@@ -367,7 +584,7 @@ class PreferencesService(
     fun storeAppSettings(settings: Settings) {
         try {
             val serializedSettings = _serializerService.serializeAppSettings(settings).toString()
-            getSharedPreferences().edit().putString(KEY_APP_SETTINGS, serializedSettings).apply()
+            _appSettings.set(serializedSettings, settings)
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Unable to serialize and save app settings!")
         }
@@ -380,16 +597,15 @@ class PreferencesService(
      */
     fun setCurrentDiscoveredAPI(discoveredAPI: DiscoveredAPI?) {
         try {
-            val editor = getSharedPreferences().edit()
             if (discoveredAPI == null) {
-                editor.remove(KEY_DISCOVERED_API)
+                _currentDiscoveredAPI.set(null, null)
             } else {
-                editor.putString(
-                    KEY_DISCOVERED_API,
-                    _serializerService.serializeDiscoveredAPIs(discoveredAPI.toDiscoveredAPIs())
+                val discoveredAPIs = discoveredAPI.toDiscoveredAPIs()
+                _currentDiscoveredAPI.set(
+                    _serializerService.serializeDiscoveredAPIs(discoveredAPIs),
+                    discoveredAPIs.v3
                 )
             }
-            editor.apply()
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Can not save discovered API!", ex)
         }
@@ -401,14 +617,95 @@ class PreferencesService(
      * @return A discovered API if saved, otherwise null.
      */
     fun getCurrentDiscoveredAPI(): DiscoveredAPIV3? {
-        val serializedDiscoveredAPI =
-            getSharedPreferences().getString(KEY_DISCOVERED_API, null)
-                ?: return null
-        return try {
-            _serializerService.deserializeDiscoveredAPIs(serializedDiscoveredAPI).v3
+        return _currentDiscoveredAPI.get()
+    }
+
+    /**
+     * Returns the last discovered APIs of each server the user connected to.
+     *
+     * @return The cached discovered APIs, keyed by the sanitized base URI of the server.
+     */
+    fun getDiscoveredAPICache(): Map<String, DiscoveredAPIs> {
+        return _discoveredAPICache.get()?.servers ?: emptyMap()
+    }
+
+    /**
+     * Stores the last discovered APIs of each server the user connected to.
+     *
+     * @param servers The discovered APIs, keyed by the sanitized base URI of the server.
+     */
+    fun setDiscoveredAPICache(servers: Map<String, DiscoveredAPIs>) {
+        try {
+            if (servers.isEmpty()) {
+                _discoveredAPICache.set(null, null)
+            } else {
+                val cache = DiscoveredAPICache(servers)
+                _discoveredAPICache.set(_serializerService.serializeDiscoveredAPICache(cache), cache)
+            }
         } catch (ex: SerializerService.UnknownFormatException) {
-            Log.e(TAG, "Unable to deserialize saved discovered API", ex)
-            null
+            Log.e(TAG, "Can not save discovered API cache!", ex)
+        }
+    }
+
+    /**
+     * Returns the last profile list of each server the user connected to.
+     *
+     * @return The cached profile lists, keyed by the sanitized base URI of the server.
+     */
+    fun getProfileListCache(): Map<String, CachedProfileList> {
+        return _profileListCache.get()?.servers ?: emptyMap()
+    }
+
+    /**
+     * Stores the last profile list of each server the user connected to.
+     *
+     * @param servers The profile lists, keyed by the sanitized base URI of the server.
+     */
+    fun setProfileListCache(servers: Map<String, CachedProfileList>) {
+        try {
+            if (servers.isEmpty()) {
+                _profileListCache.set(null, null)
+            } else {
+                val cache = ProfileListCache(servers)
+                _profileListCache.set(_serializerService.serializeProfileListCache(cache), cache)
+            }
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Can not save profile list cache!", ex)
+        }
+    }
+
+    /**
+     * Returns the validators of the last verified download of a signed list.
+     *
+     * @param url The URL of the list.
+     * @return The validators, or null if the list was not downloaded yet.
+     */
+    fun getListValidators(url: String): ListValidators? {
+        return _listValidatorsCache.get()?.lists?.get(url)
+    }
+
+    /**
+     * Stores the validators of the last verified download of a signed list.
+     *
+     * @param url        The URL of the list.
+     * @param validators The validators. Use null to remove previously set values.
+     */
+    fun setListValidators(url: String, validators: ListValidators?) {
+        val lists = (_listValidatorsCache.get()?.lists ?: emptyMap()).toMutableMap()
+        if (validators == null) {
+            lists.remove(url)
+        } else {
+            lists[url] = validators
+        }
+        try {
+            if (lists.isEmpty()) {
+                _listValidatorsCache.set(null, null)
+            } else {
+                val cache = ListValidatorsCache(lists)
+                _listValidatorsCache.set(_serializerService.serializeListValidatorsCache(cache), cache)
+            }
+        } catch (ex: SerializerService.UnknownFormatException) {
+            Log.e(TAG, "Can not save list validators!", ex)
         }
     }
 
@@ -439,8 +736,8 @@ class PreferencesService(
         try {
             val serializedSavedAuthStateList =
                 _serializerService.serializeSavedAuthStateList(savedAuthStateList)
-            getSharedPreferences().edit()
-                .putString(KEY_SAVED_AUTH_STATES, serializedSavedAuthStateList).apply()
+            edit()
+                .putString(KEY_SAVED_AUTH_STATES, serializedSavedAuthStateList).applyOrDefer()
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Can not save saved token list.", ex)
         }
@@ -465,8 +762,8 @@ class PreferencesService(
         try {
             val serializedKeyPairList =
                 _serializerService.serializeSavedKeyPairList(savedKeyPairs).toString()
-            getSharedPreferences().edit().putString(KEY_SAVED_KEY_PAIRS, serializedKeyPairList)
-                .apply()
+            edit().putString(KEY_SAVED_KEY_PAIRS, serializedKeyPairList)
+                .applyOrDefer()
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Cannot store saved key pair list.", ex)
         }
@@ -480,12 +777,12 @@ class PreferencesService(
     fun storeSavedOrganization(organization: Organization?) {
         try {
             if (organization == null) {
-                getSharedPreferences().edit().remove(KEY_SAVED_ORGANIZATION).apply()
+                edit().remove(KEY_SAVED_ORGANIZATION).applyOrDefer()
             } else {
                 val serializedSavedOrganization =
-                    _serializerService.serializeOrganization(organization).toString()
-                getSharedPreferences().edit()
-                    .putString(KEY_SAVED_ORGANIZATION, serializedSavedOrganization).apply()
+                    _serializerService.serializeOrganization(organization)
+                edit()
+                    .putString(KEY_SAVED_ORGANIZATION, serializedSavedOrganization).applyOrDefer()
             }
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Cannot store saved organization.", ex)
@@ -502,7 +799,7 @@ class PreferencesService(
             val savedOrganizationJson =
                 getSharedPreferences().getString(KEY_SAVED_ORGANIZATION, null)
                     ?: return null
-            _serializerService.deserializeOrganization(JSONObject(savedOrganizationJson))
+            _serializerService.deserializeOrganization(savedOrganizationJson)
         } catch (ex: Exception) {
             Log.e(TAG, "Cannot deserialize saved organization.", ex)
             null
@@ -516,11 +813,11 @@ class PreferencesService(
      */
     fun setLastKnownOrganizationListVersion(version: Long?) {
         if (version == null) {
-            getSharedPreferences().edit().remove(KEY_LAST_KNOWN_ORGANIZATION_LIST_VERSION)
-                .apply()
+            edit().remove(KEY_LAST_KNOWN_ORGANIZATION_LIST_VERSION)
+                .applyOrDefer()
         } else {
-            getSharedPreferences().edit()
-                .putLong(KEY_LAST_KNOWN_ORGANIZATION_LIST_VERSION, version).apply()
+            edit()
+                .putLong(KEY_LAST_KNOWN_ORGANIZATION_LIST_VERSION, version).applyOrDefer()
         }
     }
 
@@ -547,10 +844,10 @@ class PreferencesService(
      */
     fun setLastKnownServerListVersion(version: Long?) {
         if (version == null) {
-            getSharedPreferences().edit().remove(KEY_LAST_KNOWN_SERVER_LIST_VERSION).apply()
+            edit().remove(KEY_LAST_KNOWN_SERVER_LIST_VERSION).applyOrDefer()
         } else {
-            getSharedPreferences().edit().putLong(KEY_LAST_KNOWN_SERVER_LIST_VERSION, version)
-                .apply()
+            edit().putLong(KEY_LAST_KNOWN_SERVER_LIST_VERSION, version)
+                .applyOrDefer()
         }
     }
 
@@ -586,35 +883,29 @@ class PreferencesService(
      */
     fun setPreferredCountry(preferredCountry: String?) {
         if (preferredCountry == null) {
-            getSharedPreferences().edit().remove(KEY_PREFERRED_COUNTRY).apply()
+            edit().remove(KEY_PREFERRED_COUNTRY).applyOrDefer()
         } else {
-            getSharedPreferences().edit().putString(KEY_PREFERRED_COUNTRY, preferredCountry)
-                .apply()
+            edit().putString(KEY_PREFERRED_COUNTRY, preferredCountry)
+                .applyOrDefer()
         }
     }
 
     /**
      * Returns the server list if it is recent (see constants for exact TTL).
+     * The servers are decoded when they are accessed, which throws a [ListSnapshotStore.CorruptSnapshotException]
+     * if the stored list turns out to be damaged.
+     * An expired list is kept until the next one is stored, because it can still be revalidated with a conditional request.
      *
-     * @return The server list if it is recent, otherwise null.
+     * @param includeExpired If the list should also be returned when it is older than the TTL.
+     * @return The server list and the moment it was stored in milliseconds if it is recent, otherwise null.
      */
-    fun getServerList(): ServerList? {
-        val timestamp = getSharedPreferences().getLong(KEY_SERVER_LIST_TIMESTAMP, 0L)
-        return if (System.currentTimeMillis() - timestamp < Constants.SERVER_LIST_VALID_FOR_MS) {
-            val serializedServerList =
-                getSharedPreferences().getString(KEY_SERVER_LIST_DATA, null)
-                    ?: return null
-            try {
-                _serializerService.deserializeServerList(serializedServerList)
-            } catch (ex: Exception) {
-                Log.w(TAG, "Unable to parse server list!", ex)
-                null
-            }
+    fun getServerList(includeExpired: Boolean = false): Pair<ServerList, Long>? {
+        val snapshot = _snapshotStore.read(SNAPSHOT_SERVER_LIST) { serializedInstance ->
+            _serializerService.deserializeInstance(serializedInstance)
+        } ?: return null
+        return if (includeExpired || System.currentTimeMillis() - snapshot.savedAt < Constants.SERVER_LIST_VALID_FOR_MS) {
+            Pair(ServerList(snapshot.version, snapshot.entries), snapshot.savedAt)
         } else {
-            getSharedPreferences().edit()
-                .remove(KEY_SERVER_LIST_DATA)
-                .remove(KEY_SERVER_LIST_TIMESTAMP)
-                .apply()
             null
         }
     }
@@ -626,18 +917,56 @@ class PreferencesService(
      */
     fun setServerList(serverList: ServerList?) {
         if (serverList == null) {
-            getSharedPreferences().edit().remove(KEY_SERVER_LIST_DATA)
-                .remove(KEY_SERVER_LIST_TIMESTAMP)
-                .apply()
+            _snapshotStore.delete(SNAPSHOT_SERVER_LIST)
+        } else {
+            try {
+                _snapshotStore.write(
+                    SNAPSHOT_SERVER_LIST,
+                    serverList.version,
+                    serverList.serverList
+                ) { instance ->
+                    _serializerService.serializeInstance(instance)
+                }
+            } catch (ex: Exception) {
+                Log.w(TAG, "Unable to set server list!", ex)
+            }
+        }
+    }
+
+    /**
+     * Returns the last stored organization list, regardless of its age.
+     * The organizations are decoded when they are accessed, which throws a [ListSnapshotStore.CorruptSnapshotException]
+     * if the stored list turns out to be damaged.
+     *
+     * @return The last stored organization list and the moment it was stored in milliseconds,
+     * or null if none was stored yet.
+     */
+    fun getOrganizationList(): Pair<OrganizationList, Long>? {
+        val snapshot = _snapshotStore.read(SNAPSHOT_ORGANIZATION_LIST) { serializedOrganization ->
+            _serializerService.deserializeOrganization(serializedOrganization)
+        } ?: return null
+        return Pair(OrganizationList(snapshot.version, snapshot.entries), snapshot.savedAt)
+    }
+
+    /**
+     * Stores the organization list, so it can be displayed when the list can not be fetched.
+     *
+     * @param organizationList The organization list to store. Use null to remove previously set values.
+     */
+    fun setOrganizationList(organizationList: OrganizationList?) {
+        if (organizationList == null) {
+            _snapshotStore.delete(SNAPSHOT_ORGANIZATION_LIST)
         } else {
             try {
-                val serializedServerList = _serializerService.serializeServerList(serverList)
-                getSharedPreferences().edit()
-                    .putString(KEY_SERVER_LIST_DATA, serializedServerList)
-                    .putLong(KEY_SERVER_LIST_TIMESTAMP, System.currentTimeMillis())
-                    .apply()
+                _snapshotStore.write(
+                    SNAPSHOT_ORGANIZATION_LIST,
+                    organizationList.version,
+                    organizationList.organizationList
+                ) { organization ->
+                    _serializerService.serializeOrganization(organization)
+                }
             } catch (ex: Exception) {
-                Log.w(TAG, "Unable to set server list!")
+                Log.w(TAG, "Unable to set organization list!", ex)
             }
         }
     }
@@ -645,11 +974,9 @@ class PreferencesService(
     private fun setCurrentProtocol(protocol: Protocol?) {
         try {
             if (protocol == null) {
-                getSharedPreferences().edit().remove(KEY_VPN_PROTOCOL).apply()
+                _currentProtocol.set(null, null)
             } else {
-                getSharedPreferences().edit()
-                    .putString(KEY_VPN_PROTOCOL, _serializerService.serializeProtocol(protocol))
-                    .apply()
+                _currentProtocol.set(_serializerService.serializeProtocol(protocol), protocol)
             }
         } catch (ex: SerializerService.UnknownFormatException) {
             Log.e(TAG, "Unable to serialize protocol!", ex)
@@ -657,13 +984,52 @@ class PreferencesService(
     }
 
     fun getCurrentProtocol(): Protocol? {
-        val serializedProtocol = getSharedPreferences().getString(KEY_VPN_PROTOCOL, null)
-            ?: return null
-        return try {
-            _serializerService.deserializeProtocol(serializedProtocol)
-        } catch (ex: SerializerService.UnknownFormatException) {
-            Log.e(TAG, "Unable to deserialize saved protocol!", ex)
-            null
+        return _currentProtocol.get()
+    }
+
+    /**
+     * A decoded value, together with the stored string it was decoded from.
+     */
+    private class DecodedEntry<T>(val serialized: String?, val value: T?)
+
+    /**
+     * Keeps the decoded value of a stored preference in memory. Writes go through to the preferences immediately.
+     * As long as the stored string is the same instance the value was decoded from, reads return the decoded
+     * value without parsing it again. This also stays correct when the preferences are changed directly.
+     *
+     * @param key    The key of the preference.
+     * @param decode Decodes the stored string, returns null if it could not be decoded.
+     */
+    private inner class DecodedPreference<T : Any>(
+        private val key: String,
+        private val decode: (String) -> T?
+    ) {
+
+        @Volatile
+        private var entry: DecodedEntry<T>? = null
+
+        fun get(): T? {
+            val serialized = getSharedPreferences().getString(key, null)
+            val current = entry
+            if (current != null && current.serialized === serialized) {
+                _cacheHits.incrementAndGet()
+                return current.value
+            }
+            _cacheMisses.incrementAndGet()
+            val value = serialized?.let(decode)
+            entry = DecodedEntry(serialized, value)
+            return value
+        }
+
+        fun set(serialized: String?, value: T?) {
+            val editor = edit()
+            if (serialized == null) {
+                editor.remove(key)
+            } else {
+                editor.putString(key, serialized)
+            }
+            editor.applyOrDefer()
+            entry = DecodedEntry(serialized, value)
         }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service
+
+import ProfileV3API
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import net.openid.appauth.AuthState
+import nl.eduvpn.app.entity.CachedProfileList
+import nl.eduvpn.app.entity.DiscoveredAPIV3
+import nl.eduvpn.app.entity.Instance
+import nl.eduvpn.app.entity.v3.Info
+import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.runCatchingCoroutine
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Fetches the profiles the user can connect to on each server.
+ *
+ * The profile list of each server is stored together with the time it was fetched, and returned immediately
+ * the next time the profiles of the server are needed. Lists which are older than a minute are refreshed in the
+ * background at the same time. The list is only fetched while the caller waits if none is stored, or if it was
+ * invalidated because the server did not know one of its profiles anymore.
+ *
+ * @param fetchInfo Fetches the info of a server, see [APIService.getInfo].
+ */
+class ProfileListService(
+    private val fetchInfo: suspend (url: String, authState: AuthState) -> Info,
+    private val preferencesService: PreferencesService
+) {
+
+    /**
+     * The profiles of a server.
+     *
+     * @param profiles  The profiles available to the user.
+     * @param fetchedAt The time the list was fetched at, in milliseconds since the epoch.
+     * @param isCached  True if the list was stored earlier, false if it was just fetched from the server.
+     */
+    data class ProfileListResult(
+        val profiles: List<ProfileV3API>,
+        val fetchedAt: Long,
+        val isCached: Boolean
+    )
+
+    /**
+     * Returned instead of connecting when the profile list was fetched again, because the server did not know
+     * the selected profile anymore. The profiles are shown to the user again once they are fetched.
+     */
+    class ProfileListChangedException : Exception()
+
+    private val lock = Any()
+
+    // The servers whose profiles were last returned from the cache, instead of fetched while the caller waited.
+    private val servedFromCache = HashSet<String>()
+
+    // The refreshes are not bound to a screen, so a refresh started right before leaving it still completes.
+    private val refreshScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val refreshes = HashMap<String, Job>()
+
+    /**
+     * Returns the profiles of a server. If they were stored earlier, they are returned immediately,
+     * and refreshed in the background if they are not recent.
+     *
+     * @param instance      The server to get the profiles of.
+     * @param discoveredAPI The discovered API of the server.
+     * @param authState     The authorization state for the server.
+     * @return The profiles of the server.
+     * @throws APIService.UserNotAuthorizedException
+     * @throws SerializerService.UnknownFormatException
+     * @throws java.io.IOException
+     */
+    suspend fun getProfiles(
+        instance: Instance,
+        discoveredAPI: DiscoveredAPIV3,
+        authState: AuthState
+    ): ProfileListResult {
+        val key = instance.sanitizedBaseURI
+        val cached = synchronized(lock) {
+            preferencesService.getProfileListCache()[key]?.also { servedFromCache.add(key) }
+        }
+        if (cached != null) {
+            if (System.currentTimeMillis() - cached.fetchedAt !in 0..REFRESH_AFTER_MS) {
+                refresh(instance, discoveredAPI, authState)
+            }
+            return ProfileListResult(cached.profiles, cached.fetchedAt, isCached = true)
+        }
+        val fetched = fetch(instance, discoveredAPI, authState)
+        synchronized(lock) {
+            servedFromCache.remove(key)
+        }
+        return ProfileListResult(fetched.profiles, fetched.fetchedAt, isCached = false)
+    }
+
+    /**
+     * Removes the stored profiles of a server, so they are fetched again the next time they are needed.
+     * Should be called when the server does not know a profile anymore, or when the user authorizes again.
+     *
+     * @param instance The server to remove the profiles of.
+     * @return True if the profiles were last returned from the cache, so the server might have changed them since.
+     * False if they were last fetched while the caller waited, or were never returned at all.
+     */
+    fun invalidate(instance: Instance): Boolean {
+        val key = instance.sanitizedBaseURI
+        synchronized(lock) {
+            refreshes.remove(key)?.cancel()
+            val cache = preferencesService.getProfileListCache()
+            if (cache.containsKey(key)) {
+                Log.i(TAG, "Invalidated the profile list of $key.")
+                preferencesService.setProfileListCache(cache - key)
+            }
+            return servedFromCache.remove(key)
+        }
+    }
+
+    private suspend fun fetch(
+        instance: Instance,
+        discoveredAPI: DiscoveredAPIV3,
+        authState: AuthState
+    ): CachedProfileList {
+        val info = fetchInfo(discoveredAPI.infoEndpoint, authState)
+        val profileList = CachedProfileList(info.info.profileList, System.currentTimeMillis())
+        val context = coroutineContext
+        synchronized(lock) {
+            // invalidate() cancels a refresh while holding the lock, so a cancelled refresh never stores its list
+            context.ensureActive()
+            val cache = preferencesService.getProfileListCache()
+            preferencesService.setProfileListCache(cache + (instance.sanitizedBaseURI to profileList))
+        }
+        return profileList
+    }
+
+    private fun refresh(instance: Instance, discoveredAPI: DiscoveredAPIV3, authState: AuthState) {
+        val key = instance.sanitizedBaseURI
+        synchronized(lock) {
+            if (refreshes[key]?.isActive == true) {
+                return
+            }
+            refreshes[key] = refreshScope.launch {
+                runCatchingCoroutine {
+                    fetch(instance, discoveredAPI, authState)
+                }.onFailure { throwable ->
+                    // The stored list is kept, if one of its profiles is gone the caller invalidates it.
+                    Log.w(TAG, "Unable to refresh the profile list of $key.", throwable)
+                }
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = ProfileListService::class.java.name
+
+        private val REFRESH_AFTER_MS = TimeUnit.MINUTES.toMillis(1)
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service
+
+import kotlinx.coroutines.delay
+import nl.eduvpn.app.utils.Log
+import java.io.IOException
+import java.net.ConnectException
+import java.net.SocketTimeoutException
+import java.net.UnknownHostException
+import kotlin.random.Random
+
+/**
+ * Retries network calls which failed because the server could not be reached.
+ * Waiting between attempts suspends the calling coroutine instead of blocking a thread,
+ * so other calls can continue meanwhile, and cancelling the coroutine also cancels the pending retries.
+ *
+ * All retries share a budget, so a server or network which is down does not multiply the amount of calls made.
+ * Each retry takes a token from the budget, and each successful call returns a part of a token.
+ */
+class RetryService(private val random: Random = Random.Default) {
+
+    /**
+     * Describes how often and how quickly a call is retried.
+     *
+     * @param maxAttempts    The maximum number of attempts, including the first one.
+     * @param baseDelayMs    The delay before the first retry. Doubles after every retry.
+     * @param maxDelayMs     The maximum delay between two attempts.
+     * @param retryTimeouts  If calls which timed out should be retried. A call which timed out might have been
+     *                       processed by the server, so this should only be enabled for calls without side effects.
+     */
+    data class RetryPolicy(
+        val maxAttempts: Int,
+        val baseDelayMs: Long,
+        val maxDelayMs: Long,
+        val retryTimeouts: Boolean
+    )
+
+    /**
+     * The kinds of endpoints which are called, each with its own retry policy.
+     */
+    enum class Endpoint(val policy: RetryPolicy) {
+        /**
+         * The server and organization lists of the discovery server, and their signatures.
+         */
+        Discovery(RetryPolicy(maxAttempts = 3, baseDelayMs = 1000, maxDelayMs = 8000, retryTimeouts = true)),
+
+        /**
+         * Calls to a VPN server which only retrieve data.
+         */
+        ApiRead(RetryPolicy(maxAttempts = 3, baseDelayMs = 1000, maxDelayMs = 4000, retryTimeouts = true)),
+
+        /**
+         * Calls to a VPN server which change its state, such as creating or removing a configuration.
+         */
+        ApiWrite(RetryPolicy(maxAttempts = 2, baseDelayMs = 1000, maxDelayMs = 1000, retryTimeouts = false))
+    }
+
+    /**
+     * A snapshot of the retry counters since the application was started.
+     *
+     * @param retries          The number of retries taken per endpoint.
+     * @param recoveredCalls   The number of calls which succeeded after one or more retries.
+     * @param failedCalls      The number of calls which failed even though they were retried.
+     * @param budgetRejections The number of retries which were not taken because the budget was used up.
+     */
+    data class Metrics(
+        val retries: Map<Endpoint, Long>,
+        val recoveredCalls: Long,
+        val failedCalls: Long,
+        val budgetRejections: Long
+    )
+
+    private val lock = Any()
+
+    private var budgetTokens = MAX_BUDGET_TOKENS
+    private val retries = LongArray(Endpoint.values().size)
+    private var recoveredCalls = 0L
+    private var failedCalls = 0L
+    private var budgetRejections = 0L
+
+    /**
+     * Runs a network call, and runs it again if it failed because the server could not be reached.
+     *
+     * @param endpoint The kind of endpoint which is called.
+     * @param policy   The retry policy to use, defaults to the policy of the endpoint.
+     * @param call     The call to make. Invoked again for each attempt, so it should create a new request each time.
+     * @return The result of the first successful attempt.
+     * @throws IOException The exception of the last attempt if none of them succeeded.
+     */
+    suspend fun <T> withRetries(
+        endpoint: Endpoint,
+        policy: RetryPolicy = endpoint.policy,
+        call: suspend () -> T
+    ): T {
+        var attempt = 1
+        while (true) {
+            val exception = try {
+                val result = call()
+                onCallSucceeded(attempt)
+                return result
+            } catch (ex: IOException) {
+                ex
+            }
+            if (!isRetryable(exception, policy) || attempt >= policy.maxAttempts || !takeRetry(endpoint)) {
+                onCallFailed(attempt)
+                throw exception
+            }
+            val delayMs = backoffDelay(policy, attempt)
+            Log.d(TAG) { "Retrying ${endpoint.name} call in $delayMs ms after attempt $attempt failed with $exception" }
+            delay(delayMs)
+            attempt++
+        }
+    }
+
+    /**
+     * Returns the current values of the retry counters.
+     */
+    fun getMetrics(): Metrics = synchronized(lock) {
+        Metrics(
+            retries = Endpoint.values().associateWith { retries[it.ordinal] },
+            recoveredCalls = recoveredCalls,
+            failedCalls = failedCalls,
+            budgetRejections = budgetRejections
+        )
+    }
+
+    private fun isRetryable(exception: IOException, policy: RetryPolicy): Boolean {
+        return when (exception) {
+            // The request did not reach the server, so it is always safe to send it again.
+            is ConnectException, is UnknownHostException -> true
+            is SocketTimeoutException -> policy.retryTimeouts
+            else -> false
+        }
+    }
+
+    /**
+     * Calculates the delay before the next attempt.
+     * Half of the delay is fixed and half of it is random, so clients which failed at the same moment spread out.
+     */
+    private fun backoffDelay(policy: RetryPolicy, attempt: Int): Long {
+        val exponentialDelay = policy.baseDelayMs shl (attempt - 1).coerceAtMost(MAX_BACKOFF_SHIFT)
+        val delay = exponentialDelay.coerceIn(0, policy.maxDelayMs)
+        val halfDelay = delay / 2
+        return halfDelay + random.nextLong(delay - halfDelay + 1)
+    }
+
+    private fun takeRetry(endpoint: Endpoint): Boolean = synchronized(lock) {
+        if (budgetTokens < RETRY_COST) {
+            budgetRejections++
+            false
+        } else {
+            budgetTokens -= RETRY_COST
+            retries[endpoint.ordinal]++
+            true
+        }
+    }
+
+    private fun onCallSucceeded(attempt: Int) = synchronized(lock) {
+        budgetTokens = (budgetTokens + SUCCESS_REFUND).coerceAtMost(MAX_BUDGET_TOKENS)
+        if (attempt > 1) {
+            recoveredCalls++
+        }
+    }
+
+    private fun onCallFailed(attempt: Int) = synchronized(lock) {
+        if (attempt > 1) {
+            failedCalls++
+        }
+    }
+
+    companion object {
+        private val TAG = RetryService::class.java.name
+
+        // The budget allows 10 retries in a row, after which one retry is allowed for every 10 successful calls.
+        private const val RETRY_COST = 10
+        private const val SUCCESS_REFUND = 1
+        private const val MAX_BUDGET_TOKENS = 10 * RETRY_COST
+
+        private const val MAX_BACKOFF_SHIFT = 16
+    }
+}
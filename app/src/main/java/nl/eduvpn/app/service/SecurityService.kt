@@ -23,6 +23,8 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import nl.eduvpn.app.BuildConfig
 import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.crypto.Blake2b
+import nl.eduvpn.app.utils.crypto.Ed25519
 import org.libsodium.jni.NaCl
 import org.libsodium.jni.Sodium
 import java.nio.charset.StandardCharsets
@@ -47,6 +49,9 @@ class SecurityService() {
         private const val MINISIGN_ED_SIGNATURE_LENGTH = 64
         private const val MINISIGN_ED_PUBLIC_KEY_LENGTH = 32
 
+        // Prehashed signatures sign the BLAKE2b-512 hash of the message
+        private const val MESSAGE_HASH_LENGTH = Blake2b.MAX_DIGEST_LENGTH
+
         // We use the ISO-8859-1 charset for converting between strings and bytes,
         // because there one character is exactly one byte.
         // In UTF-8, a character could be 2 or 3 bytes, in ASCII one character is 7 bits only.
@@ -83,26 +88,142 @@ class SecurityService() {
             }.toMap()
         }
 
-        init {
-            // Init the library
-            NaCl.sodium()
+        // Up to this payload size, the JVM implementation is faster than loading libsodium and calling it.
+        // Tune it with SignatureVerificationBenchmark.
+        @VisibleForTesting
+        const val JVM_BACKEND_MAX_PAYLOAD_SIZE = 64 * 1024L
+
+        // The native library is only loaded when it is first needed, so it does not slow down starting the app.
+        private val sodiumLoader = lazy { NaCl.sodium() }
+
+        private fun ensureSodiumLoaded() {
+            sodiumLoader.value
+        }
+
+        /**
+         * Returns the implementation to use for hashing and verifying a payload.
+         * Once libsodium has been loaded, it is used for everything.
+         *
+         * @param payloadSize The size of the message in bytes, or -1 if unknown.
+         */
+        @VisibleForTesting
+        fun backendFor(payloadSize: Long): CryptoBackend {
+            return if (!sodiumLoader.isInitialized() && payloadSize in 0..JVM_BACKEND_MAX_PAYLOAD_SIZE) {
+                CryptoBackend.Jvm
+            } else {
+                CryptoBackend.Sodium
+            }
+        }
+
+        /**
+         * Verifies an Ed25519 signature.
+         *
+         * @param signature The 64 byte signature.
+         * @param message   The signed message.
+         * @param publicKey The 32 byte public key.
+         * @param backend   The implementation to verify the signature with.
+         * @return True if the signature is valid for the message and the key.
+         */
+        @VisibleForTesting
+        fun verifySignature(signature: ByteArray, message: ByteArray, publicKey: ByteArray, backend: CryptoBackend): Boolean {
+            if (backend == CryptoBackend.Jvm) {
+                return Ed25519.verify(signature, message, publicKey)
+            }
+            ensureSodiumLoaded()
+            return Sodium.crypto_sign_verify_detached(signature, message, message.size, publicKey) == 0
         }
     }
 
+    /**
+     * The implementations of the hash and signature algorithms.
+     * Both accept and reject exactly the same signatures.
+     */
+    enum class CryptoBackend {
+        /** libsodium, through JNI. */
+        Sodium,
+
+        /** The plain Kotlin implementations, see [Blake2b] and [Ed25519]. */
+        Jvm
+    }
+
     init {
         loadMinisignPublicKeys(BuildConfig.MINISIGN_SIGNATURE_VALIDATION_PUBLIC_KEY)
     }
 
-    private fun hashMessage(messageBytes: ByteArray): ByteArray {
-        val hash = ByteArray(Sodium.crypto_generichash_bytes_max())
+    /**
+     * Computes the BLAKE2b hash used by prehashed minisign signatures incrementally,
+     * so a message can be hashed while it is being downloaded.
+     * Not thread-safe, feed it from a single thread at a time.
+     *
+     * @param expectedLength The expected length of the message, or -1 if unknown. Used to choose the backend.
+     */
+    class MessageHasher(expectedLength: Long = -1) {
+
+        val backend = backendFor(expectedLength)
+
+        private val jvmHash = if (backend == CryptoBackend.Jvm) Blake2b(MESSAGE_HASH_LENGTH) else null
+        private val sodiumState = if (backend == CryptoBackend.Sodium) {
+            ensureSodiumLoaded()
+            ByteArray(Sodium.crypto_generichash_statebytes()).also { state ->
+                val key = ByteArray(0)
+                Sodium.crypto_generichash_init(state, key, key.size, MESSAGE_HASH_LENGTH)
+            }
+        } else {
+            null
+        }
+
+        /**
+         * Adds the next part of the message to the hash.
+         *
+         * @param bytes  The bytes to add.
+         * @param length The number of bytes to add, from the start of the array.
+         */
+        fun update(bytes: ByteArray, length: Int) {
+            if (sodiumState != null) {
+                Sodium.crypto_generichash_update(sodiumState, bytes, length)
+            } else {
+                jvmHash!!.update(bytes, 0, length)
+            }
+        }
+
+        /**
+         * Finishes the hash. The hasher should not be used afterwards.
+         *
+         * @return The hash of all the bytes added.
+         */
+        fun digest(): ByteArray {
+            if (sodiumState == null) {
+                return jvmHash!!.digest()
+            }
+            val hash = ByteArray(MESSAGE_HASH_LENGTH)
+            Sodium.crypto_generichash_final(sodiumState, hash, hash.size)
+            return hash
+        }
+    }
+
+    private fun hashMessage(messageBytes: ByteArray, backend: CryptoBackend): ByteArray {
+        if (backend == CryptoBackend.Jvm) {
+            return Blake2b.hash(messageBytes, MESSAGE_HASH_LENGTH)
+        }
+        ensureSodiumLoaded()
+        val hash = ByteArray(MESSAGE_HASH_LENGTH)
         val key = ByteArray(0)
         Sodium.crypto_generichash(hash, hash.size, messageBytes, messageBytes.size, key, key.size)
         return hash
     }
 
+    /**
+     * Verifies a minisign signature of a message.
+     *
+     * @param message         The signed message.
+     * @param signatureBase64 The contents of the minisign signature file.
+     * @param messageHash     The hash of the message computed with a [MessageHasher], if available.
+     * Used for prehashed signatures, so the message does not need to be hashed again.
+     * @return True if the signature is valid for the message.
+     */
     @CheckResult
     @Throws(IllegalArgumentException::class)
-    fun verifyMinisign(message: ByteArray, signatureBase64: String): Boolean {
+    fun verifyMinisign(message: ByteArray, signatureBase64: String, messageHash: ByteArray? = null): Boolean {
         val signatureData = getSecondLine(signatureBase64)
         val signatureBytesWithMetadata = Base64.decode(signatureData, Base64.DEFAULT)
         val signatureString = String(signatureBytesWithMetadata, BYTE_DECODE_CHARSET)
@@ -124,23 +245,18 @@ class SecurityService() {
             .substring(MINISIGN_ALGO_DESCRIPTION_LEGACY.length + MINISIGN_RANDOM_BYTES_LENGTH)
             .toByteArray(BYTE_DECODE_CHARSET)
 
+        val backend = backendFor(message.size.toLong())
         val algorithm =
             signatureString.substring(0, MINISIGN_ALGO_DESCRIPTION_LEGACY.length)
         val signedBytes = when (algorithm) {
             MINISIGN_ALGO_DESCRIPTION_LEGACY -> message
-            MINISIGN_ALGO_DESCRIPTION_HASHED -> hashMessage(message)
+            MINISIGN_ALGO_DESCRIPTION_HASHED -> messageHash ?: hashMessage(message, backend)
             else -> throw IllegalArgumentException(
                 "Unsupported algorithm, we only support '$MINISIGN_ALGO_DESCRIPTION_LEGACY'" +
                         " and '$MINISIGN_ALGO_DESCRIPTION_HASHED'!"
             )
         }
-        val result = Sodium.crypto_sign_verify_detached(
-            signatureBytes,
-            signedBytes,
-            signedBytes.size,
-            publicKeyBytes
-        )
-        if (result == 0) {
+        if (verifySignature(signatureBytes, signedBytes, publicKeyBytes, backend)) {
             return true
         }
         Log.e(TAG, "Signature validation failed!")
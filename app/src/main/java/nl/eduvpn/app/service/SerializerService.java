@@ -21,37 +21,41 @@ import static kotlinx.serialization.builtins.BuiltinSerializersKt.ListSerializer
 
 import androidx.annotation.NonNull;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
 
 import kotlin.Unit;
+import kotlin.io.TextStreamsKt;
+import kotlinx.serialization.DeserializationStrategy;
 import kotlinx.serialization.SerializationException;
 import kotlinx.serialization.json.Json;
 import kotlinx.serialization.json.JsonKt;
+import kotlinx.serialization.json.JvmStreamsKt;
+import nl.eduvpn.app.entity.DiscoveredAPICache;
 import nl.eduvpn.app.entity.DiscoveredAPIs;
 import nl.eduvpn.app.entity.Instance;
-import nl.eduvpn.app.entity.JsonListWrapper;
 import nl.eduvpn.app.entity.KeyPair;
+import nl.eduvpn.app.entity.ListValidatorsCache;
 import nl.eduvpn.app.entity.Organization;
 import nl.eduvpn.app.entity.OrganizationList;
 import nl.eduvpn.app.entity.Profile;
+import nl.eduvpn.app.entity.ProfileListCache;
 import nl.eduvpn.app.entity.SavedAuthState;
+import nl.eduvpn.app.entity.SavedAuthStateList;
 import nl.eduvpn.app.entity.SavedKeyPair;
 import nl.eduvpn.app.entity.SavedKeyPairList;
 import nl.eduvpn.app.entity.ServerList;
 import nl.eduvpn.app.entity.Settings;
-import nl.eduvpn.app.entity.TranslatableString;
 import nl.eduvpn.app.entity.WellKnown;
 import nl.eduvpn.app.entity.v3.Info;
 import nl.eduvpn.app.entity.v3.Protocol;
@@ -170,6 +174,18 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes the info object directly from a stream.
+     *
+     * @param inputStream The stream to read the JSON from. Will not be closed by this method.
+     * @param charset     The charset of the stream.
+     * @return The parsed info object.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public Info deserializeInfo(InputStream inputStream, Charset charset) throws UnknownFormatException {
+        return decodeFromStream(Info.Companion.serializer(), inputStream, charset);
+    }
+
     /**
      * Deserializes a JSON object containing the discovered APIs endpoints.
      *
@@ -187,6 +203,18 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Deserializes the discovered APIs endpoints directly from a stream.
+     *
+     * @param inputStream The stream to read the JSON from. Will not be closed by this method.
+     * @param charset     The charset of the stream.
+     * @return The discovered APIs object.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public DiscoveredAPIs deserializeDiscoveredAPIs(InputStream inputStream, Charset charset) throws UnknownFormatException {
+        return decodeFromStream(WellKnown.Companion.serializer(), inputStream, charset).getApi();
+    }
+
     /**
      * Serializes a discovered APIs object.
      *
@@ -202,8 +230,99 @@ public class SerializerService {
         }
     }
 
+    /**
+     * Serializes the discovered APIs of the servers the user connected to.
+     *
+     * @param discoveredAPICache The cached discovered APIs.
+     * @return The cache as a JSON string.
+     * @throws UnknownFormatException Thrown if there was an error while serializing.
+     */
+    public String serializeDiscoveredAPICache(DiscoveredAPICache discoveredAPICache) throws UnknownFormatException {
+        try {
+            return jsonSerializer.encodeToString(DiscoveredAPICache.Companion.serializer(), discoveredAPICache);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes the discovered APIs of the servers the user connected to.
+     *
+     * @param json The JSON to deserialize.
+     * @return The cached discovered APIs.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public DiscoveredAPICache deserializeDiscoveredAPICache(String json) throws UnknownFormatException {
+        try {
+            return jsonSerializer.decodeFromString(DiscoveredAPICache.Companion.serializer(), json);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Serializes the profile lists of the servers the user connected to.
+     *
+     * @param profileListCache The cached profile lists.
+     * @return The cache as a JSON string.
+     * @throws UnknownFormatException Thrown if there was an error while serializing.
+     */
+    public String serializeProfileListCache(ProfileListCache profileListCache) throws UnknownFormatException {
+        try {
+            return jsonSerializer.encodeToString(ProfileListCache.Companion.serializer(), profileListCache);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes the profile lists of the servers the user connected to.
+     *
+     * @param json The JSON to deserialize.
+     * @return The cached profile lists.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public ProfileListCache deserializeProfileListCache(String json) throws UnknownFormatException {
+        try {
+            return jsonSerializer.decodeFromString(ProfileListCache.Companion.serializer(), json);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Serializes the validators of the downloaded lists.
+     *
+     * @param listValidatorsCache The validators of the lists.
+     * @return The validators as a JSON string.
+     * @throws UnknownFormatException Thrown if there was an error while serializing.
+     */
+    public String serializeListValidatorsCache(ListValidatorsCache listValidatorsCache) throws UnknownFormatException {
+        try {
+            return jsonSerializer.encodeToString(ListValidatorsCache.Companion.serializer(), listValidatorsCache);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes the validators of the downloaded lists.
+     *
+     * @param json The JSON to deserialize.
+     * @return The validators of the lists.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public ListValidatorsCache deserializeListValidatorsCache(String json) throws UnknownFormatException {
+        try {
+            return jsonSerializer.decodeFromString(ListValidatorsCache.Companion.serializer(), json);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
     /**
      * Serializes a list of saved authorization states.
+     * The auth state shared by the distributed auth instances is only stored once.
      *
      * @param savedAuthStateList The list with the saved authorization states.
      * @return The parsed list in a JSON format.
@@ -211,8 +330,7 @@ public class SerializerService {
      */
     public String serializeSavedAuthStateList(List<SavedAuthState> savedAuthStateList) throws UnknownFormatException {
         try {
-            return jsonSerializer.encodeToString(JsonListWrapper.Companion.serializer(SavedAuthState.Companion
-                    .serializer()), new JsonListWrapper<SavedAuthState>(savedAuthStateList));
+            return jsonSerializer.encodeToString(SavedAuthStateList.Companion.serializer(), SavedAuthStateList.Companion.of(savedAuthStateList));
         } catch (SerializationException ex) {
             throw new UnknownFormatException(ex);
         }
@@ -227,8 +345,7 @@ public class SerializerService {
      */
     public List<SavedAuthState> deserializeSavedAuthStateList(String json) throws UnknownFormatException {
         try {
-            return jsonSerializer.decodeFromString(JsonListWrapper.Companion.serializer(SavedAuthState.Companion
-                    .serializer()), json).getData();
+            return jsonSerializer.decodeFromString(SavedAuthStateList.Companion.serializer(), json).toSavedAuthStates();
         } catch (SerializationException ex) {
             throw new UnknownFormatException(ex);
         }
@@ -337,77 +454,31 @@ public class SerializerService {
     }
 
     /**
-     * Serializes an organization into a JSON object.
+     * Serializes an organization into JSON.
      *
      * @param organization The organization to serialize
-     * @return The organization as a JSON object.
+     * @return The organization as a JSON string.
      * @throws UnknownFormatException Thrown if there was an error while serializing.
      */
-    public JSONObject serializeOrganization(Organization organization) throws UnknownFormatException {
-        JSONObject result = new JSONObject();
+    public String serializeOrganization(Organization organization) throws UnknownFormatException {
         try {
-            result.put("org_id", organization.getOrgId());
-            if (organization.getDisplayName().getTranslations().isEmpty()) {
-                result.put("display_name", null);
-            } else {
-                JSONObject translations = new JSONObject();
-                for (Map.Entry<String, String> entry : organization.getDisplayName().getTranslations().entrySet()) {
-                    translations.put(entry.getKey(), entry.getValue());
-                }
-                result.put("display_name", translations);
-            }
-            if (organization.getKeywordList().getTranslations().isEmpty()) {
-                result.put("keyword_list", null);
-            } else {
-                JSONObject translations = new JSONObject();
-                for (Map.Entry<String, String> entry : organization.getKeywordList().getTranslations().entrySet()) {
-                    translations.put(entry.getKey(), entry.getValue());
-                }
-                result.put("keyword_list", translations);
-            }
-            result.put("secure_internet_home", organization.getSecureInternetHome());
-        } catch (JSONException ex) {
+            return jsonSerializer.encodeToString(Organization.Companion.serializer(), organization);
+        } catch (SerializationException ex) {
             throw new UnknownFormatException(ex);
         }
-        return result;
     }
 
     /**
      * Deserializes an organization from JSON.
      *
-     * @param jsonObject The JSON object to deserialize.
+     * @param json The JSON to deserialize.
      * @return The organization instance.
      * @throws UnknownFormatException Thrown if the JSON has an unknown format.
      */
-    public Organization deserializeOrganization(JSONObject jsonObject) throws UnknownFormatException {
+    public Organization deserializeOrganization(String json) throws UnknownFormatException {
         try {
-            TranslatableString displayName;
-            if (jsonObject.isNull("display_name")) {
-                displayName = new TranslatableString();
-            } else if (jsonObject.get("display_name") instanceof String) {
-                displayName = new TranslatableString(jsonObject.getString("display_name"));
-            } else {
-                displayName = _parseAllTranslations(jsonObject.getJSONObject("display_name"));
-            }
-            String orgId = jsonObject.getString("org_id");
-            TranslatableString translatableString;
-            if (jsonObject.has("keyword_list") && !jsonObject.isNull("keyword_list")) {
-                if (jsonObject.get("keyword_list") instanceof JSONObject) {
-                    translatableString = _parseAllTranslations(jsonObject.getJSONObject("keyword_list"));
-                } else if (jsonObject.get("keyword_list") instanceof String) {
-                    translatableString = new TranslatableString(jsonObject.getString("keyword_list"));
-                } else {
-                    throw new JSONException("keyword_list should be object or string");
-                }
-            } else {
-                translatableString = new TranslatableString();
-            }
-            String secureInternetHome = null;
-            if (jsonObject.has("secure_internet_home") && !jsonObject.isNull("secure_internet_home")) {
-                secureInternetHome = jsonObject.getString("secure_internet_home");
-            }
-            return new Organization(orgId, displayName, translatableString, secureInternetHome);
-        } catch (JSONException ex) {
+            return jsonSerializer.decodeFromString(Organization.Companion.serializer(), json);
+        } catch (SerializationException ex) {
             throw new UnknownFormatException(ex);
         }
     }
@@ -415,22 +486,51 @@ public class SerializerService {
     /**
      * Deserializes a list of organizations.
      *
-     * @param jsonObject The json to deserialize from.
+     * @param json The json to deserialize from.
      * @return The list of organizations created from the JSON.
      * @throws UnknownFormatException Thrown if there was an error while deserializing.
      */
-    public OrganizationList deserializeOrganizationList(JSONObject jsonObject) throws UnknownFormatException {
-        try {
-            List<Organization> result = new ArrayList<>();
-            long version = jsonObject.getLong("v");
-            JSONArray itemsList = jsonObject.getJSONArray("organization_list");
-            for (int i = 0; i < itemsList.length(); ++i) {
-                JSONObject serializedItem = itemsList.getJSONObject(i);
-                Organization organization = deserializeOrganization(serializedItem);
-                result.add(organization);
+    public OrganizationList deserializeOrganizationList(String json) throws UnknownFormatException {
+        try {
+            return jsonSerializer.decodeFromString(OrganizationList.Companion.serializer(), json);
+        } catch (SerializationException ex) {
+            throw new UnknownFormatException(ex);
+        }
+    }
+
+    /**
+     * Deserializes a list of organizations directly from a stream.
+     * The organizations are decoded while reading the stream, without an intermediate string or JSON tree,
+     * so only the resulting model is kept in memory.
+     *
+     * @param inputStream The stream to read the JSON from. Will not be closed by this method.
+     * @param charset     The charset of the stream.
+     * @return The list of organizations read from the stream.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    public OrganizationList deserializeOrganizationList(InputStream inputStream, Charset charset) throws UnknownFormatException {
+        return decodeFromStream(OrganizationList.Companion.serializer(), inputStream, charset);
+    }
+
+    /**
+     * Decodes a model directly from a stream, without reading it into a string first.
+     *
+     * @param deserializer The deserializer of the model.
+     * @param inputStream  The stream to read the JSON from. Will not be closed by this method.
+     * @param charset      The charset of the stream.
+     * @return The decoded model.
+     * @throws UnknownFormatException Thrown if there was an error while deserializing.
+     */
+    private <T> T decodeFromStream(DeserializationStrategy<T> deserializer, InputStream inputStream, Charset charset) throws UnknownFormatException {
+        try {
+            if (StandardCharsets.UTF_8.equals(charset)) {
+                return JvmStreamsKt.decodeFromStream(jsonSerializer, deserializer, inputStream);
+            } else {
+                // The stream decoder only supports UTF-8, which is what the servers use.
+                String json = TextStreamsKt.readText(new InputStreamReader(inputStream, charset));
+                return jsonSerializer.decodeFromString(deserializer, json);
             }
-            return new OrganizationList(version, result);
-        } catch (JSONException ex) {
+        } catch (SerializationException | IllegalArgumentException ex) {
             throw new UnknownFormatException(ex);
         }
     }
@@ -439,20 +539,13 @@ public class SerializerService {
      * Serializes a list of organizations into a JSON format.
      *
      * @param organizationList The list of organizations to serialize.
-     * @return The messages as a JSON object.
+     * @return The organization list as a JSON string.
      * @throws UnknownFormatException Thrown if there was an error constructing the JSON.
      */
-    public JSONObject serializeOrganizationList(OrganizationList organizationList) throws UnknownFormatException {
+    public String serializeOrganizationList(OrganizationList organizationList) throws UnknownFormatException {
         try {
-            JSONObject result = new JSONObject();
-            JSONArray organizationsArray = new JSONArray();
-            for (Organization organization : organizationList.getOrganizationList()) {
-                organizationsArray.put(serializeOrganization(organization));
-            }
-            result.put("organization_list", organizationsArray);
-            result.put("v", organizationList.getVersion());
-            return result;
-        } catch (JSONException ex) {
+            return jsonSerializer.encodeToString(OrganizationList.Companion.serializer(), organizationList);
+        } catch (SerializationException ex) {
             throw new UnknownFormatException(ex);
         }
     }
@@ -487,24 +580,6 @@ public class SerializerService {
         }
     }
 
-    /**
-     * Retrieves the translations from a JSON object.
-     *
-     * @param translationsObject The JSON object to retrieve the translations from.
-     * @return A TranslatableString instance.
-     * @throws JSONException Thrown if the input is in an unexpected format.
-     */
-    private TranslatableString _parseAllTranslations(JSONObject translationsObject) throws JSONException {
-        Iterator<String> keysIterator = translationsObject.keys();
-        Map<String, String> translationsMap = new HashMap<>();
-        while (keysIterator.hasNext()) {
-            String key = keysIterator.next();
-            String value = translationsObject.getString(key);
-            translationsMap.put(key, value);
-        }
-        return new TranslatableString(translationsMap);
-    }
-
     public String serializeProtocol(Protocol protocol) throws UnknownFormatException {
         try {
             return jsonSerializer.encodeToString(Protocol.Companion.serializer(), protocol);
@@ -0,0 +1,160 @@
+/*
+ *  This file is part of eduVPN.
+ *
+ *     eduVPN is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     eduVPN is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.eduvpn.app.service
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import nl.eduvpn.app.Constants
+import nl.eduvpn.app.entity.DiscoveredAPIs
+import nl.eduvpn.app.entity.Instance
+import nl.eduvpn.app.utils.Log
+import nl.eduvpn.app.utils.runCatchingCoroutine
+
+/**
+ * Discovers the API endpoints of the VPN servers.
+ *
+ * The discovered APIs of each server are stored, and returned immediately the next time the server is used.
+ * The stored document is revalidated in the background at the same time, and replaced if it changed.
+ * The document is only fetched while the caller waits if none is stored, or if it was invalidated because
+ * one of its endpoints was gone.
+ *
+ * @param fetchDiscoveredAPIs Fetches the discovery document at an URL, see [APIService.getDiscoveredAPIs].
+ */
+class ServerDiscoveryService(
+    private val fetchDiscoveredAPIs: suspend (url: String) -> DiscoveredAPIs,
+    private val preferencesService: PreferencesService
+) {
+
+    /**
+     * The discovered APIs of a server.
+     *
+     * @param discoveredAPIs The discovered APIs.
+     * @param isCached       True if these were stored earlier and are still being revalidated,
+     *                       false if they were just fetched from the server.
+     */
+    data class DiscoveryResult(val discoveredAPIs: DiscoveredAPIs, val isCached: Boolean)
+
+    private val lock = Any()
+
+    // The revalidations are not bound to a screen, so a revalidation started right before leaving it still completes.
+    private val revalidationScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val revalidations = HashMap<String, Job>()
+
+    /**
+     * Returns the discovered APIs of a server. If they were stored earlier, they are returned immediately
+     * and revalidated in the background.
+     *
+     * @param instance The server to discover.
+     * @return The discovered APIs of the server.
+     * @throws APIService.UserNotAuthorizedException
+     * @throws SerializerService.UnknownFormatException
+     * @throws java.io.IOException
+     */
+    suspend fun getDiscoveredAPIs(instance: Instance): DiscoveryResult {
+        val cached = synchronized(lock) {
+            preferencesService.getDiscoveredAPICache()[instance.sanitizedBaseURI]
+        }
+        if (cached != null) {
+            revalidate(instance, cached)
+            return DiscoveryResult(cached, isCached = true)
+        }
+        return DiscoveryResult(fetch(instance), isCached = false)
+    }
+
+    /**
+     * Removes the stored discovered APIs of a server, so they are fetched again the next time they are needed.
+     * Should be called when one of the endpoints of a server is gone (404 or 410) or its host does not resolve,
+     * because the server moved them. Other failures, such as a missing network, should keep them.
+     *
+     * @param instance The server to remove the discovered APIs of.
+     */
+    fun invalidate(instance: Instance) {
+        val key = instance.sanitizedBaseURI
+        synchronized(lock) {
+            revalidations.remove(key)?.cancel()
+            val cache = preferencesService.getDiscoveredAPICache()
+            if (cache.containsKey(key)) {
+                Log.i(TAG, "Invalidated the discovered APIs of $key.")
+                preferencesService.setDiscoveredAPICache(cache - key)
+            }
+        }
+    }
+
+    private suspend fun fetch(instance: Instance): DiscoveredAPIs {
+        val discoveredAPIs = fetchDiscoveredAPIs(
+            instance.sanitizedBaseURI + Constants.API_DISCOVERY_POSTFIX
+        )
+        store(instance, discoveredAPIs)
+        return discoveredAPIs
+    }
+
+    private fun revalidate(instance: Instance, cached: DiscoveredAPIs) {
+        val key = instance.sanitizedBaseURI
+        synchronized(lock) {
+            if (revalidations[key]?.isActive == true) {
+                return
+            }
+            revalidations[key] = revalidationScope.launch {
+                runCatchingCoroutine {
+                    fetchDiscoveredAPIs(key + Constants.API_DISCOVERY_POSTFIX)
+                }.onSuccess { discoveredAPIs ->
+                    if (discoveredAPIs != cached) {
+                        synchronized(lock) {
+                            // invalidate() cancels a revalidation while holding the lock,
+                            // so a cancelled revalidation never stores the endpoints it fetched
+                            ensureActive()
+                            Log.i(TAG, "The discovered APIs of $key changed.")
+                            store(instance, discoveredAPIs)
+                            // The current connection should use the new endpoints from now on
+                            val current = preferencesService.getCurrentInstance()
+                            if (current?.sanitizedBaseURI == key && discoveredAPIs.v3 != null) {
+                                preferencesService.setCurrentDiscoveredAPI(discoveredAPIs.v3)
+                            }
+                        }
+                    }
+                }.onFailure { throwable ->
+                    // The stored endpoints are kept, if they fail the caller invalidates them.
+                    Log.w(TAG, "Unable to revalidate the discovered APIs of $key.", throwable)
+                }
+            }
+        }
+    }
+
+    private fun store(instance: Instance, discoveredAPIs: DiscoveredAPIs) {
+        val key = instance.sanitizedBaseURI
+        synchronized(lock) {
+            val cache = preferencesService.getDiscoveredAPICache()
+            if (discoveredAPIs.v3 == null) {
+                // Not usable by the app, so there is nothing to return without asking the server again
+                if (cache.containsKey(key)) {
+                    preferencesService.setDiscoveredAPICache(cache - key)
+                }
+            } else if (cache[key] != discoveredAPIs) {
+                preferencesService.setDiscoveredAPICache(cache + (key to discoveredAPIs))
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = ServerDiscoveryService::class.java.name
+    }
+}
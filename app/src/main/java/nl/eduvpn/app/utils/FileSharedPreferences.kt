@@ -0,0 +1,431 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.utils
+
+import android.content.SharedPreferences
+import android.os.Handler
+import android.os.Looper
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import androidx.annotation.VisibleForTesting
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.net.URLDecoder
+import java.net.URLEncoder
+import java.util.WeakHashMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A [SharedPreferences] implementation which stores each key in its own file.
+ *
+ * Changing a small value only rewrites the file of that key, instead of all the stored data.
+ * Every file is written to a temporary file first, synced, and then renamed, so a crash never leaves a partially
+ * written value. Each changed key is written, synced and renamed on its own, also when an editor changes multiple keys.
+ * After the renames, the directory is synced as well, otherwise a power loss could still lose the new files.
+ * [SharedPreferences.Editor.apply] updates the values in memory immediately, and writes the changed keys
+ * on a background thread. Multiple applies of the same key before the write happens result in a single write.
+ * A key which could not be written stays changed, and is written again together with the next change.
+ * Applied changes are lost if the process is killed before they are written, so call [flush] when the app
+ * goes to the background, like the platform implementation waits for its pending writes when an activity stops.
+ *
+ * Use [open] to get an instance, so all users of a directory share the same values in memory.
+ */
+class FileSharedPreferences private constructor(private val directory: File) : SharedPreferences {
+
+    private val lock = Any()
+
+    // Guarded by lock
+    private val values = HashMap<String, Any>()
+
+    // Keys which have been changed in memory, but not yet written to the disk. Guarded by lock.
+    private val dirtyKeys = LinkedHashSet<String>()
+
+    private val listeners = WeakHashMap<SharedPreferences.OnSharedPreferenceChangeListener, Any>()
+
+    private val writeExecutor = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "FileSharedPreferences-writer").also { it.isDaemon = true }
+    }
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private val _bytesWritten = AtomicLong()
+
+    /**
+     * The total number of bytes written to the disk by this instance.
+     */
+    @VisibleForTesting
+    val bytesWritten: Long
+        get() = _bytesWritten.get()
+
+    init {
+        load()
+    }
+
+    private fun load() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create preferences directory!")
+            return
+        }
+        directory.listFiles()?.forEach { file ->
+            if (file.name.endsWith(TEMPORARY_SUFFIX)) {
+                // Leftover of an interrupted write, the previous value is still in the original file.
+                file.delete()
+                return@forEach
+            }
+            try {
+                values[keyForFile(file)] = readValue(file)
+            } catch (ex: IOException) {
+                Log.w(TAG, "Unable to read preference file ${file.name}, ignoring it.", ex)
+            }
+        }
+    }
+
+    override fun getAll(): Map<String, *> = synchronized(lock) { HashMap(values) }
+
+    override fun getString(key: String, defValue: String?): String? = synchronized(lock) {
+        values[key] as String? ?: defValue
+    }
+
+    override fun getStringSet(key: String, defValues: Set<String>?): Set<String>? = synchronized(lock) {
+        @Suppress("UNCHECKED_CAST")
+        values[key] as Set<String>? ?: defValues
+    }
+
+    override fun getInt(key: String, defValue: Int): Int = synchronized(lock) {
+        values[key] as Int? ?: defValue
+    }
+
+    override fun getLong(key: String, defValue: Long): Long = synchronized(lock) {
+        values[key] as Long? ?: defValue
+    }
+
+    override fun getFloat(key: String, defValue: Float): Float = synchronized(lock) {
+        values[key] as Float? ?: defValue
+    }
+
+    override fun getBoolean(key: String, defValue: Boolean): Boolean = synchronized(lock) {
+        values[key] as Boolean? ?: defValue
+    }
+
+    override fun contains(key: String): Boolean = synchronized(lock) { values.containsKey(key) }
+
+    override fun edit(): SharedPreferences.Editor = Editor()
+
+    override fun registerOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        synchronized(lock) { listeners[listener] = Any() }
+    }
+
+    override fun unregisterOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+        synchronized(lock) { listeners.remove(listener) }
+    }
+
+    /**
+     * Writes all changed keys to the disk, and blocks until they have been written.
+     */
+    fun flush() {
+        if (!writeDirtyKeysAndWait()) {
+            Log.e(TAG, "Unable to flush preferences!")
+        }
+    }
+
+    /**
+     * Writes all changed keys on the writer thread, and blocks until they have been written.
+     *
+     * @return True if all keys were written, false if at least one of them failed.
+     */
+    private fun writeDirtyKeysAndWait(): Boolean {
+        return try {
+            writeExecutor.submit(Callable { writeDirtyKeys() }).get()
+        } catch (ex: ExecutionException) {
+            Log.e(TAG, "Unable to write preferences!", ex)
+            false
+        } catch (ex: InterruptedException) {
+            Thread.currentThread().interrupt()
+            false
+        }
+    }
+
+    /**
+     * Writes all changed keys. Keys which could not be written are marked as changed again,
+     * so they are retried by the next write.
+     *
+     * @return True if all keys were written, false if at least one of them failed.
+     */
+    private fun writeDirtyKeys(): Boolean {
+        val failedKeys = mutableListOf<String>()
+        var filesChanged = false
+        while (true) {
+            val (key, value) = synchronized(lock) {
+                val iterator = dirtyKeys.iterator()
+                if (iterator.hasNext()) {
+                    val key = iterator.next()
+                    iterator.remove()
+                    Pair(key, values[key])
+                } else {
+                    // Retried by the next write, not by this one, which would fail again right away.
+                    dirtyKeys.addAll(failedKeys)
+                    null
+                }
+            } ?: break
+            val file = fileForKey(key)
+            if (value == null) {
+                if (file.exists()) {
+                    if (file.delete()) {
+                        filesChanged = true
+                    } else {
+                        Log.w(TAG, "Unable to delete preference file of $key!")
+                        failedKeys.add(key)
+                    }
+                }
+            } else {
+                try {
+                    writeValue(file, value)
+                    filesChanged = true
+                } catch (ex: IOException) {
+                    Log.e(TAG, "Unable to write preference $key!", ex)
+                    failedKeys.add(key)
+                }
+            }
+        }
+        if (filesChanged) {
+            syncDirectory()
+        }
+        return failedKeys.isEmpty()
+    }
+
+    /**
+     * Syncs the directory, so the renamed and deleted files are on the disk, not only their contents.
+     * Once per batch of keys, instead of after each rename.
+     */
+    private fun syncDirectory() {
+        try {
+            val fd = Os.open(directory.path, OsConstants.O_RDONLY, 0)
+            try {
+                Os.fsync(fd)
+            } finally {
+                Os.close(fd)
+            }
+        } catch (ex: ErrnoException) {
+            Log.w(TAG, "Unable to sync preferences directory!", ex)
+        }
+    }
+
+    private fun writeValue(file: File, value: Any) {
+        val temporaryFile = File(directory, file.name + TEMPORARY_SUFFIX)
+        try {
+            val fileOutputStream = FileOutputStream(temporaryFile)
+            DataOutputStream(fileOutputStream.buffered()).use { output ->
+                when (value) {
+                    is String -> {
+                        output.writeByte(TYPE_STRING)
+                        writeString(output, value)
+                    }
+                    is Int -> {
+                        output.writeByte(TYPE_INT)
+                        output.writeInt(value)
+                    }
+                    is Long -> {
+                        output.writeByte(TYPE_LONG)
+                        output.writeLong(value)
+                    }
+                    is Float -> {
+                        output.writeByte(TYPE_FLOAT)
+                        output.writeFloat(value)
+                    }
+                    is Boolean -> {
+                        output.writeByte(TYPE_BOOLEAN)
+                        output.writeBoolean(value)
+                    }
+                    is Set<*> -> {
+                        output.writeByte(TYPE_STRING_SET)
+                        output.writeInt(value.size)
+                        value.forEach { writeString(output, it as String) }
+                    }
+                    else -> throw IOException("Unsupported value type: ${value.javaClass.name}")
+                }
+                output.flush()
+                fileOutputStream.fd.sync()
+                _bytesWritten.addAndGet(output.size().toLong())
+            }
+            if (!temporaryFile.renameTo(file)) {
+                throw IOException("Unable to move ${file.name} into place!")
+            }
+        } catch (ex: IOException) {
+            temporaryFile.delete()
+            throw ex
+        }
+    }
+
+    private fun readValue(file: File): Any {
+        DataInputStream(file.inputStream().buffered()).use { input ->
+            return when (val type = input.readByte().toInt()) {
+                TYPE_STRING -> readString(input)
+                TYPE_INT -> input.readInt()
+                TYPE_LONG -> input.readLong()
+                TYPE_FLOAT -> input.readFloat()
+                TYPE_BOOLEAN -> input.readBoolean()
+                TYPE_STRING_SET -> {
+                    val size = input.readInt()
+                    if (size < 0) {
+                        throw IOException("Invalid string set size: $size")
+                    }
+                    (0 until size).mapTo(HashSet(size)) { readString(input) }
+                }
+                else -> throw IOException("Unknown value type: $type")
+            }
+        }
+    }
+
+    private fun writeString(output: DataOutputStream, value: String) {
+        // DataOutputStream.writeUTF() is limited to 64 KB, which is not enough for the saved auth states.
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val length = input.readInt()
+        if (length < 0) {
+            throw IOException("Invalid string length: $length")
+        }
+        val bytes = ByteArray(length)
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun fileForKey(key: String) = File(directory, URLEncoder.encode(key, "UTF-8"))
+
+    private fun keyForFile(file: File) = URLDecoder.decode(file.name, "UTF-8")
+
+    private inner class Editor : SharedPreferences.Editor {
+
+        private val modifications = HashMap<String, Any?>()
+        private var clearAll = false
+
+        override fun putString(key: String, value: String?) = put(key, value)
+
+        override fun putStringSet(key: String, values: Set<String>?) = put(key, values?.let { HashSet(it) })
+
+        override fun putInt(key: String, value: Int) = put(key, value)
+
+        override fun putLong(key: String, value: Long) = put(key, value)
+
+        override fun putFloat(key: String, value: Float) = put(key, value)
+
+        override fun putBoolean(key: String, value: Boolean) = put(key, value)
+
+        override fun remove(key: String) = put(key, null)
+
+        override fun clear(): SharedPreferences.Editor {
+            synchronized(this) { clearAll = true }
+            return this
+        }
+
+        private fun put(key: String, value: Any?): SharedPreferences.Editor {
+            synchronized(this) { modifications[key] = value }
+            return this
+        }
+
+        override fun commit(): Boolean {
+            commitToMemory()
+            return writeDirtyKeysAndWait()
+        }
+
+        override fun apply() {
+            if (commitToMemory()) {
+                writeExecutor.execute { writeDirtyKeys() }
+            }
+        }
+
+        /**
+         * Applies the changes of this editor to the values in memory, and marks the changed keys as dirty.
+         *
+         * @return True if any of the keys changed.
+         */
+        private fun commitToMemory(): Boolean {
+            val changedKeys = mutableListOf<String>()
+            val listenersToNotify: List<SharedPreferences.OnSharedPreferenceChangeListener>
+            synchronized(lock) {
+                synchronized(this) {
+                    if (clearAll) {
+                        changedKeys.addAll(values.keys)
+                        values.clear()
+                        clearAll = false
+                    }
+                    modifications.forEach { (key, value) ->
+                        val changed = if (value == null) {
+                            values.remove(key) != null
+                        } else {
+                            values.put(key, value) != value
+                        }
+                        if (changed) {
+                            changedKeys.add(key)
+                        }
+                    }
+                    modifications.clear()
+                }
+                dirtyKeys.addAll(changedKeys)
+                listenersToNotify = listeners.keys.toList()
+            }
+            if (changedKeys.isNotEmpty() && listenersToNotify.isNotEmpty()) {
+                mainHandler.post {
+                    changedKeys.forEach { key ->
+                        listenersToNotify.forEach { it.onSharedPreferenceChanged(this@FileSharedPreferences, key) }
+                    }
+                }
+            }
+            return changedKeys.isNotEmpty()
+        }
+    }
+
+    companion object {
+        private val TAG = FileSharedPreferences::class.java.name
+
+        private const val TEMPORARY_SUFFIX = ".tmp"
+
+        private const val TYPE_STRING = 1
+        private const val TYPE_INT = 2
+        private const val TYPE_LONG = 3
+        private const val TYPE_FLOAT = 4
+        private const val TYPE_BOOLEAN = 5
+        private const val TYPE_STRING_SET = 6
+
+        private val instances = HashMap<String, FileSharedPreferences>()
+
+        /**
+         * Returns the preferences stored in a directory. The directory is created if it does not exist yet.
+         *
+         * @param directory The directory to store the values in. Should not be used for anything else.
+         * @return The preferences. Every call with the same directory returns the same instance.
+         */
+        @JvmStatic
+        fun open(directory: File): FileSharedPreferences {
+            synchronized(instances) {
+                return instances.getOrPut(directory.absolutePath) { FileSharedPreferences(directory) }
+            }
+        }
+    }
+}
@@ -93,23 +93,22 @@ fun Instance.getCountryText(): String? {
  * Extension method for OkHttp for integration with coroutines.
  */
 suspend fun Call.await(): Response {
-    return withContext(Dispatchers.IO) {
-        suspendCancellableCoroutine { cont ->
-            cont.invokeOnCancellation {
-                kotlin.runCatching {
-                    cancel()
-                }
+    // Enqueueing does not block, the call itself is executed on the dispatcher of OkHttp.
+    return suspendCancellableCoroutine { cont ->
+        cont.invokeOnCancellation {
+            kotlin.runCatching {
+                cancel()
             }
-            enqueue(object : Callback {
-                override fun onFailure(call: Call, e: IOException) {
-                    cont.resumeWithException(e)
-                }
-
-                override fun onResponse(call: Call, response: Response) {
-                    cont.resume(response)
-                }
-            })
         }
+        enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                cont.resumeWithException(e)
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                cont.resume(response)
+            }
+        })
     }
 }
 
@@ -0,0 +1,236 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.utils
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Stores versioned lists (such as the server and organization list) in a compact binary file per list.
+ *
+ * Layout of a snapshot file (all numbers big-endian):
+ * ```
+ * int   magic
+ * int   format version
+ * long  list version ("v" field of the list)
+ * long  timestamp of saving, in milliseconds
+ * int   entry count (n)
+ * int   offsets[n + 1], relative to the start of the entry data
+ * byte  entry data, each entry encoded as UTF-8
+ * ```
+ * The file is memory-mapped when read, and the entries are only decoded when they are accessed.
+ * If an entry can not be decoded, for example because it was written by a version of the app with a different
+ * entry format, the snapshot is deleted and accessing the entry throws a [CorruptSnapshotException].
+ */
+class ListSnapshotStore(private val directory: File) {
+
+    /**
+     * A snapshot read from the disk.
+     *
+     * @param version The version of the list, as given by the list itself.
+     * @param savedAt The moment the snapshot was written, in milliseconds.
+     * @param entries The entries of the list, decoded on first access.
+     */
+    class Snapshot<T>(val version: Long, val savedAt: Long, val entries: List<T>)
+
+    /**
+     * Thrown when an entry of a snapshot is accessed, which can not be decoded. The snapshot is deleted already,
+     * the list should be loaded from another source.
+     */
+    class CorruptSnapshotException(name: String, cause: Throwable) :
+        IllegalStateException("Unable to decode an entry of snapshot $name!", cause)
+
+    /**
+     * Reads a previously written snapshot.
+     *
+     * @param name    The name of the list.
+     * @param decoder Decodes a single entry. Only called when the entry is accessed.
+     * @return The snapshot, or null if there is none, or it could not be read.
+     */
+    fun <T> read(name: String, decoder: (String) -> T): Snapshot<T>? {
+        val file = fileFor(name)
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            val buffer = RandomAccessFile(file, "r").use { randomAccessFile ->
+                randomAccessFile.channel.map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length())
+            }
+            if (buffer.int != MAGIC || buffer.int != FORMAT_VERSION) {
+                Log.w(TAG, "Unknown snapshot format for $name, ignoring it.")
+                return null
+            }
+            val version = buffer.long
+            val savedAt = buffer.long
+            val count = buffer.int
+            // Each entry takes at least its offset, so a larger count can only come from a damaged file
+            if (count < 0 || count > buffer.remaining() / Int.SIZE_BYTES - 1) {
+                Log.w(TAG, "Snapshot of $name has an invalid entry count, ignoring it.")
+                return null
+            }
+            val offsets = IntArray(count + 1) { buffer.int }
+            val data = buffer.slice()
+            if (offsets[0] != 0 || offsets[count] > data.capacity() ||
+                (0 until count).any { offsets[it] > offsets[it + 1] }
+            ) {
+                Log.w(TAG, "Snapshot of $name is truncated or has invalid offsets, ignoring it.")
+                return null
+            }
+            Snapshot(version, savedAt, LazyEntryList(name, savedAt, data, offsets, decoder))
+        } catch (ex: IOException) {
+            Log.w(TAG, "Unable to read snapshot of $name!", ex)
+            null
+        } catch (ex: BufferUnderflowException) {
+            Log.w(TAG, "Snapshot of $name is truncated, ignoring it.", ex)
+            null
+        }
+    }
+
+    /**
+     * Writes a snapshot of a list. The file is replaced atomically, so readers never see a partial write.
+     *
+     * @param name    The name of the list.
+     * @param version The version of the list.
+     * @param entries The entries to store.
+     * @param encoder Encodes a single entry.
+     * @return True if the snapshot was written successfully.
+     */
+    fun <T> write(name: String, version: Long, entries: List<T>, encoder: (T) -> String): Boolean {
+        val encodedEntries = entries.map { encoder(it).toByteArray(Charsets.UTF_8) }
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create snapshot directory!")
+            return false
+        }
+        val file = fileFor(name)
+        val temporaryFile = File(directory, "$name$TEMPORARY_SUFFIX")
+        return try {
+            val fileOutputStream = FileOutputStream(temporaryFile)
+            DataOutputStream(fileOutputStream.buffered()).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(FORMAT_VERSION)
+                output.writeLong(version)
+                output.writeLong(System.currentTimeMillis())
+                output.writeInt(encodedEntries.size)
+                var offset = 0
+                output.writeInt(offset)
+                encodedEntries.forEach { entry ->
+                    offset += entry.size
+                    output.writeInt(offset)
+                }
+                encodedEntries.forEach { entry ->
+                    output.write(entry)
+                }
+                // Synced before the rename, so a crash can not leave an empty or truncated snapshot in its place
+                output.flush()
+                fileOutputStream.fd.sync()
+            }
+            if (!temporaryFile.renameTo(file)) {
+                throw IOException("Unable to move snapshot of $name into place!")
+            }
+            true
+        } catch (ex: IOException) {
+            Log.w(TAG, "Unable to write snapshot of $name!", ex)
+            temporaryFile.delete()
+            false
+        }
+    }
+
+    /**
+     * Deletes a stored snapshot.
+     *
+     * @param name The name of the list.
+     */
+    fun delete(name: String) {
+        fileFor(name).delete()
+    }
+
+    private fun fileFor(name: String) = File(directory, "$name$FILE_SUFFIX")
+
+    /**
+     * Deletes a snapshot, unless it was replaced by a newer one since it was read.
+     */
+    private fun deleteIfSavedAt(name: String, savedAt: Long) {
+        val file = fileFor(name)
+        try {
+            val currentSavedAt = DataInputStream(file.inputStream().buffered()).use { input ->
+                input.skipBytes(HEADER_SAVED_AT_OFFSET)
+                input.readLong()
+            }
+            if (currentSavedAt != savedAt) {
+                return
+            }
+        } catch (ex: IOException) {
+            // Unreadable as well, so there is nothing to keep
+        }
+        file.delete()
+    }
+
+    private inner class LazyEntryList<T>(
+        private val name: String,
+        private val savedAt: Long,
+        private val data: ByteBuffer,
+        private val offsets: IntArray,
+        private val decoder: (String) -> T
+    ) : AbstractList<T>(), RandomAccess {
+
+        private val decoded = arrayOfNulls<Any>(offsets.size - 1)
+
+        override val size: Int = offsets.size - 1
+
+        override fun get(index: Int): T {
+            if (index < 0 || index >= size) {
+                throw IndexOutOfBoundsException("Index $index, size $size")
+            }
+            @Suppress("UNCHECKED_CAST")
+            decoded[index]?.let { return it as T }
+            val bytes = ByteArray(offsets[index + 1] - offsets[index])
+            // Use a duplicate, so concurrent readers do not share the position of the buffer.
+            val view = data.duplicate()
+            view.position(offsets[index])
+            view.get(bytes)
+            val entry = try {
+                decoder(String(bytes, Charsets.UTF_8))
+            } catch (ex: Exception) {
+                // Stored by a version of the app with a different entry format, or damaged on the disk.
+                Log.w(TAG, "Unable to decode entry $index of snapshot $name, deleting it.", ex)
+                deleteIfSavedAt(name, savedAt)
+                throw CorruptSnapshotException(name, ex)
+            }
+            decoded[index] = entry
+            return entry
+        }
+    }
+
+    companion object {
+        private val TAG = ListSnapshotStore::class.java.name
+
+        private const val MAGIC = 0x4556_4C53 // "EVLS"
+        private const val FORMAT_VERSION = 1
+        private const val HEADER_SAVED_AT_OFFSET = 16 // After the magic, format version and list version
+        private const val FILE_SUFFIX = ".snapshot"
+        private const val TEMPORARY_SUFFIX = ".tmp"
+    }
+}
@@ -17,6 +17,7 @@
 
 package nl.eduvpn.app.utils;
 
+import kotlin.jvm.functions.Function0;
 import nl.eduvpn.app.Constants;
 
 /**
@@ -118,4 +119,17 @@ public class Log {
             android.util.Log.d(tag, message);
         }
     }
+
+    /**
+     * Log a debug message which is only built when debug logging is enabled.
+     * Use this for messages which are expensive to build, such as ones containing response bodies.
+     *
+     * @param tag     Used to identify the source of a log message. It usually identifies the class or activity where the log call occurs.
+     * @param message Builds the message to log.
+     */
+    public static void d(String tag, Function0<String> message) {
+        if (DEBUG) {
+            android.util.Log.d(tag, message.invoke());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.utils.crypto
+
+/**
+ * BLAKE2b hash function (RFC 7693) in plain Kotlin, without a key.
+ * Produces the same hashes as crypto_generichash of libsodium, without having to load the native library.
+ * Not thread-safe, feed it from a single thread at a time.
+ *
+ * @param digestLength The length of the hash in bytes, between 1 and [MAX_DIGEST_LENGTH].
+ */
+class Blake2b(private val digestLength: Int = MAX_DIGEST_LENGTH) {
+
+    private val h = IV.copyOf()
+    private val v = LongArray(16)
+    private val m = LongArray(16)
+
+    private val buffer = ByteArray(BLOCK_LENGTH)
+    private var bufferLength = 0
+
+    // The number of bytes compressed so far, as a 128-bit counter
+    private var counterLow = 0L
+    private var counterHigh = 0L
+
+    init {
+        require(digestLength in 1..MAX_DIGEST_LENGTH) { "Invalid digest length: $digestLength" }
+        h[0] = h[0] xor 0x01010000L xor digestLength.toLong()
+    }
+
+    /**
+     * Adds the next part of the message to the hash.
+     */
+    fun update(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset) {
+        var position = offset
+        var remaining = length
+        while (remaining > 0) {
+            // The last block is compressed differently, so a full block is only compressed once more data arrives.
+            if (bufferLength == BLOCK_LENGTH) {
+                incrementCounter(BLOCK_LENGTH)
+                compress(isLastBlock = false)
+                bufferLength = 0
+            }
+            val count = minOf(BLOCK_LENGTH - bufferLength, remaining)
+            System.arraycopy(bytes, position, buffer, bufferLength, count)
+            bufferLength += count
+            position += count
+            remaining -= count
+        }
+    }
+
+    /**
+     * Finishes the hash. The instance should not be used afterwards.
+     *
+     * @return The hash of all the bytes added.
+     */
+    fun digest(): ByteArray {
+        incrementCounter(bufferLength)
+        buffer.fill(0, bufferLength, BLOCK_LENGTH)
+        compress(isLastBlock = true)
+        return ByteArray(digestLength) { i -> (h[i / 8] ushr (8 * (i % 8))).toByte() }
+    }
+
+    private fun incrementCounter(count: Int) {
+        val previous = counterLow
+        counterLow += count
+        // Unsigned overflow of the low word
+        if ((counterLow xor Long.MIN_VALUE) < (previous xor Long.MIN_VALUE)) {
+            counterHigh++
+        }
+    }
+
+    private fun compress(isLastBlock: Boolean) {
+        for (i in 0 until 16) {
+            var word = 0L
+            for (j in 7 downTo 0) {
+                word = (word shl 8) or (buffer[i * 8 + j].toLong() and 0xFF)
+            }
+            m[i] = word
+        }
+        for (i in 0 until 8) {
+            v[i] = h[i]
+            v[i + 8] = IV[i]
+        }
+        v[12] = v[12] xor counterLow
+        v[13] = v[13] xor counterHigh
+        if (isLastBlock) {
+            v[14] = v[14].inv()
+        }
+        for (round in 0 until ROUNDS) {
+            val s = SIGMA[round % SIGMA.size]
+            mix(0, 4, 8, 12, m[s[0]], m[s[1]])
+            mix(1, 5, 9, 13, m[s[2]], m[s[3]])
+            mix(2, 6, 10, 14, m[s[4]], m[s[5]])
+            mix(3, 7, 11, 15, m[s[6]], m[s[7]])
+            mix(0, 5, 10, 15, m[s[8]], m[s[9]])
+            mix(1, 6, 11, 12, m[s[10]], m[s[11]])
+            mix(2, 7, 8, 13, m[s[12]], m[s[13]])
+            mix(3, 4, 9, 14, m[s[14]], m[s[15]])
+        }
+        for (i in 0 until 8) {
+            h[i] = h[i] xor v[i] xor v[i + 8]
+        }
+    }
+
+    private fun mix(a: Int, b: Int, c: Int, d: Int, x: Long, y: Long) {
+        v[a] = v[a] + v[b] + x
+        v[d] = (v[d] xor v[a]).rotateRight(32)
+        v[c] = v[c] + v[d]
+        v[b] = (v[b] xor v[c]).rotateRight(24)
+        v[a] = v[a] + v[b] + y
+        v[d] = (v[d] xor v[a]).rotateRight(16)
+        v[c] = v[c] + v[d]
+        v[b] = (v[b] xor v[c]).rotateRight(63)
+    }
+
+    companion object {
+        const val MAX_DIGEST_LENGTH = 64
+
+        private const val BLOCK_LENGTH = 128
+        private const val ROUNDS = 12
+
+        private val IV = longArrayOf(
+            0x6a09e667f3bcc908uL.toLong(), 0xbb67ae8584caa73buL.toLong(),
+            0x3c6ef372fe94f82buL.toLong(), 0xa54ff53a5f1d36f1uL.toLong(),
+            0x510e527fade682d1uL.toLong(), 0x9b05688c2b3e6c1fuL.toLong(),
+            0x1f83d9abfb41bd6buL.toLong(), 0x5be0cd19137e2179uL.toLong()
+        )
+
+        private val SIGMA = arrayOf(
+            intArrayOf(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15),
+            intArrayOf(14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3),
+            intArrayOf(11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4),
+            intArrayOf(7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8),
+            intArrayOf(9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13),
+            intArrayOf(2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9),
+            intArrayOf(12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11),
+            intArrayOf(13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10),
+            intArrayOf(6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5),
+            intArrayOf(10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0)
+        )
+
+        /**
+         * Hashes a complete message.
+         */
+        @JvmStatic
+        fun hash(message: ByteArray, digestLength: Int = MAX_DIGEST_LENGTH): ByteArray {
+            return Blake2b(digestLength).also { it.update(message) }.digest()
+        }
+    }
+}
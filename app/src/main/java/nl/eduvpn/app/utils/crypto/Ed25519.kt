@@ -0,0 +1,167 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.utils.crypto
+
+import java.math.BigInteger
+import java.security.MessageDigest
+
+/**
+ * Ed25519 signature verification (RFC 8032) in plain Kotlin.
+ * Follows the reference implementation of the RFC, so it is slower than libsodium,
+ * but does not need the native library to be loaded.
+ *
+ * Rejects the same signatures as crypto_sign_verify_detached() of libsodium, which is stricter than the RFC:
+ * the public key A and the point R of the signature must be canonically encoded and must not have a small order,
+ * and the scalar S must be smaller than the order of the base point.
+ */
+object Ed25519 {
+
+    const val PUBLIC_KEY_LENGTH = 32
+    const val SIGNATURE_LENGTH = 64
+
+    private val TWO = BigInteger.valueOf(2)
+
+    // The field prime: 2^255 - 19
+    private val P = TWO.pow(255).subtract(BigInteger.valueOf(19))
+
+    // The order of the base point: 2^252 + 27742317777372353535851937790883648493
+    private val L = TWO.pow(252).add(BigInteger("27742317777372353535851937790883648493"))
+
+    private val D = BigInteger.valueOf(-121665).multiply(inverse(BigInteger.valueOf(121666))).mod(P)
+
+    private val SQRT_M1 = TWO.modPow(P.subtract(BigInteger.ONE).shiftRight(2), P)
+
+    private val Y_MASK = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.ONE)
+
+    // Points of small order are the ones for which multiplying with the cofactor gives the identity
+    private val COFACTOR = BigInteger.valueOf(8)
+
+    /**
+     * A point on the curve in extended coordinates: x = X / Z, y = Y / Z, x * y = T / Z.
+     */
+    private class Point(val x: BigInteger, val y: BigInteger, val z: BigInteger, val t: BigInteger)
+
+    private val IDENTITY = Point(BigInteger.ZERO, BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO)
+
+    private val BASE_POINT: Point = run {
+        val y = BigInteger.valueOf(4).multiply(inverse(BigInteger.valueOf(5))).mod(P)
+        val x = recoverX(y, 0)!!
+        Point(x, y, BigInteger.ONE, x.multiply(y).mod(P))
+    }
+
+    /**
+     * Verifies a signature.
+     *
+     * @param signature The 64 byte signature.
+     * @param message   The signed message.
+     * @param publicKey The 32 byte public key.
+     * @return True if the signature is valid for the message and the key.
+     */
+    @JvmStatic
+    fun verify(signature: ByteArray, message: ByteArray, publicKey: ByteArray): Boolean {
+        if (signature.size != SIGNATURE_LENGTH || publicKey.size != PUBLIC_KEY_LENGTH) {
+            return false
+        }
+        // Decompressing rejects the non-canonical encodings
+        val a = decompress(publicKey) ?: return false
+        val encodedR = signature.copyOfRange(0, 32)
+        val r = decompress(encodedR) ?: return false
+        // With a small order key, a signature can be valid for any message
+        if (hasSmallOrder(a) || hasSmallOrder(r)) {
+            return false
+        }
+        val s = littleEndian(signature.copyOfRange(32, 64))
+        if (s >= L) {
+            return false
+        }
+        val digest = MessageDigest.getInstance("SHA-512").run {
+            update(encodedR)
+            update(publicKey)
+            update(message)
+            digest()
+        }
+        val h = littleEndian(digest).mod(L)
+        return equal(multiply(s, BASE_POINT), add(r, multiply(h, a)))
+    }
+
+    private fun add(p: Point, q: Point): Point {
+        val a = p.y.subtract(p.x).multiply(q.y.subtract(q.x)).mod(P)
+        val b = p.y.add(p.x).multiply(q.y.add(q.x)).mod(P)
+        val c = TWO.multiply(p.t).multiply(q.t).multiply(D).mod(P)
+        val d = TWO.multiply(p.z).multiply(q.z).mod(P)
+        val e = b.subtract(a)
+        val f = d.subtract(c)
+        val g = d.add(c)
+        val h = b.add(a)
+        return Point(e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P), e.multiply(h).mod(P))
+    }
+
+    private fun multiply(scalar: BigInteger, point: Point): Point {
+        var result = IDENTITY
+        var addend = point
+        for (i in 0 until scalar.bitLength()) {
+            if (scalar.testBit(i)) {
+                result = add(result, addend)
+            }
+            addend = add(addend, addend)
+        }
+        return result
+    }
+
+    private fun hasSmallOrder(point: Point): Boolean = equal(multiply(COFACTOR, point), IDENTITY)
+
+    private fun equal(p: Point, q: Point): Boolean {
+        return p.x.multiply(q.z).subtract(q.x.multiply(p.z)).mod(P).signum() == 0 &&
+                p.y.multiply(q.z).subtract(q.y.multiply(p.z)).mod(P).signum() == 0
+    }
+
+    private fun recoverX(y: BigInteger, sign: Int): BigInteger? {
+        if (y >= P) {
+            return null
+        }
+        val ySquared = y.multiply(y)
+        val xSquared = ySquared.subtract(BigInteger.ONE).multiply(inverse(D.multiply(ySquared).add(BigInteger.ONE))).mod(P)
+        if (xSquared.signum() == 0) {
+            return if (sign == 0) BigInteger.ZERO else null
+        }
+        var x = xSquared.modPow(P.add(BigInteger.valueOf(3)).shiftRight(3), P)
+        if (x.multiply(x).subtract(xSquared).mod(P).signum() != 0) {
+            x = x.multiply(SQRT_M1).mod(P)
+        }
+        if (x.multiply(x).subtract(xSquared).mod(P).signum() != 0) {
+            return null
+        }
+        if ((if (x.testBit(0)) 1 else 0) != sign) {
+            x = P.subtract(x)
+        }
+        return x
+    }
+
+    private fun decompress(encoded: ByteArray): Point? {
+        val value = littleEndian(encoded)
+        val sign = if (value.testBit(255)) 1 else 0
+        val y = value.and(Y_MASK)
+        val x = recoverX(y, sign) ?: return null
+        return Point(x, y, BigInteger.ONE, x.multiply(y).mod(P))
+    }
+
+    private fun inverse(value: BigInteger): BigInteger = value.modPow(P.subtract(TWO), P)
+
+    private fun littleEndian(bytes: ByteArray): BigInteger = BigInteger(1, bytes.reversedArray())
+}
@@ -1,25 +1,78 @@
 package nl.eduvpn.app.utils.serializer
 
 import kotlinx.serialization.KSerializer
-import kotlinx.serialization.descriptors.PrimitiveKind
-import kotlinx.serialization.descriptors.PrimitiveSerialDescriptor
+import kotlinx.serialization.SerializationException
 import kotlinx.serialization.descriptors.SerialDescriptor
 import kotlinx.serialization.encoding.Decoder
 import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonDecoder
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonEncoder
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.booleanOrNull
+import kotlinx.serialization.json.doubleOrNull
+import kotlinx.serialization.json.longOrNull
 import net.openid.appauth.AuthState
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
 
+/**
+ * Stores the auth state as a nested JSON object, so it is parsed together with the document containing it.
+ * Auth states stored as a JSON string by earlier versions are still read.
+ */
 object AuthStateSerializer : KSerializer<AuthState> {
 
-    override val descriptor: SerialDescriptor =
-        PrimitiveSerialDescriptor("AuthState", PrimitiveKind.STRING)
+    override val descriptor: SerialDescriptor = JsonElement.serializer().descriptor
 
     override fun serialize(encoder: Encoder, value: AuthState) {
-        val jsonString = value.jsonSerializeString()
-        encoder.encodeString(jsonString)
+        if (encoder is JsonEncoder) {
+            encoder.encodeJsonElement(value.jsonSerialize().toJsonElement())
+        } else {
+            encoder.encodeString(value.jsonSerializeString())
+        }
     }
 
     override fun deserialize(decoder: Decoder): AuthState {
-        val jsonString = decoder.decodeString()
-        return AuthState.jsonDeserialize(jsonString)
+        if (decoder !is JsonDecoder) {
+            return AuthState.jsonDeserialize(decoder.decodeString())
+        }
+        try {
+            return when (val element = decoder.decodeJsonElement()) {
+                is JsonObject -> AuthState.jsonDeserialize(element.toJSONObject())
+                is JsonPrimitive -> AuthState.jsonDeserialize(element.content)
+                else -> throw SerializationException("Unexpected auth state: $element")
+            }
+        } catch (ex: JSONException) {
+            throw SerializationException("Unable to parse auth state", ex)
+        }
+    }
+
+    private fun Any?.toJsonElement(): JsonElement = when (this) {
+        null, JSONObject.NULL -> JsonNull
+        is JSONObject -> JsonObject(keys().asSequence().associateWith { opt(it).toJsonElement() })
+        is JSONArray -> JsonArray((0 until length()).map { opt(it).toJsonElement() })
+        is Boolean -> JsonPrimitive(this)
+        is Number -> JsonPrimitive(this)
+        else -> JsonPrimitive(toString())
+    }
+
+    private fun JsonObject.toJSONObject(): JSONObject {
+        val result = JSONObject()
+        forEach { (key, value) -> result.put(key, value.toJSONValue()) }
+        return result
+    }
+
+    private fun JsonElement.toJSONValue(): Any = when (this) {
+        is JsonNull -> JSONObject.NULL
+        is JsonObject -> toJSONObject()
+        is JsonArray -> JSONArray().also { array -> forEach { array.put(it.toJSONValue()) } }
+        is JsonPrimitive -> when {
+            isString -> content
+            else -> booleanOrNull ?: longOrNull ?: doubleOrNull ?: content
+        }
     }
 }
@@ -7,6 +7,7 @@ import kotlinx.serialization.descriptors.SerialDescriptor
 import kotlinx.serialization.encoding.Decoder
 import kotlinx.serialization.encoding.Encoder
 import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
 import kotlinx.serialization.json.JsonObject
 import kotlinx.serialization.json.JsonPrimitive
 import nl.eduvpn.app.entity.TranslatableString
@@ -29,6 +30,8 @@ object TranslatableStringSerializer : KSerializer<TranslatableString> {
         return when (val jsonElement = decoder.decodeSerializableValue(JsonElement.serializer())) {
             // Plain string was previously used to store displayName in Instance and in Profile. If
             // this is removed from the deserializer, a migration is necessary.
+            // Null was used for empty translations in the hand-written organization serializer.
+            is JsonNull -> TranslatableString()
             is JsonPrimitive -> if (jsonElement.isString) TranslatableString(jsonElement.content) else null
             is JsonObject -> TranslatableString(jsonElement.filterValues { v -> v is JsonPrimitive && v.isString }
                 .mapValues { m ->
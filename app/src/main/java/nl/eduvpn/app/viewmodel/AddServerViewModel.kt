@@ -33,6 +33,9 @@ class AddServerViewModel @Inject constructor(
     connectionService: ConnectionService,
     eduVpnOpenVpnService: EduVPNOpenVPNService,
     vpnConnectionService: VPNConnectionService,
+    connectionPrewarmService: ConnectionPrewarmService,
+    serverDiscoveryService: ServerDiscoveryService,
+    profileListService: ProfileListService,
 ) : BaseConnectionViewModel(
     context,
     apiService,
@@ -42,6 +45,9 @@ class AddServerViewModel @Inject constructor(
     connectionService,
     eduVpnOpenVpnService,
     vpnConnectionService,
+    connectionPrewarmService,
+    serverDiscoveryService,
+    profileListService,
 ) {
 
     val serverUrl = MutableLiveData("")
@@ -45,6 +45,7 @@ import java.io.BufferedReader
 import java.io.IOException
 import java.io.StringReader
 import java.net.URLEncoder
+import java.net.UnknownHostException
 import java.text.ParseException
 import java.text.SimpleDateFormat
 import java.util.*
@@ -63,6 +64,9 @@ abstract class BaseConnectionViewModel(
     private val connectionService: ConnectionService,
     private val eduVpnOpenVpnService: EduVPNOpenVPNService,
     private val vpnConnectionService: VPNConnectionService,
+    private val connectionPrewarmService: ConnectionPrewarmService,
+    private val serverDiscoveryService: ServerDiscoveryService,
+    private val profileListService: ProfileListService,
 ) : ViewModel() {
 
     sealed class ParentAction {
@@ -81,77 +85,73 @@ abstract class BaseConnectionViewModel(
 
     val parentAction = MutableLiveData<ParentAction?>()
 
+    // If the endpoints of the current server came from the discovery cache, instead of from the server itself
+    private var isDiscoveredAPICached = false
+
     fun discoverApi(instance: Instance, reauthorize: Boolean = false) {
         // If no discovered API, fetch it first, then initiate the connection for the login
         connectionState.value = ConnectionState.DiscoveringApi
+        // Open the connection to the server itself right away, the endpoints are not known yet
+        viewModelScope.launch {
+            connectionPrewarmService.prewarm(instance.sanitizedBaseURI)
+        }
         // Discover the API
         viewModelScope.launch(Dispatchers.Main) {
             runCatchingCoroutine {
-                apiService.getString(
-                    instance.sanitizedBaseURI + Constants.API_DISCOVERY_POSTFIX,
-                    null
-                )
-            }.onSuccess { result ->
-                try {
-                    val discoveredAPI =
-                        serializerService.deserializeDiscoveredAPIs(result).v3
-                    if (discoveredAPI == null) {
-                        val errorMessage = "Server does not provide API version 3"
-                        Log.e(TAG, errorMessage)
-                        connectionState.value = ConnectionState.Ready
-                        parentAction.value = ParentAction.DisplayError(
-                            R.string.error_dialog_title,
-                            context.getString(
-                                R.string.error_discover_api,
-                                instance.sanitizedBaseURI,
-                                errorMessage
-                            )
-                        )
-                    } else {
-                        val savedToken =
-                            historyService.getSavedToken(instance)
-                        if (savedToken == null || reauthorize) {
-                            authorize(instance, discoveredAPI)
-                        } else {
-                            if (savedToken.instance.sanitizedBaseURI != instance.sanitizedBaseURI
-                            ) {
-                                // This is a distributed token. We add it to the list.
-                                Log.i(TAG, "Distributed token found for different instance.")
-                                preferencesService.setCurrentInstance(instance)
-                                preferencesService.setCurrentDiscoveredAPI(discoveredAPI)
-                                preferencesService.setCurrentAuthState(savedToken.authState)
-                                historyService.cacheAuthorizationState(
-                                    instance,
-                                    savedToken.authState,
-                                    savedToken.authenticationDate
-                                )
-                            }
-                            preferencesService.setCurrentInstance(instance)
-                            preferencesService.setCurrentDiscoveredAPI(discoveredAPI)
-                            preferencesService.setCurrentAuthState(savedToken.authState)
-                            getSupportedProfilesV3(
-                                instance,
-                                discoveredAPI,
-                                savedToken.authState
-                            ).flatMap { supportedProfiles ->
-                                selectProfile(supportedProfiles)
-                            }
-                        }
-                    }
-                } catch (ex: SerializerService.UnknownFormatException) {
-                    Log.e(TAG, "Error parsing discovered API!", ex)
+                serverDiscoveryService.getDiscoveredAPIs(instance)
+            }.onSuccess { discoveryResult ->
+                isDiscoveredAPICached = discoveryResult.isCached
+                val discoveredAPI = discoveryResult.discoveredAPIs.v3
+                if (discoveredAPI == null) {
+                    val errorMessage = "Server does not provide API version 3"
+                    Log.e(TAG, errorMessage)
                     connectionState.value = ConnectionState.Ready
                     parentAction.value = ParentAction.DisplayError(
                         R.string.error_dialog_title,
                         context.getString(
                             R.string.error_discover_api,
                             instance.sanitizedBaseURI,
-                            ex.toString()
+                            errorMessage
                         )
                     )
+                } else {
+                    prewarmConnections(discoveredAPI)
+                    val savedToken =
+                        historyService.getSavedToken(instance)
+                    if (savedToken == null || reauthorize) {
+                        authorize(instance, discoveredAPI)
+                    } else {
+                        if (savedToken.instance.sanitizedBaseURI != instance.sanitizedBaseURI
+                        ) {
+                            // This is a distributed token. We add it to the list.
+                            Log.i(TAG, "Distributed token found for different instance.")
+                            historyService.cacheAuthorizationState(
+                                instance,
+                                savedToken.authState,
+                                savedToken.authenticationDate
+                            )
+                        }
+                        preferencesService.transaction {
+                            setCurrentInstance(instance)
+                            setCurrentDiscoveredAPI(discoveredAPI)
+                            setCurrentAuthState(savedToken.authState)
+                        }
+                        getSupportedProfilesV3(
+                            instance,
+                            discoveredAPI,
+                            savedToken.authState,
+                            reauthorize
+                        ).flatMap { supportedProfiles ->
+                            selectProfile(supportedProfiles)
+                        }
+                    }
                 }
             }.onFailure { throwable ->
-                Log.e(TAG, "Error while fetching discovered API.", throwable)
+                if (throwable is SerializerService.UnknownFormatException) {
+                    Log.e(TAG, "Error parsing discovered API!", throwable)
+                } else {
+                    Log.e(TAG, "Error while fetching discovered API.", throwable)
+                }
                 connectionState.value = ConnectionState.Ready
                 parentAction.value = ParentAction.DisplayError(
                     R.string.error_dialog_title,
@@ -168,12 +168,14 @@ abstract class BaseConnectionViewModel(
     private suspend fun getSupportedProfilesV3(
         instance: Instance,
         discoveredAPI: DiscoveredAPIV3,
-        authState: AuthState
+        authState: AuthState,
+        reauthorize: Boolean
     ): Result<List<Profile>> {
         val apiProfiles = fetchProfilesV3(
             instance,
             discoveredAPI,
-            authState
+            authState,
+            reauthorize
         ).getOrElse { return Result.failure(it) }
         val supportedProfiles =
             apiProfiles.mapNotNull { profile ->
@@ -228,6 +230,19 @@ abstract class BaseConnectionViewModel(
             }
         }.getOrElse { throwable ->
             connectionState.value = ConnectionState.Ready
+            if (throwable is APIService.UnsuccessfulResponseException &&
+                throwable.apiError == APIService.ERROR_PROFILE_NOT_AVAILABLE
+            ) {
+                // The profile was removed from the server, or the user lost access to it
+                if (profileListService.invalidate(instance)) {
+                    Log.w(TAG, "Profile from the cached profile list is not available, fetching the profiles again.")
+                    discoverApi(instance)
+                    return Result.failure(ProfileListService.ProfileListChangedException())
+                }
+            } else if (indicatesMovedEndpoints(throwable)) {
+                // Discover the endpoints again on the next attempt
+                serverDiscoveryService.invalidate(instance)
+            }
             return Result.failure(
                 if (throwable is APIService.UserNotAuthorizedException) {
                     throwable
@@ -322,27 +337,50 @@ abstract class BaseConnectionViewModel(
      * @param instance      The VPN provider instance.
      * @param discoveredAPI The discovered API containing the URLs.
      * @param authState     The access and refresh token for the API.
+     * @param reauthorize   If the user should authorize again when the endpoints are discovered again.
      */
     private suspend fun fetchProfilesV3(
         instance: Instance,
         discoveredAPI: DiscoveredAPIV3,
-        authState: AuthState
+        authState: AuthState,
+        reauthorize: Boolean
     ): Result<List<ProfileV3API>> {
         connectionState.value = ConnectionState.FetchingProfiles
         return runCatchingCoroutine {
-            apiService.getString(discoveredAPI.infoEndpoint, authState)
-        }.onFailure { throwable ->
-            Log.e(TAG, "Error fetching profile list.", throwable)
-            // It is highly probable that the auth state is not valid anymore.
-            // todo: do not reauthorize on server error, i.e. response code 500
-            authorize(instance, discoveredAPI)
-        }.flatMap { result ->
-            try {
-                Result.success(serializerService.deserializeInfo(result).info.profileList)
-            } catch (ex: SerializerService.UnknownFormatException) {
-                showError(ex, R.string.error_parsing_profiles)
+            profileListService.getProfiles(instance, discoveredAPI, authState)
+        }.fold(
+            onSuccess = { profileListResult ->
+                Result.success(profileListResult.profiles)
+            },
+            onFailure = { throwable ->
+                if (throwable is SerializerService.UnknownFormatException) {
+                    showError(throwable, R.string.error_parsing_profiles)
+                } else if (isDiscoveredAPICached && indicatesMovedEndpoints(throwable)) {
+                    // The server moved its endpoints, discover them again before giving up
+                    Log.w(TAG, "Error fetching profile list from cached endpoints, discovering them again.", throwable)
+                    isDiscoveredAPICached = false
+                    serverDiscoveryService.invalidate(instance)
+                    discoverApi(instance, reauthorize)
+                    Result.failure(throwable)
+                } else {
+                    Log.e(TAG, "Error fetching profile list.", throwable)
+                    // It is highly probable that the auth state is not valid anymore.
+                    // todo: do not reauthorize on server error, i.e. response code 500
+                    authorize(instance, discoveredAPI)
+                    Result.failure(throwable)
+                }
             }
-        }
+        )
+    }
+
+    /**
+     * Returns if a failed call means the server moved its endpoints, so they should be discovered again.
+     * The endpoints are kept if the network is down, or if the server failed to handle the call.
+     */
+    private fun indicatesMovedEndpoints(throwable: Throwable): Boolean {
+        return throwable is UnknownHostException ||
+                throwable is APIService.UnsuccessfulResponseException &&
+                throwable.statusCode in Constants.GONE_HTTP_CODES
     }
 
     private fun getExpiryFromHeaders(headers: Map<String, List<String>>): Date? {
@@ -387,7 +425,15 @@ abstract class BaseConnectionViewModel(
         return Triple(protocol, configString, getExpiryFromHeaders(headers))
     }
 
+    private fun prewarmConnections(discoveredAPI: DiscoveredAPIV3) {
+        viewModelScope.launch {
+            connectionPrewarmService.prewarm(discoveredAPI)
+        }
+    }
+
     private fun authorize(instance: Instance, discoveredAPI: DiscoveredAPI) {
+        // The user might authorize with another account, which has access to other profiles
+        profileListService.invalidate(instance)
         connectionState.value = ConnectionState.Authorizing
         parentAction.value = ParentAction.InitiateConnection(instance, discoveredAPI)
         parentAction.value =
@@ -428,8 +474,10 @@ abstract class BaseConnectionViewModel(
                 )
             )
         }
-        preferencesService.setCurrentProfile(profile, null)
-        preferencesService.setCurrentAuthState(authState)
+        preferencesService.transaction {
+            setCurrentProfile(profile, null)
+            setCurrentAuthState(authState)
+        }
         return connectToProfileV3(instance, discoveredAPI, profile, authState)
     }
 
@@ -439,6 +487,8 @@ abstract class BaseConnectionViewModel(
 
     fun deleteAllDataForInstance(instance: Instance) {
         historyService.removeAllDataForInstance(instance)
+        serverDiscoveryService.invalidate(instance)
+        profileListService.invalidate(instance)
     }
 
     fun getProfileInstance(): Instance {
@@ -53,10 +53,16 @@ class ConnectionStatusViewModel @Inject constructor(
     serializerService: SerializerService,
     connectionService: ConnectionService,
     vpnConnectionService: VPNConnectionService,
+    connectionPrewarmService: ConnectionPrewarmService,
+    serverDiscoveryService: ServerDiscoveryService,
+    profileListService: ProfileListService,
 ) : BaseConnectionViewModel(
     context, apiService, serializerService, historyService,
     preferencesService, connectionService, eduVPNOpenVPNService,
     vpnConnectionService,
+    connectionPrewarmService,
+    serverDiscoveryService,
+    profileListService,
 ) {
 
     sealed class ParentAction {
@@ -24,6 +24,9 @@ import androidx.lifecycle.Transformations
 import androidx.lifecycle.viewModelScope
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.supervisorScope
 import nl.eduvpn.app.R
@@ -34,14 +37,19 @@ import nl.eduvpn.app.entity.Organization
 import nl.eduvpn.app.entity.OrganizationList
 import nl.eduvpn.app.entity.ServerList
 import nl.eduvpn.app.entity.TranslatableString
+import nl.eduvpn.app.entity.exception.EduVPNException
 import nl.eduvpn.app.service.APIService
+import nl.eduvpn.app.service.ConnectionPrewarmService
 import nl.eduvpn.app.service.ConnectionService
+import nl.eduvpn.app.service.DirectoryService
 import nl.eduvpn.app.service.EduVPNOpenVPNService
 import nl.eduvpn.app.service.HistoryService
-import nl.eduvpn.app.service.OrganizationService
 import nl.eduvpn.app.service.PreferencesService
+import nl.eduvpn.app.service.ProfileListService
 import nl.eduvpn.app.service.SerializerService
+import nl.eduvpn.app.service.ServerDiscoveryService
 import nl.eduvpn.app.service.VPNConnectionService
+import nl.eduvpn.app.utils.ListSnapshotStore
 import nl.eduvpn.app.utils.Log
 import nl.eduvpn.app.utils.runCatchingCoroutine
 import java.text.Collator
@@ -49,7 +57,7 @@ import java.util.Locale
 import javax.inject.Inject
 
 class OrganizationSelectionViewModel @Inject constructor(
-    organizationService: OrganizationService,
+    private val directoryService: DirectoryService,
     private val preferencesService: PreferencesService,
     context: Context,
     apiService: APIService,
@@ -58,6 +66,9 @@ class OrganizationSelectionViewModel @Inject constructor(
     connectionService: ConnectionService,
     eduVpnOpenVpnService: EduVPNOpenVPNService,
     vpnConnectionService: VPNConnectionService,
+    connectionPrewarmService: ConnectionPrewarmService,
+    serverDiscoveryService: ServerDiscoveryService,
+    profileListService: ProfileListService,
 ) : BaseConnectionViewModel(
     context,
     apiService,
@@ -67,6 +78,9 @@ class OrganizationSelectionViewModel @Inject constructor(
     connectionService,
     eduVpnOpenVpnService,
     vpnConnectionService,
+    connectionPrewarmService,
+    serverDiscoveryService,
+    profileListService,
 ) {
 
     val state = MutableLiveData<ConnectionState>().also { it.value = ConnectionState.Ready }
@@ -81,94 +95,132 @@ class OrganizationSelectionViewModel @Inject constructor(
 
     val searchText = MutableLiveData("")
 
+    // The lists the items were created from, so the same lists are not sorted again
+    private var shownOrganizationList: OrganizationList? = null
+    private var shownServerList: ServerList? = null
+
     init {
         viewModelScope.launch {
+            // We can't show any organization servers if there is a saved organization, user needs to reset to switch.
+            val needsOrganizations = historyService.savedOrganization == null
+            val noOrganizations = OrganizationList(-1L, emptyList())
+            // Show the lists available on the device right away, the downloaded lists replace them afterwards.
+            val localOrganizationList = if (needsOrganizations) {
+                directoryService.getLocalOrganizationList()
+            } else {
+                noOrganizations
+            }
+            val localServerList = directoryService.getLocalServerList()
+            val isLocalListShown = localOrganizationList != null && localServerList != null &&
+                    showListsIfIntact(localOrganizationList, localServerList)
             // We want to be able to handle async failures, so use supervisorScope
             // https://kotlinlang.org/docs/reference/coroutines/exception-handling.html#supervision
-            supervisorScope {
-                val organizationListDeferred = if (historyService.savedOrganization == null) {
-                    state.value = ConnectionState.FetchingOrganizations
-                    async { organizationService.fetchOrganizations() }
-                } else {
-                    // We can't show any organization servers, user needs to reset to switch.
-                    state.value = ConnectionState.FetchingServerList
-                    CompletableDeferred(OrganizationList(-1L, emptyList()))
-                }
-                val cachedServerList = preferencesService.getServerList()
-                val serverListDeferred = if (cachedServerList != null) {
-                    CompletableDeferred(cachedServerList)
+            val isVersionRejected = supervisorScope {
+                val organizationListDeferred = if (needsOrganizations) {
+                    if (!isLocalListShown) {
+                        state.value = ConnectionState.FetchingOrganizations
+                    }
+                    async { directoryService.getOrganizationList() }
                 } else {
-                    async { organizationService.fetchServerList() }
-                }
-
-                val lastKnownOrganizationVersion =
-                    preferencesService.getLastKnownOrganizationListVersion()
-                val lastKnownServerListVersion = preferencesService.getLastKnownServerListVersion()
-
-                val organizationList =
-                    runCatchingCoroutine { organizationListDeferred.await() }.getOrElse {
-                        Log.w(TAG, "Organizations call has failed!", it)
-                        OrganizationList(-1L, emptyList())
+                    if (!isLocalListShown) {
+                        state.value = ConnectionState.FetchingServerList
                     }
-
-                val serverList = runCatchingCoroutine { serverListDeferred.await() }.getOrElse {
-                    Log.w(TAG, "Server list call has failed!", it)
-                    ServerList(-1L, emptyList())
+                    CompletableDeferred(noOrganizations)
                 }
+                val serverListDeferred = async { directoryService.getServerList() }
 
-                if (serverList.version > 0 && lastKnownServerListVersion != null && lastKnownServerListVersion > serverList.version) {
-                    organizations.value = emptyList()
-                    instituteAccessServers.value = emptyList()
-                    secureInternetServers.value = emptyList()
-                    state.value = ConnectionState.Ready
-                    parentAction.value = ParentAction.DisplayError(
-                        R.string.error_server_list_version_check_title,
-                        context.getString(R.string.error_server_list_version_check_message)
-                    )
-                } else if (organizationList.version > 0 && lastKnownOrganizationVersion != null && lastKnownOrganizationVersion > organizationList.version) {
+                val organizationListResult = runCatchingCoroutine { organizationListDeferred.await() }
+                val serverListResult = runCatchingCoroutine { serverListDeferred.await() }
+
+                // The version checks are done by the directory service, we only need to display their result.
+                val versionCheckError = (serverListResult.exceptionOrNull() as? EduVPNException)
+                    ?: (organizationListResult.exceptionOrNull() as? EduVPNException)
+                if (versionCheckError != null) {
                     organizations.value = emptyList()
                     instituteAccessServers.value = emptyList()
                     secureInternetServers.value = emptyList()
                     state.value = ConnectionState.Ready
                     parentAction.value = ParentAction.DisplayError(
-                        R.string.error_organization_list_version_check_title,
-                        context.getString(R.string.error_organization_list_version_check_message)
+                        versionCheckError.resourceIdTitle,
+                        context.getString(versionCheckError.resourceIdMessage)
                     )
+                    return@supervisorScope true
                 }
 
-                if (organizationList.version > 0) {
-                    preferencesService.setLastKnownOrganizationListVersion(organizationList.version)
+                val organizationList = organizationListResult.getOrElse {
+                    Log.w(TAG, "Organizations call has failed!", it)
+                    noOrganizations
                 }
-                if (serverList.version > 0) {
-                    preferencesService.setLastKnownServerListVersion(serverList.version)
+                val serverList = serverListResult.getOrElse {
+                    Log.w(TAG, "Server list call has failed!", it)
+                    ServerList(-1L, emptyList())
                 }
+                showLists(organizationList, serverList)
+                false
+            }
+            if (isVersionRejected) {
+                return@launch
+            }
+            // Lists downloaded later, for example by the server selection screen, replace the shown ones.
+            val organizationLists = if (needsOrganizations) {
+                directoryService.organizationList.filterNotNull()
+            } else {
+                flowOf(noOrganizations)
+            }
+            combine(organizationLists, directoryService.serverList.filterNotNull()) { organizationList, serverList ->
+                Pair(organizationList, serverList)
+            }.collect { (organizationList, serverList) ->
+                if (organizationList !== shownOrganizationList || serverList !== shownServerList) {
+                    showListsIfIntact(organizationList, serverList)
+                }
+            }
+        }
+    }
 
-                val sortedOrganizations = organizationList.organizationList.sortedWith(
-                    Comparator.comparing(
-                        { i -> i.displayName.bestTranslation },
-                        Collator.getInstance(Locale.getDefault())
-                    )
-                )
-
-                val sortedInstituteAccessServers = serverList.serverList.filter {
-                    it.authorizationType == AuthorizationType.Local
-                }.sortedWith(
-                    Comparator.comparing(
-                        { i -> i.displayName.bestTranslation },
-                        Collator.getInstance(Locale.getDefault())
-                    )
-                ).map { OrganizationAdapter.OrganizationAdapterItem.InstituteAccess(it) }
+    /**
+     * Shows lists which might have been read from the device storage.
+     * Sorting decodes all of their entries, so a damaged stored list is noticed here.
+     *
+     * @return True if the lists are shown, false if a stored list was damaged, and the lists should be downloaded.
+     */
+    private suspend fun showListsIfIntact(organizationList: OrganizationList, serverList: ServerList): Boolean {
+        return try {
+            showLists(organizationList, serverList)
+            true
+        } catch (ex: ListSnapshotStore.CorruptSnapshotException) {
+            Log.w(TAG, "Stored list is damaged, downloading the lists instead.", ex)
+            directoryService.dropStoredLists()
+            false
+        }
+    }
 
-                val secureInternetServerList = serverList.serverList.filter {
-                    it.authorizationType == AuthorizationType.Distributed
-                }
+    private fun showLists(organizationList: OrganizationList, serverList: ServerList) {
+        val sortedOrganizations = organizationList.organizationList.sortedWith(
+            Comparator.comparing(
+                { i -> i.displayName.bestTranslation },
+                Collator.getInstance(Locale.getDefault())
+            )
+        )
 
-                organizations.value = sortedOrganizations
-                instituteAccessServers.value = sortedInstituteAccessServers
-                secureInternetServers.value = secureInternetServerList
-                state.value = ConnectionState.Ready
-            }
+        val sortedInstituteAccessServers = serverList.serverList.filter {
+            it.authorizationType == AuthorizationType.Local
+        }.sortedWith(
+            Comparator.comparing(
+                { i -> i.displayName.bestTranslation },
+                Collator.getInstance(Locale.getDefault())
+            )
+        ).map { OrganizationAdapter.OrganizationAdapterItem.InstituteAccess(it) }
+
+        val secureInternetServerList = serverList.serverList.filter {
+            it.authorizationType == AuthorizationType.Distributed
         }
+
+        organizations.value = sortedOrganizations
+        instituteAccessServers.value = sortedInstituteAccessServers
+        secureInternetServers.value = secureInternetServerList
+        state.value = ConnectionState.Ready
+        shownOrganizationList = organizationList
+        shownServerList = serverList
     }
 
     private fun matchesServer(
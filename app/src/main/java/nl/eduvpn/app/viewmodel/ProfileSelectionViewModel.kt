@@ -31,6 +31,9 @@ class ProfileSelectionViewModel @Inject constructor(
     connectionService: ConnectionService,
     eduVpnOpenVpnService: EduVPNOpenVPNService,
     vpnConnectionService: VPNConnectionService,
+    connectionPrewarmService: ConnectionPrewarmService,
+    serverDiscoveryService: ServerDiscoveryService,
+    profileListService: ProfileListService,
 ) : BaseConnectionViewModel(
     context,
     apiService,
@@ -40,4 +43,7 @@ class ProfileSelectionViewModel @Inject constructor(
     connectionService,
     eduVpnOpenVpnService,
     vpnConnectionService,
+    connectionPrewarmService,
+    serverDiscoveryService,
+    profileListService,
 )
@@ -21,6 +21,7 @@ package nl.eduvpn.app.viewmodel
 import android.content.Context
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.launch
 import nl.eduvpn.app.R
 import nl.eduvpn.app.adapter.OrganizationAdapter
@@ -28,14 +29,18 @@ import nl.eduvpn.app.entity.AuthorizationType
 import nl.eduvpn.app.entity.Instance
 import nl.eduvpn.app.entity.ServerList
 import nl.eduvpn.app.service.APIService
+import nl.eduvpn.app.service.ConnectionPrewarmService
 import nl.eduvpn.app.service.ConnectionService
+import nl.eduvpn.app.service.DirectoryService
 import nl.eduvpn.app.service.EduVPNOpenVPNService
+import nl.eduvpn.app.service.HistoryChange
 import nl.eduvpn.app.service.HistoryService
-import nl.eduvpn.app.service.OrganizationService
 import nl.eduvpn.app.service.PreferencesService
+import nl.eduvpn.app.service.ProfileListService
 import nl.eduvpn.app.service.SerializerService
+import nl.eduvpn.app.service.ServerDiscoveryService
 import nl.eduvpn.app.service.VPNConnectionService
-import nl.eduvpn.app.utils.Listener
+import nl.eduvpn.app.utils.ListSnapshotStore
 import nl.eduvpn.app.utils.Log
 import nl.eduvpn.app.utils.getCountryText
 import nl.eduvpn.app.utils.runCatchingCoroutine
@@ -49,8 +54,11 @@ class ServerSelectionViewModel @Inject constructor(
     private val preferencesService: PreferencesService,
     connectionService: ConnectionService,
     eduVpnOpenVpnService: EduVPNOpenVPNService,
-    private val organizationService: OrganizationService,
+    private val directoryService: DirectoryService,
     vpnConnectionService: VPNConnectionService,
+    connectionPrewarmService: ConnectionPrewarmService,
+    serverDiscoveryService: ServerDiscoveryService,
+    profileListService: ProfileListService,
 ) : BaseConnectionViewModel(
     context, apiService,
     serializerService,
@@ -59,25 +67,38 @@ class ServerSelectionViewModel @Inject constructor(
     connectionService,
     eduVpnOpenVpnService,
     vpnConnectionService,
-), Listener {
+    connectionPrewarmService,
+    serverDiscoveryService,
+    profileListService,
+) {
 
     val adapterItems = MutableLiveData<List<OrganizationAdapter.OrganizationAdapterItem>>()
 
     val connectingTo = MutableLiveData<Instance>()
 
-    // We avoid refreshing the organization too frequently.
-    private val serverListCache = MutableLiveData<Pair<Long, ServerList>>()
+    // The server list the items were created from
+    private var shownServerList: ServerList? = null
 
     init {
-        historyService.addListener(this)
-        preferencesService.getServerList()?.let { serverList ->
-            serverListCache.value = Pair(System.currentTimeMillis(), serverList)
+        viewModelScope.launch {
+            historyService.changes.collect { change ->
+                when (change) {
+                    is HistoryChange.AuthAdded, is HistoryChange.AuthRemoved -> refresh()
+                    // Token refreshes and key pairs do not change the listed servers
+                    is HistoryChange.AuthRefreshed,
+                    is HistoryChange.KeyPairStored,
+                    is HistoryChange.OrganizationChanged -> Unit
+                }
+            }
+        }
+        viewModelScope.launch {
+            // A list downloaded by another screen, or by a refresh of this one, replaces the shown list
+            directoryService.serverList.filterNotNull().collect { serverList ->
+                if (serverList !== shownServerList && needsServerList()) {
+                    showInstances(serverList)
+                }
+            }
         }
-    }
-
-    override fun onCleared() {
-        super.onCleared()
-        historyService.removeListener(this)
     }
 
     override fun onResume() {
@@ -85,34 +106,47 @@ class ServerSelectionViewModel @Inject constructor(
         refresh()
     }
 
+    private fun needsServerList(): Boolean {
+        return historyService.savedAuthStateList.any { it.instance.authorizationType == AuthorizationType.Distributed }
+    }
+
     private fun refresh() {
-        val needsServerList = historyService.savedAuthStateList.any { it.instance.authorizationType == AuthorizationType.Distributed }
-        if (needsServerList && (serverListCache.value == null || System.currentTimeMillis() - serverListCache.value!!.first > SERVER_LIST_CACHE_TTL)) {
+        if (needsServerList()) {
             refreshServerList()
         } else {
-            refreshInstances(serverListCache.value?.second ?: ServerList(-1, emptyList()))
+            refreshInstances(directoryService.serverList.value ?: ServerList(-1, emptyList()))
         }
     }
 
 
     /**
-     * Refreshes the current organization, and then the instances afterwards
+     * Refreshes the server list if it is outdated, and then the instances afterwards
      */
     private fun refreshServerList() {
-        connectionState.value = ConnectionState.FetchingServerList
-        Log.v(TAG, "Fetching server list...")
+        if (directoryService.serverList.value == null) {
+            connectionState.value = ConnectionState.FetchingServerList
+        }
         viewModelScope.launch {
-            runCatchingCoroutine { organizationService.fetchServerList() }.onSuccess { serverList ->
-                Log.v(TAG, "Updated server list with latest entries.")
-                serverListCache.value = Pair(System.currentTimeMillis(), serverList)
-                preferencesService.setServerList(serverList)
-                refreshInstances(serverList)
+            runCatchingCoroutine { directoryService.getServerList() }.onSuccess { serverList ->
+                showInstances(serverList)
             }.onFailure { throwable ->
-                Log.w(TAG, "Unable to fetch server list. Trying to show servers without it.", throwable)
-                refreshInstances(serverListCache.value?.second
-                        ?: ServerList(-1L, emptyList()))
+                Log.w(TAG, "Unable to fetch server list. Trying to show servers with the last known list.", throwable)
+                showInstances(directoryService.serverList.value ?: ServerList(-1L, emptyList()))
             }
+        }
+    }
 
+    /**
+     * Refreshes the instances, and loads the server list again if the stored list turns out to be damaged.
+     */
+    private suspend fun showInstances(serverList: ServerList) {
+        try {
+            refreshInstances(serverList)
+        } catch (ex: ListSnapshotStore.CorruptSnapshotException) {
+            // The stored list is deleted already, so the next attempt uses the bundled or a downloaded list
+            Log.w(TAG, "Stored server list is damaged, loading it again.", ex)
+            directoryService.dropStoredLists()
+            refreshServerList()
         }
     }
 
@@ -148,20 +182,24 @@ class ServerSelectionViewModel @Inject constructor(
         }
         adapterItems.value = result
         connectionState.value = ConnectionState.Ready
-    }
-
-    override fun update(o: Any, arg: Any?) {
-        if (o is HistoryService) {
-            refresh()
-        }
+        shownServerList = serverList
     }
 
     fun requestCountryList(): List<Pair<Instance, String>>? {
-        val allInstances = serverListCache.value?.second?.serverList
-        return allInstances?.filter {
-            it.authorizationType == AuthorizationType.Distributed && it.countryCode != null
-        }?.map {
-            Pair(it, it.getCountryText() ?: "Unknown country")
+        val allInstances = directoryService.serverList.value?.serverList
+        return try {
+            allInstances?.filter {
+                it.authorizationType == AuthorizationType.Distributed && it.countryCode != null
+            }?.map {
+                Pair(it, it.getCountryText() ?: "Unknown country")
+            }
+        } catch (ex: ListSnapshotStore.CorruptSnapshotException) {
+            Log.w(TAG, "Stored server list is damaged, loading it again.", ex)
+            viewModelScope.launch {
+                directoryService.dropStoredLists()
+                refreshServerList()
+            }
+            null
         }
     }
 
@@ -176,6 +214,5 @@ class ServerSelectionViewModel @Inject constructor(
 
     companion object {
         private val TAG = ServerSelectionViewModel::class.java.name
-        private const val SERVER_LIST_CACHE_TTL = 15 * 60 * 1_000L // 15 minutes
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.utils.crypto
+
+import org.junit.Assert
+import org.junit.Test
+
+class Blake2bTest {
+
+    private fun hex(bytes: ByteArray) = bytes.joinToString("") { "%02x".format(it) }
+
+    @Test
+    fun testEmptyMessage() {
+        Assert.assertEquals(
+            "786a02f742015903c6c6fd852552d272912f4740e15847618a86e217f71f5419" +
+                    "d25e1031afee585313896444934eb04b903a685b1448b755d56f701afe9be2ce",
+            hex(Blake2b.hash(ByteArray(0)))
+        )
+    }
+
+    @Test
+    fun testRfcExample() {
+        // RFC 7693, Appendix A
+        Assert.assertEquals(
+            "ba80a53f981c4d0d6a2797b69f12f6e94c212f14685ac4b74b12bb6fdbffa2d1" +
+                    "7d87c5392aab792dc252d5de4533cc9518d38aa8dbf1925ab92386edd4009923",
+            hex(Blake2b.hash("abc".toByteArray()))
+        )
+    }
+
+    @Test
+    fun testStreamingMatchesSingleUpdate() {
+        // Sizes around the block length of 128 bytes
+        for (size in listOf(1, 127, 128, 129, 256, 1000)) {
+            val message = ByteArray(size) { (it * 31).toByte() }
+            val streaming = Blake2b()
+            var offset = 0
+            while (offset < size) {
+                val count = minOf(37, size - offset)
+                streaming.update(message, offset, count)
+                offset += count
+            }
+            Assert.assertArrayEquals(Blake2b.hash(message), streaming.digest())
+        }
+    }
+}
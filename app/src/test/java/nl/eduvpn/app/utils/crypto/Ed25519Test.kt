@@ -0,0 +1,96 @@
+/*
+ * This file is part of eduVPN.
+ *
+ * eduVPN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * eduVPN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with eduVPN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package nl.eduvpn.app.utils.crypto
+
+import org.junit.Assert
+import org.junit.Test
+import java.math.BigInteger
+import java.util.Base64
+
+class Ed25519Test {
+
+    private fun bytes(hex: String) = ByteArray(hex.length / 2) { hex.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+
+    @Test
+    fun testRfcVector() {
+        val publicKey = bytes(RFC_PUBLIC_KEY)
+        val signature = bytes(RFC_SIGNATURE)
+        Assert.assertTrue(Ed25519.verify(signature, ByteArray(0), publicKey))
+        Assert.assertFalse(Ed25519.verify(signature, byteArrayOf(1), publicKey))
+    }
+
+    @Test
+    fun testMinisignSignatures() {
+        // Minisign keys and signatures start with the algorithm (2 bytes) and the key ID (8 bytes)
+        val publicKey = Base64.getDecoder().decode("RWTVSfCL4u2OJhA5unM7ZFY5l+HOkyzOSGBL95mcPHUeqNpYWI3TzQcn")
+            .copyOfRange(10, 10 + Ed25519.PUBLIC_KEY_LENGTH)
+        val message = "test text signed by eduvpn dev\n".toByteArray()
+        val legacySignature = Base64.getDecoder()
+            .decode("RWTVSfCL4u2OJn0JIYGrDRabCed8+IhHIJYZkqJajfOBOmGpMKYr1fKX+cr9QBo3eufM4SEQfZu6jS19KKBLzmXIp9V4fNPlXwo=")
+            .copyOfRange(10, 10 + Ed25519.SIGNATURE_LENGTH)
+        Assert.assertTrue(Ed25519.verify(legacySignature, message, publicKey))
+        // Prehashed signatures sign the BLAKE2b hash of the message
+        val hashedSignature = Base64.getDecoder()
+            .decode("RUTVSfCL4u2OJsrz7ZONagn+2Z/KzzvDXSCOAV2qoKm8hC5xs6j8xymFVDmkG0kGgrAITLOBVFAA5lYjN+sCwIo8tAk2belgjQk=")
+            .copyOfRange(10, 10 + Ed25519.SIGNATURE_LENGTH)
+        Assert.assertTrue(Ed25519.verify(hashedSignature, Blake2b.hash(message), publicKey))
+        Assert.assertFalse(Ed25519.verify(hashedSignature, message, publicKey))
+    }
+
+    @Test
+    fun testRejectsWhatLibsodiumRejects() {
+        val publicKey = bytes(RFC_PUBLIC_KEY)
+        val signature = bytes(RFC_SIGNATURE)
+        // S + L is congruent to S, but not the canonical encoding
+        val nonCanonicalS = (BigInteger(1, signature.copyOfRange(32, 64).reversedArray()) + L)
+            .toByteArray().reversedArray().copyOf(32)
+        Assert.assertFalse(Ed25519.verify(signature.copyOfRange(0, 32) + nonCanonicalS, ByteArray(0), publicKey))
+        // With the identity as the key, R = identity and S = 0 is valid for any message by the RFC equation
+        val identitySignature = bytes(IDENTITY) + ByteArray(32)
+        Assert.assertFalse(Ed25519.verify(identitySignature, ByteArray(0), bytes(IDENTITY)))
+        Assert.assertFalse(Ed25519.verify(identitySignature, "any message".toByteArray(), bytes(IDENTITY)))
+        // A key of order 8 for which the RFC equation also holds
+        Assert.assertFalse(Ed25519.verify(identitySignature, ByteArray(0), bytes(ORDER_8)))
+        // Small order R
+        Assert.assertFalse(Ed25519.verify(bytes(IDENTITY) + signature.copyOfRange(32, 64), ByteArray(0), publicKey))
+        // Non-canonical encodings of the identity
+        Assert.assertFalse(Ed25519.verify(identitySignature, ByteArray(0), bytes(P_PLUS_ONE)))
+        Assert.assertFalse(Ed25519.verify(identitySignature, ByteArray(0), bytes(IDENTITY_NEGATIVE_X)))
+    }
+
+    @Test
+    fun testInvalidLengths() {
+        Assert.assertFalse(Ed25519.verify(ByteArray(63), ByteArray(0), ByteArray(32)))
+        Assert.assertFalse(Ed25519.verify(ByteArray(64), ByteArray(0), ByteArray(31)))
+    }
+
+    companion object {
+        // RFC 8032, section 7.1, test 1
+        private const val RFC_PUBLIC_KEY = "d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a"
+        private const val RFC_SIGNATURE = "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e06522490155" +
+                "5fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b"
+
+        private const val IDENTITY = "0100000000000000000000000000000000000000000000000000000000000000"
+        private const val IDENTITY_NEGATIVE_X = "0100000000000000000000000000000000000000000000000000000000000080"
+        private const val P_PLUS_ONE = "eeffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f"
+        private const val ORDER_8 = "c7176a703d4dd84fba3c0b760d10670f2a2053fa2c39ccc64ec7fd7792ac037a"
+
+        private val L = BigInteger.valueOf(2).pow(252) + BigInteger("27742317777372353535851937790883648493")
+    }
+}